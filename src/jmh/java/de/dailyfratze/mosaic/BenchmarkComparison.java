@@ -0,0 +1,145 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares two JMH result files in CSV format ({@code -rf csv}), for example
+ * the baseline in {@code src/jmh/baseline} and the result of the current
+ * build. Prints the change of every benchmark present in both files and
+ * exits with status 1 if a benchmark got slower by more than the threshold.
+ * Only modes measuring time per operation are supported.
+ *
+ * @author Michael J. Simons, 2015-04-25
+ */
+public class BenchmarkComparison {
+
+    /**
+     * @param args Baseline, current result and optionally the threshold in
+     * percent, 10 by default
+     * @throws IOException
+     */
+    public static void main(final String... args) throws IOException {
+	if (args.length < 2) {
+	    System.err.println("Usage: BenchmarkComparison <baseline.csv> <current.csv> [threshold in %]");
+	    System.exit(2);
+	}
+	final Map<String, Result> baseline = read(args[0]);
+	final Map<String, Result> current = read(args[1]);
+	final double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 10.0;
+
+	int regressions = 0;
+	for (Map.Entry<String, Result> entry : current.entrySet()) {
+	    final Result before = baseline.get(entry.getKey());
+	    final Result after = entry.getValue();
+	    if (before == null) {
+		System.out.println(String.format("%-100s %14s %14.3f %-6s       new", entry.getKey(), "", after.score, after.unit));
+		continue;
+	    }
+	    if (!before.unit.equals(after.unit)) {
+		throw new IllegalArgumentException("Units of " + entry.getKey() + " differ.");
+	    }
+	    final double change = 100.0 * (after.score - before.score) / before.score;
+	    final boolean regression = change > threshold;
+	    if (regression) {
+		++regressions;
+	    }
+	    System.out.println(String.format("%-100s %14.3f %14.3f %-6s %+8.1f%%%s", entry.getKey(), before.score, after.score, after.unit, change, regression ? " SLOWER" : ""));
+	}
+	System.out.println(regressions + " benchmarks slower by more than " + threshold + "%");
+	if (regressions > 0) {
+	    System.exit(1);
+	}
+    }
+
+    /**
+     * @return Results by benchmark name and parameters
+     */
+    static Map<String, Result> read(final String file) throws IOException {
+	final List<String> lines = Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8);
+	if (lines.isEmpty()) {
+	    throw new IllegalArgumentException(file + " is empty.");
+	}
+	final List<String> header = split(lines.get(0));
+	final int benchmark = header.indexOf("Benchmark");
+	final int score = header.indexOf("Score");
+	final int unit = header.indexOf("Unit");
+	if (benchmark < 0 || score < 0 || unit < 0) {
+	    throw new IllegalArgumentException(file + " is not a JMH result in CSV format.");
+	}
+
+	final Map<String, Result> rv = new LinkedHashMap<>();
+	for (String line : lines.subList(1, lines.size())) {
+	    final List<String> columns = split(line);
+	    final StringBuilder key = new StringBuilder(columns.get(benchmark));
+	    for (int i = 0; i < header.size(); ++i) {
+		if (header.get(i).startsWith("Param: ") && i < columns.size() && !columns.get(i).isEmpty()) {
+		    key.append(' ').append(header.get(i).substring(7)).append('=').append(columns.get(i));
+		}
+	    }
+	    rv.put(key.toString(), new Result(Double.parseDouble(columns.get(score)), columns.get(unit)));
+	}
+	return rv;
+    }
+
+    /**
+     * Splits a line of CSV as written by JMH: Values are separated by
+     * commas, strings are quoted with double quotes.
+     */
+    static List<String> split(final String line) {
+	final List<String> rv = new ArrayList<>();
+	final StringBuilder value = new StringBuilder();
+	boolean quoted = false;
+	for (int i = 0; i < line.length(); ++i) {
+	    final char c = line.charAt(i);
+	    if (c == '"') {
+		if (quoted && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+		    value.append('"');
+		    ++i;
+		} else {
+		    quoted = !quoted;
+		}
+	    } else if (c == ',' && !quoted) {
+		rv.add(value.toString());
+		value.setLength(0);
+	    } else {
+		value.append(c);
+	    }
+	}
+	rv.add(value.toString());
+	return rv;
+    }
+
+    static final class Result {
+
+	final double score;
+
+	final String unit;
+
+	Result(final double score, final String unit) {
+	    this.score = score;
+	    this.unit = unit;
+	}
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.images;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Generates the inputs of the benchmarks, so that they neither need the
+ * network nor a real image library. All fixtures depend only on their
+ * parameters and a fixed seed, so results of different runs are comparable.
+ *
+ * @author Michael J. Simons, 2015-04-25
+ */
+final class BenchmarkFixtures {
+
+    static final long SEED = 4711;
+
+    /**
+     * @param resolution Width and height like {@code 1920x1080}
+     * @return Width and height
+     */
+    static int[] parseSize(final String resolution) {
+	final String[] parts = resolution.split("x");
+	if (parts.length != 2) {
+	    throw new IllegalArgumentException("Invalid size " + resolution + ", expected <width>x<height>.");
+	}
+	return new int[]{Integer.parseInt(parts[0]), Integer.parseInt(parts[1])};
+    }
+
+    /**
+     * Creates an image that compresses and averages like a photo: smooth
+     * gradients between a few random colors with some noise on top.
+     *
+     * @param width Width of the image
+     * @param height Height of the image
+     * @return A new image
+     */
+    static BufferedImage photo(final int width, final int height) {
+	final Random random = new Random(SEED);
+	final int[] corners = new int[4];
+	for (int i = 0; i < corners.length; ++i) {
+	    corners[i] = random.nextInt(0x1000000);
+	}
+	final BufferedImage rv = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+	final int[] row = new int[width];
+	for (int y = 0; y < height; ++y) {
+	    final double fy = height == 1 ? 0 : (double) y / (height - 1);
+	    for (int x = 0; x < width; ++x) {
+		final double fx = width == 1 ? 0 : (double) x / (width - 1);
+		int rgb = 0;
+		for (int shift = 16; shift >= 0; shift -= 8) {
+		    final double top = channel(corners[0], shift) * (1 - fx) + channel(corners[1], shift) * fx;
+		    final double bottom = channel(corners[2], shift) * (1 - fx) + channel(corners[3], shift) * fx;
+		    final int value = (int) (top * (1 - fy) + bottom * fy) + random.nextInt(17) - 8;
+		    rgb |= Math.max(0, Math.min(255, value)) << shift;
+		}
+		row[x] = rgb;
+	    }
+	    rv.setRGB(0, y, width, 1, row, 0, width);
+	}
+	return rv;
+    }
+
+    private static int channel(final int rgb, final int shift) {
+	return (rgb >> shift) & 0xFF;
+    }
+
+    /**
+     * @param size Number of images
+     * @param signatureSize Number of regions per row and column, 0 for none
+     * @return A library with random colors
+     */
+    static InMemoryLibrary library(final int size, final int signatureSize) {
+	final Random random = new Random(SEED);
+	return signatureSize == 0 ? InMemoryLibraries.random(random, size) : InMemoryLibraries.randomWithSignatures(random, size, signatureSize);
+    }
+
+    /**
+     * @return A new temporary directory, removed with
+     * {@link #delete(java.nio.file.Path)}
+     */
+    static Path createTempDirectory() {
+	try {
+	    return Files.createTempDirectory("mosaic-benchmark");
+	} catch (IOException e) {
+	    throw new UncheckedIOException(e);
+	}
+    }
+
+    /**
+     * Writes an image as JPEG with the quality used for mosaics.
+     *
+     * @param image The image
+     * @param file The target
+     * @return {@code file}
+     */
+    static File writeJpeg(final BufferedImage image, final File file) {
+	try {
+	    new ImageStorage().storeAsJpeg(image, file, 0.95f);
+	} catch (IOException e) {
+	    throw new UncheckedIOException(e);
+	}
+	return file;
+    }
+
+    /**
+     * Deletes a directory with all its content.
+     *
+     * @param directory The directory
+     */
+    static void delete(final Path directory) {
+	try (Stream<Path> paths = Files.walk(directory)) {
+	    paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+	} catch (IOException e) {
+	    throw new UncheckedIOException(e);
+	}
+    }
+
+    private BenchmarkFixtures() {
+    }
+}
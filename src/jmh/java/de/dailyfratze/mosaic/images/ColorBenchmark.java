@@ -0,0 +1,194 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.images;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static java.util.Arrays.stream;
+
+/**
+ * The color computations done for every image of a library and every tile of
+ * a mosaic: Averaging the pixels of an image and the CIE94 distance.
+ *
+ * @author Michael J. Simons, 2015-04-25
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ColorBenchmark {
+
+    /**
+     * Number of colors converted per operation by the conversion benchmarks,
+     * which report the time per color.
+     */
+    private static final int PALETTE_SIZE = 1024;
+
+    @State(Scope.Benchmark)
+    public static class Image {
+
+	/**
+	 * Resolution of the image, from a sampled image up to a full frame
+	 * photo.
+	 */
+	@Param({"256x256", "1920x1080", "4000x3000"})
+	public String resolution;
+
+	BufferedImage image;
+
+	@Setup
+	public void setup() {
+	    final int[] size = BenchmarkFixtures.parseSize(resolution);
+	    image = BenchmarkFixtures.photo(size[0], size[1]);
+	}
+    }
+
+    @State(Scope.Benchmark)
+    public static class Library {
+
+	/**
+	 * Number of images a tile is compared to in one batch.
+	 */
+	@Param({"1024", "100000"})
+	public int librarySize;
+
+	InMemoryLibrary library;
+
+	double[] lab;
+
+	double chroma;
+
+	double[] distances;
+
+	@Setup
+	public void setup() {
+	    library = BenchmarkFixtures.library(librarySize, 0);
+	    lab = CIE94ColorDistance.toLab(0xFF7F6F5F);
+	    chroma = CIE94ColorDistance.chroma(lab[1], lab[2]);
+	    distances = new double[librarySize];
+	}
+    }
+
+    @State(Scope.Benchmark)
+    public static class Colors {
+
+	int[] colors;
+
+	@Setup
+	public void setup() {
+	    colors = new Random(BenchmarkFixtures.SEED).ints(2).map(rgb -> rgb | 0xFF000000).toArray();
+	}
+    }
+
+    @State(Scope.Benchmark)
+    public static class Palette {
+
+	int[] colors;
+
+	double[] lab;
+
+	@Setup
+	public void setup() {
+	    colors = new Random(BenchmarkFixtures.SEED).ints(PALETTE_SIZE).map(rgb -> rgb | 0xFF000000).toArray();
+	    lab = new double[3];
+	}
+    }
+
+    /**
+     * Averages all pixels of an image like
+     * {@link ImageLibrary#toRecord(java.io.File)}.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int rgbAverage(final Image state) {
+	final BufferedImage image = state.image;
+	final int width = image.getWidth();
+	final int height = image.getHeight();
+	return stream(image.getRGB(0, 0, width, height, null, 0, width))
+		.collect(RGBAverage::new, RGBAverage::accept, RGBAverage::combine)
+		.value();
+    }
+
+    /**
+     * Distance of two RGB colors, including the conversion to L*a*b*.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public double cie94FromRgb(final Colors state) {
+	return CIE94ColorDistance.compute(state.colors[0], state.colors[1]);
+    }
+
+    /**
+     * Conversion from sRGB to L*a*b* with lookup tables and the fast cube
+     * root of {@link LabConverter}.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @OperationsPerInvocation(PALETTE_SIZE)
+    public double toLab(final Palette state) {
+	double rv = 0.0;
+	for (int rgb : state.colors) {
+	    LabConverter.toLab(rgb, state.lab, 0);
+	    rv += state.lab[0] + state.lab[1] + state.lab[2];
+	}
+	return rv;
+    }
+
+    /**
+     * The conversion {@link LabConverter} replaced, with {@link Math#pow}.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @OperationsPerInvocation(PALETTE_SIZE)
+    public double toLabWithPow(final Palette state) {
+	double rv = 0.0;
+	for (int rgb : state.colors) {
+	    final double[] lab = LabConverterTest.toLabWithPow(rgb);
+	    rv += lab[0] + lab[1] + lab[2];
+	}
+	return rv;
+    }
+
+    /**
+     * Distances of one color to all images of a library, as computed by the
+     * {@link BruteForceTileMatcher}.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public double[] cie94Batch(final Library state) {
+	final InMemoryLibrary library = state.library;
+	CIE94ColorDistance.compute(
+		library.lValues(), library.aValues(), library.bValues(), library.chromaValues(), 0, library.size(),
+		state.lab[0], state.lab[1], state.lab[2], state.chroma,
+		state.distances
+	);
+	return state.distances;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.images;
+
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Matches single tiles against in memory libraries of different sizes with
+ * each of the in memory matchers. The excluded images are those of a full
+ * exclusion box with the default radius of 10 tiles.
+ *
+ * @author Michael J. Simons, 2015-04-25
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MatchingBenchmark {
+
+    private static final int SIGNATURE_SIZE = 3;
+
+    /**
+     * Number of different tile colors, cycled through.
+     */
+    private static final int TILES = 4096;
+
+    @Param({"1000", "10000", "100000"})
+    public int librarySize;
+
+    @Param({"BRUTE_FORCE", "INDEX", "LOOKUP_TABLE", "SIGNATURE"})
+    public Mosaic.Matching matching;
+
+    private TileMatcher tileMatcher;
+
+    private int[] averageColors;
+
+    private int[][] signatures;
+
+    private Set<Integer> excluded;
+
+    private int next;
+
+    @Setup
+    public void setup() {
+	final InMemoryLibrary library = BenchmarkFixtures.library(librarySize, SIGNATURE_SIZE);
+	switch (matching) {
+	    case BRUTE_FORCE:
+		tileMatcher = new BruteForceTileMatcher(library);
+		break;
+	    case INDEX:
+		tileMatcher = new KdTreeTileMatcher(library);
+		break;
+	    case LOOKUP_TABLE:
+		final KdTreeTileMatcher kdTreeTileMatcher = new KdTreeTileMatcher(library);
+		tileMatcher = new LookupTableTileMatcher(library, kdTreeTileMatcher,
+			LookupTableTileMatcher.DEFAULT_BITS, LookupTableTileMatcher.DEFAULT_CANDIDATES,
+			LookupTableTileMatcher.build(kdTreeTileMatcher, LookupTableTileMatcher.DEFAULT_BITS, LookupTableTileMatcher.DEFAULT_CANDIDATES)
+		);
+		break;
+	    case SIGNATURE:
+		tileMatcher = new SignatureTileMatcher(library);
+		break;
+	    default:
+		throw new IllegalArgumentException(matching + " doesn't match in memory.");
+	}
+
+	final Random random = new Random(BenchmarkFixtures.SEED);
+	averageColors = new int[TILES];
+	signatures = new int[TILES][SIGNATURE_SIZE * SIGNATURE_SIZE];
+	for (int i = 0; i < TILES; ++i) {
+	    averageColors[i] = 0xFF000000 | random.nextInt(0x1000000);
+	    for (int j = 0; j < signatures[i].length; ++j) {
+		signatures[i][j] = InMemoryLibraries.vary(random, averageColors[i]);
+	    }
+	}
+	excluded = new HashSet<>();
+	while (excluded.size() < Math.min(librarySize / 2, 21 * 21 - 1)) {
+	    excluded.add(1 + random.nextInt(librarySize));
+	}
+    }
+
+    @Benchmark
+    public Optional<Tile> matchTile() {
+	final int tile = next++ & (TILES - 1);
+	return tileMatcher.signatureSize() == 0
+		? tileMatcher.match(0, 0, averageColors[tile], excluded)
+		: tileMatcher.matchSignature(0, 0, signatures[tile], excluded);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.images;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Creates whole mosaics from a library file, including reading the source
+ * image and loading the library, as done by the application.
+ *
+ * @author Michael J. Simons, 2015-04-25
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MosaicBenchmark {
+
+    /**
+     * Size of a tile inside the source image, see
+     * {@link Mosaic#getTileWidth()} and {@link Mosaic#getTileHeight()}.
+     */
+    private static final int TILE_WIDTH = 40;
+
+    private static final int TILE_HEIGHT = 30;
+
+    @Param({"10000", "100000"})
+    public int librarySize;
+
+    /**
+     * Columns and rows of the mosaic, the source image is sized accordingly.
+     */
+    @Param({"40x30", "120x90"})
+    public String tileGrid;
+
+    /**
+     * See {@link Mosaic#setParallelism(int)}.
+     */
+    @Param({"1", "4"})
+    public int threads;
+
+    @Param({"INDEX"})
+    public Mosaic.Matching matching;
+
+    private Path directory;
+
+    private File libraryFile;
+
+    private File sourceImageFile;
+
+    @Setup
+    public void setup() throws IOException {
+	directory = BenchmarkFixtures.createTempDirectory();
+	libraryFile = directory.resolve("library.mlib").toFile();
+	LibraryFile.write(BenchmarkFixtures.library(librarySize, 3), libraryFile);
+
+	final int[] grid = BenchmarkFixtures.parseSize(tileGrid);
+	sourceImageFile = BenchmarkFixtures.writeJpeg(
+		BenchmarkFixtures.photo(grid[0] * TILE_WIDTH, grid[1] * TILE_HEIGHT),
+		directory.resolve("source.jpg").toFile()
+	);
+    }
+
+    @TearDown
+    public void tearDown() {
+	BenchmarkFixtures.delete(directory);
+    }
+
+    @Benchmark
+    public List<Tile> create() {
+	try (Mosaic mosaic = new Mosaic(directory.resolve("unused").toString(), sourceImageFile.getAbsolutePath(), matching)) {
+	    mosaic.setLibraryFile(libraryFile);
+	    mosaic.setParallelism(threads);
+	    return mosaic.create(new ArrayList<>());
+	}
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.images;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Renders matched mosaics with tiles of the size used by the application,
+ * decoding the tiles from JPEG files like the application does without a
+ * thumbnail store. Every render starts with an empty tile cache.
+ *
+ * @author Michael J. Simons, 2015-04-26
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class RenderingBenchmark {
+
+    private static final int TILE_WIDTH = 150;
+
+    private static final int TILE_HEIGHT = 113;
+
+    /**
+     * Number of distinct library images used by the mosaic.
+     */
+    private static final int IMAGES = 500;
+
+    /**
+     * Columns and rows of the mosaic.
+     */
+    @Param({"40x30", "80x60"})
+    public String tileGrid;
+
+    /**
+     * See {@link MosaicRenderer#setParallelism(int)}.
+     */
+    @Param({"1", "4"})
+    public int threads;
+
+    private Path directory;
+
+    private BufferedImage sourceImage;
+
+    private int columns;
+
+    private int rows;
+
+    private List<Tile> tiles;
+
+    @Setup
+    public void setup() {
+	directory = BenchmarkFixtures.createTempDirectory();
+	final BufferedImage photo = BenchmarkFixtures.photo(400, 300);
+	for (int i = 1; i <= IMAGES; ++i) {
+	    BenchmarkFixtures.writeJpeg(photo, directory.resolve(i + ".jpg").toFile());
+	}
+
+	final int[] grid = BenchmarkFixtures.parseSize(tileGrid);
+	columns = grid[0];
+	rows = grid[1];
+	sourceImage = BenchmarkFixtures.photo(columns * 40, rows * 30);
+	final Random random = new Random(BenchmarkFixtures.SEED);
+	tiles = new ArrayList<>(columns * rows);
+	for (int j = 0; j < rows; ++j) {
+	    for (int i = 0; i < columns; ++i) {
+		final int imageId = 1 + random.nextInt(IMAGES);
+		tiles.add(new Tile(i, j, imageId, directory.resolve(imageId + ".jpg").toString(), null));
+	    }
+	}
+    }
+
+    @TearDown
+    public void tearDown() {
+	BenchmarkFixtures.delete(directory);
+    }
+
+    /**
+     * Renders the tiles in batches of one row per thread, as done by the
+     * application.
+     */
+    @Benchmark
+    public BufferedImage render() {
+	try (MosaicRenderer renderer = new MosaicRenderer(sourceImage, columns, rows, TILE_WIDTH, TILE_HEIGHT, tile -> {
+	    try (AutoCloseableImageReader imageReader = AutoCloseableImageReader.create(new File(tile.getAbsoluteFilename()))) {
+		return imageReader.read();
+	    }
+	})) {
+	    renderer.setParallelism(threads);
+	    renderer.setTileCache(new TileCache(256 << 20));
+	    final int batchSize = columns * threads;
+	    for (int i = 0; i < tiles.size(); i += batchSize) {
+		renderer.onTiles(tiles.subList(i, Math.min(i + batchSize, tiles.size())));
+	    }
+	    return renderer.getTarget();
+	}
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.images;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding mosaics and decoding library images as JPEG. Encoding writes into
+ * memory, decoding reads from a file that is most likely cached by the
+ * operating system, so both measure the codec, not the disk.
+ *
+ * @author Michael J. Simons, 2015-04-25
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StorageBenchmark {
+
+    /**
+     * Resolution of the image, from a tile up to a large mosaic.
+     */
+    @Param({"150x113", "1920x1080", "4000x3000"})
+    public String resolution;
+
+    private BufferedImage image;
+
+    private Path directory;
+
+    private File jpegFile;
+
+    private ByteArrayOutputStream buffer;
+
+    @Setup
+    public void setup() {
+	final int[] size = BenchmarkFixtures.parseSize(resolution);
+	image = BenchmarkFixtures.photo(size[0], size[1]);
+	directory = BenchmarkFixtures.createTempDirectory();
+	jpegFile = BenchmarkFixtures.writeJpeg(image, directory.resolve("image.jpg").toFile());
+	buffer = new ByteArrayOutputStream((int) jpegFile.length() * 2);
+    }
+
+    @TearDown
+    public void tearDown() {
+	BenchmarkFixtures.delete(directory);
+    }
+
+    /**
+     * Encodes with the settings of {@link ImageStorage#storeAsJpeg(BufferedImage, File, float)}.
+     */
+    @Benchmark
+    public int storeAsJpeg() throws IOException {
+	buffer.reset();
+	new ImageStorage().storeAsJpeg(image, buffer, 0.95f);
+	return buffer.size();
+    }
+
+    /**
+     * Decodes the full image.
+     */
+    @Benchmark
+    public BufferedImage read() {
+	try (AutoCloseableImageReader reader = AutoCloseableImageReader.create(jpegFile)) {
+	    return reader.read();
+	}
+    }
+}
@@ -18,28 +18,79 @@ package de.dailyfratze.mosaic;
 import de.dailyfratze.mosaic.images.AutoCloseableImageReader;
 import de.dailyfratze.mosaic.images.ImageLibrary;
 import de.dailyfratze.mosaic.images.ImageStorage;
+import de.dailyfratze.mosaic.images.LibraryGenerator;
 import de.dailyfratze.mosaic.images.Mosaic;
-import de.dailyfratze.mosaic.images.Tile;
-import java.awt.AlphaComposite;
-import java.awt.Graphics2D;
-import java.awt.RenderingHints;
+import de.dailyfratze.mosaic.images.MosaicRenderer;
+import de.dailyfratze.mosaic.images.ThumbnailStore;
+import de.dailyfratze.mosaic.images.TileCache;
+import de.dailyfratze.mosaic.images.TileStream;
+import de.dailyfratze.mosaic.metrics.Histogram;
+import de.dailyfratze.mosaic.metrics.MetricsRegistry;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.util.List;
+import java.util.Optional;
 
 /**
- * Sample application for generating image libraries and mosaics.
+ * Sample application for generating image libraries and mosaics.<br>
+ * Metrics of a run are available via JMX while running and are written as
+ * JSON to the file given by the system property {@value #METRICS_FILE_PROPERTY}
+ * when finished.
  * 
  * @author Michael J. Simons, 2015-03-30
  */
 public class Application {
 
+    /**
+     * Size of a regular tile inside the rendered mosaic
+     */
+    private static final int TILE_WIDTH = 150;
+
+    private static final int TILE_HEIGHT = 113;
+
+    /**
+     * System property with the file the metrics are written to.
+     */
+    public static final String METRICS_FILE_PROPERTY = "mosaic.metricsFile";
+
+    /**
+     * System property with the size of the cache for decoded tiles in MiB,
+     * see {@link TileCache}. A quarter of the maximum heap by default.
+     */
+    public static final String TILE_CACHE_SIZE_PROPERTY = "mosaic.tileCacheSize";
+
+    /**
+     * Seed of generated libraries and source images, so that load tests can
+     * be repeated.
+     */
+    private static final long GENERATOR_SEED = 4711;
+
+    private static final Histogram ENCODE_TIME = MetricsRegistry.getDefault().timer("render.encode.time");
+
     public static void main(String... args) throws IOException {
 	if("createMosaic".equalsIgnoreCase(args[0])) {
-	    createMosaic(args[1], args[2], args[3]);
+	    createMosaic(args[1], args[2], args[3],
+		    args.length > 4 ? Mosaic.Matching.valueOf(args[4].toUpperCase()) : Mosaic.Matching.INDEX,
+		    args.length > 5 ? Integer.parseInt(args[5]) : 0,
+		    args.length > 6 ? args[6] : null
+	    );
 	} else if("createDatabase".equalsIgnoreCase(args[0])) {
-	    createDatabase(args[1], args[2]);
+	    createDatabase(args[1], args[2], args.length > 3 ? Integer.parseInt(args[3]) : 0, args.length > 4 ? args[4] : null);
+	} else if("updateDatabase".equalsIgnoreCase(args[0])) {
+	    updateDatabase(args[1], args[2], args.length > 3 ? Integer.parseInt(args[3]) : 0, args.length > 4 ? args[4] : null);
+	} else if("exportDatabase".equalsIgnoreCase(args[0])) {
+	    exportDatabase(args[1], args[2]);
+	} else if("generateDatabase".equalsIgnoreCase(args[0])) {
+	    generateDatabase(args[1], args[2], Integer.parseInt(args[3]), args.length > 4 ? Integer.parseInt(args[4]) : 0, args.length > 5 ? args[5] : null);
+	} else if("generateImages".equalsIgnoreCase(args[0])) {
+	    new LibraryGenerator(GENERATOR_SEED).writeImages(new File(args[1]), Integer.parseInt(args[2]));
+	} else if("generateSourceImage".equalsIgnoreCase(args[0])) {
+	    new ImageStorage().storeAsJpeg(new LibraryGenerator(GENERATOR_SEED).sourceImage(Integer.parseInt(args[2]), Integer.parseInt(args[3])), new File(args[1]), 0.95f);
+	}
+
+	final String metricsFile = System.getProperty(METRICS_FILE_PROPERTY);
+	if (metricsFile != null) {
+	    MetricsRegistry.getDefault().writeJson(new File(metricsFile));
 	}
     }
     
@@ -48,59 +99,151 @@ public class Application {
      * 
      * @param baseDir
      * @param databaseFile
+     * @param signatureSize See {@link ImageLibrary#setSignatureSize(int)}
+     * @param thumbnailFile See {@link ImageLibrary#setThumbnailFile(java.io.File)}, may be null
      * @throws IOException 
      */
-    static void createDatabase(String baseDir, String databaseFile) throws IOException {
-	ImageLibrary createNewDatabaseCmd = new ImageLibrary(
+    static void createDatabase(String baseDir, String databaseFile, int signatureSize, String thumbnailFile) throws IOException {
+	try (ImageLibrary createNewDatabaseCmd = new ImageLibrary(
 		baseDir,
 		databaseFile,
 		"\\d{4}-\\d{2}-\\d{2}(_small)?\\.jpg",
 		"yyyy-MM-dd['_small']'.jpg'"
-	);	
-	createNewDatabaseCmd.create();
+	)) {
+	    createNewDatabaseCmd.setSignatureSize(signatureSize);
+	    if (thumbnailFile != null) {
+		createNewDatabaseCmd.setThumbnailFile(new File(thumbnailFile));
+		createNewDatabaseCmd.setThumbnailSize(TILE_WIDTH, TILE_HEIGHT);
+	    }
+	    createNewDatabaseCmd.create();
+	}
     }
 
     /**
-     * Creates a new mosaic. Source image is blend over the tiles for some additional color correction.
+     * Updates an existing image library, only new and changed images are
+     * read.
+     * 
+     * @param baseDir
+     * @param databaseFile
+     * @param signatureSize See {@link ImageLibrary#setSignatureSize(int)}
+     * @param thumbnailFile See {@link ImageLibrary#setThumbnailFile(java.io.File)}, may be null
+     * @throws IOException 
+     */
+    static void updateDatabase(String baseDir, String databaseFile, int signatureSize, String thumbnailFile) throws IOException {
+	try (ImageLibrary imageLibrary = new ImageLibrary(
+		baseDir,
+		databaseFile,
+		"\\d{4}-\\d{2}-\\d{2}(_small)?\\.jpg",
+		"yyyy-MM-dd['_small']'.jpg'"
+	)) {
+	    imageLibrary.setSignatureSize(signatureSize);
+	    if (thumbnailFile != null) {
+		imageLibrary.setThumbnailFile(new File(thumbnailFile));
+		imageLibrary.setThumbnailSize(TILE_WIDTH, TILE_HEIGHT);
+	    }
+	    imageLibrary.update();
+	}
+    }
+
+    /**
+     * Exports an image library into a library file, which can be passed to
+     * {@link #createMosaic(String, String, String, Mosaic.Matching, int, String)}
+     * instead of the database.
      * 
      * @param databaseFile
+     * @param libraryFile
+     * @throws IOException 
+     */
+    static void exportDatabase(String databaseFile, String libraryFile) throws IOException {
+	try (ImageLibrary imageLibrary = new ImageLibrary(
+		".",
+		databaseFile,
+		"\\d{4}-\\d{2}-\\d{2}(_small)?\\.jpg",
+		"yyyy-MM-dd['_small']'.jpg'"
+	)) {
+	    imageLibrary.export(new File(libraryFile));
+	}
+    }
+
+    /**
+     * Creates an image library of generated images for load tests, without
+     * writing the images themselves. Use "generateImages baseDir count" to
+     * write them instead and {@link #createDatabase(String, String, int, String)}
+     * to read them.
+     * 
+     * @param baseDir Base dir of the (virtual) images
+     * @param databaseFile
+     * @param count Number of images
+     * @param signatureSize See {@link ImageLibrary#setSignatureSize(int)}
+     * @param thumbnailFile See {@link ImageLibrary#setThumbnailFile(java.io.File)}, may be null
+     * @throws IOException 
+     */
+    static void generateDatabase(String baseDir, String databaseFile, int count, int signatureSize, String thumbnailFile) throws IOException {
+	try (ImageLibrary imageLibrary = new ImageLibrary(
+		baseDir,
+		databaseFile,
+		"\\d{4}-\\d{2}-\\d{2}(_small)?\\.jpg",
+		"yyyy-MM-dd['_small']'.jpg'"
+	)) {
+	    imageLibrary.setSignatureSize(signatureSize);
+	    if (thumbnailFile != null) {
+		imageLibrary.setThumbnailFile(new File(thumbnailFile));
+		imageLibrary.setThumbnailSize(TILE_WIDTH, TILE_HEIGHT);
+	    }
+	    new LibraryGenerator(GENERATOR_SEED).populate(imageLibrary, count);
+	}
+    }
+
+    /**
+     * Creates a new mosaic. Source image is blend over the tiles for some additional color correction.
+     * 
+     * @param databaseFile The database or a library file exported by
+     * {@link #exportDatabase(String, String)}
      * @param sourceImageFile
      * @param targetFile
+     * @param matching
+     * @param adaptiveLevels See {@link Mosaic#setAdaptiveLevels(int)}
+     * @param thumbnailFile Thumbnails of the library, tiles are read from the
+     * original images if null or if the store doesn't contain them
      * @throws IOException 
      */
-    static void createMosaic(final String databaseFile, final String sourceImageFile, final String targetFile) throws IOException {
-	Mosaic mosaic = new Mosaic(
+    static void createMosaic(final String databaseFile, final String sourceImageFile, final String targetFile, final Mosaic.Matching matching, final int adaptiveLevels, final String thumbnailFile) throws IOException {
+	try (Mosaic mosaic = new Mosaic(
 		databaseFile,
-		sourceImageFile
-	);
-	final List<Tile> tiles = mosaic.create(null);
-	int numTilesHorizontal = tiles.stream().mapToInt(Tile::getX).max().orElse(0);
-	int numTilesVertical = tiles.stream().mapToInt(Tile::getY).max().orElse(0);
-
-	final BufferedImage target = new BufferedImage(numTilesHorizontal * 150, numTilesVertical * 113, BufferedImage.TYPE_INT_RGB);
-
-	final Graphics2D g2 = target.createGraphics();
-	// As much quality as it gets
-	g2.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
-	g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-	g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
-	g2.setRenderingHint(RenderingHints.KEY_COLOR_RENDERING, RenderingHints.VALUE_COLOR_RENDER_QUALITY);
-	g2.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_NORMALIZE);
-	g2.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS, RenderingHints.VALUE_FRACTIONALMETRICS_ON);
-	g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
-	g2.setRenderingHint(RenderingHints.KEY_ALPHA_INTERPOLATION, RenderingHints.VALUE_ALPHA_INTERPOLATION_QUALITY);
-	g2.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS, RenderingHints.VALUE_FRACTIONALMETRICS_ON);
-	g2.drawImage(mosaic.getSourceImage(), 0, 0, target.getWidth(), target.getHeight(), null);
-
-	final AlphaComposite ac = AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 0.7f);
-	g2.setComposite(ac);
-	tiles.forEach(tile -> {
-	    try (AutoCloseableImageReader imageReader = AutoCloseableImageReader.create(new File(tile.getAbsoluteFilename()))) {
-		BufferedImage image = imageReader.read();
-		g2.drawImage(image, null, tile.getX() * image.getWidth(), tile.getY() * image.getHeight());
+		sourceImageFile,
+		matching
+	)) {
+	    mosaic.setParallelism(Runtime.getRuntime().availableProcessors());
+	    mosaic.setAdaptiveLevels(adaptiveLevels);
+	    // Databases are named without their extension
+	    if (new File(databaseFile).isFile()) {
+		mosaic.setLibraryFile(new File(databaseFile));
 	    }
-	});
 
-	new ImageStorage().storeAsJpeg(target, new File(targetFile), 0.95f);
+	    final BufferedImage target;
+	    try (
+		    ThumbnailStore thumbnails = thumbnailFile == null ? null : ThumbnailStore.openReadOnly(new File(thumbnailFile));
+		    MosaicRenderer renderer = new MosaicRenderer(mosaic.getSourceImage(), mosaic.getColumns(), mosaic.getRows(), TILE_WIDTH, TILE_HEIGHT, tile
+			    -> Optional.ofNullable(thumbnails)
+			    .flatMap(store -> store.read(tile.getImageId()))
+			    .orElseGet(() -> {
+				try (AutoCloseableImageReader imageReader = AutoCloseableImageReader.create(new File(tile.getAbsoluteFilename()))) {
+				    return imageReader.read();
+				}
+			    })
+		    )
+	    ) {
+		renderer.setParallelism(Runtime.getRuntime().availableProcessors());
+		renderer.setTileCache(new TileCache(Long.getLong(TILE_CACHE_SIZE_PROPERTY, Runtime.getRuntime().maxMemory() / 4 >> 20) << 20));
+		// Tiles are drawn while the remaining ones are still matched, a
+		// batch contains a band of tiles for every thread
+		mosaic.stream(renderer, mosaic.getColumns() * renderer.getParallelism(), TileStream.DEFAULT_BUFFERED_BATCHES).await();
+		target = renderer.getTarget();
+	    }
+
+	    final long start = System.nanoTime();
+	    new ImageStorage().storeAsJpeg(target, new File(targetFile), 0.95f);
+	    ENCODE_TIME.recordSince(start);
+	}
     }
 }
@@ -3,15 +3,16 @@ package de.dailyfratze.mosaic;
 import de.dailyfratze.mosaic.gui.SimpleFPSCamera;
 import de.dailyfratze.mosaic.images.Mosaic;
 import de.dailyfratze.mosaic.images.Tile;
+import de.dailyfratze.mosaic.images.TileSink;
+import de.dailyfratze.mosaic.images.TileStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 import javafx.application.Application;
 import javafx.application.Platform;
-import javafx.collections.FXCollections;
-import javafx.collections.ListChangeListener.Change;
-import javafx.collections.ObservableList;
 import javafx.concurrent.Task;
 import javafx.scene.Group;
 import javafx.scene.Node;
@@ -87,50 +88,52 @@ public class ApplicationFX extends Application {
 	// The year i started dailyfratze.de
 	final int baseYear = 2005;
 	
-	// Create an observable list, used as a target for the mosaic generator.
-	final ObservableList<Tile> tiles = FXCollections.observableArrayList();
-	// Observe it	
-	tiles.addListener((Change<? extends Tile> change) -> {
-	    while (change.next()) {
-		if (!change.wasAdded()) {
-		    continue;
-		}
-		// Grab all added tiles and map them to image nodes
-		final List<Node> newNodes
-			= change.getAddedSubList()
-			.stream().map((tile) -> {
-			    // Compute spherical projection
-			    double angle1 = Math.toRadians(ringEndDeg - tile.getX() * angleInc);
-			    double x = r * Math.sin(angle1) * Math.cos(angle2);
-			    double z = r * Math.cos(angle1) - (tile.getTakenOn().getYear() - baseYear) * 100;
-			    
-			    final Node rv = createImageView(tile.getAbsoluteFilename());
-			    rv.setTranslateX(x);
-			    rv.setTranslateY(yOffset * (tile.getY() - 12) - yOffsetInitial);
-			    rv.setTranslateZ(z);
-			    
-			    // rotate towards viewer position
-			    final Rotate rx = new Rotate();
-			    rx.setAxis(Rotate.Y_AXIS);
-			    rx.setAngle(Math.toDegrees(-angle1));
-			    rv.getTransforms().addAll(rx);
-			    
-			    // reflection on bottom row
-			    if (tile.getY() == 0) {
-				Reflection refl = new Reflection();
-				refl.setFraction(0.8f);
-				rv.setEffect(refl);
-			    }
-			    rv.setVisible(true);
-			    return rv;
-			}).collect(Collectors.toList());
-
-		// Newly created nodes must be added on the JavaFX application thread.
-		Platform.runLater(() -> {
-		    root.getChildren().addAll(newNodes);
-		});
+	// Receives the tiles on a background thread while they are matched
+	final TileSink tileSink = (List<Tile> tiles) -> {
+	    // Map all tiles to image nodes
+	    final List<Node> newNodes
+		    = tiles
+		    .stream().map((tile) -> {
+			// Compute spherical projection
+			double angle1 = Math.toRadians(ringEndDeg - tile.getX() * angleInc);
+			double x = r * Math.sin(angle1) * Math.cos(angle2);
+			double z = r * Math.cos(angle1) - (tile.getTakenOn().getYear() - baseYear) * 100;
+
+			final Node rv = createImageView(tile.getAbsoluteFilename());
+			rv.setTranslateX(x);
+			rv.setTranslateY(yOffset * (tile.getY() - 12) - yOffsetInitial);
+			rv.setTranslateZ(z);
+
+			// rotate towards viewer position
+			final Rotate rx = new Rotate();
+			rx.setAxis(Rotate.Y_AXIS);
+			rx.setAngle(Math.toDegrees(-angle1));
+			rv.getTransforms().addAll(rx);
+
+			// reflection on bottom row
+			if (tile.getY() == 0) {
+			    Reflection refl = new Reflection();
+			    refl.setFraction(0.8f);
+			    rv.setEffect(refl);
+			}
+			rv.setVisible(true);
+			return rv;
+		    }).collect(Collectors.toList());
+
+	    // Newly created nodes must be added on the JavaFX application thread.
+	    // Wait for it, so that matching doesn't run ahead of the scene.
+	    final CountDownLatch added = new CountDownLatch(1);
+	    Platform.runLater(() -> {
+		root.getChildren().addAll(newNodes);
+		added.countDown();
+	    });
+	    try {
+		added.await();
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		throw new RuntimeException(e);
 	    }
-	});
+	};
 
 	final Scene scene = new Scene(root, 1600, 900, Color.BLACK);
 	fpsCam.loadControlsForScene(scene);
@@ -138,18 +141,42 @@ public class ApplicationFX extends Application {
 
 	final String library = getParameters().getRaw().get(0);
 	final String sourceImage = getParameters().getRaw().get(1);
-	// Start a thread creating the mosaic.
-	final Thread mosaicThread = new Thread(new Task<List<Tile>>() {
+	// Start a thread creating the mosaic once the stage is visible. Reading
+	// the source image and preparing the mosaic takes a while, so it is
+	// done by the thread as well and not on the application thread.
+	final AtomicReference<TileStream> tileStream = new AtomicReference<>();
+	final Task<Void> mosaicTask = new Task<Void>() {
 	    @Override
-	    protected List<Tile> call() throws Exception {
-		final Mosaic mosaic = new Mosaic(library, sourceImage);
-		return mosaic.create(tiles);
+	    protected Void call() throws Exception {
+		try (Mosaic mosaic = new Mosaic(library, sourceImage)) {
+		    synchronized (tileStream) {
+			if (isCancelled()) {
+			    return null;
+			}
+			tileStream.set(mosaic.stream(tileSink));
+		    }
+		    // Keeps the mosaic open until all tiles have been shown or
+		    // the stream has been cancelled
+		    tileStream.get().await();
+		}
+		return null;
 	    }
-	});
+	};
+	final Thread mosaicThread = new Thread(mosaicTask, "mosaic");
+	mosaicThread.setDaemon(true);
 
 	primaryStage.addEventHandler(WindowEvent.WINDOW_SHOWN, (WindowEvent window) -> {
 	    mosaicThread.start();
-	});	
+	});
+	primaryStage.addEventHandler(WindowEvent.WINDOW_HIDDEN, (WindowEvent window) -> {
+	    // The task closes the mosaic as soon as the stream is cancelled
+	    synchronized (tileStream) {
+		mosaicTask.cancel(false);
+		if (tileStream.get() != null) {
+		    tileStream.get().cancel();
+		}
+	    }
+	});
 
 	primaryStage.setScene(scene);
 	primaryStage.show();
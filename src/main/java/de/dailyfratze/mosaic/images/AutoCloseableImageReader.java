@@ -21,7 +21,9 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Iterator;
+import java.util.Optional;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
 import javax.imageio.ImageReader;
 import javax.imageio.stream.ImageInputStream;
 
@@ -78,4 +80,62 @@ public class AutoCloseableImageReader implements AutoCloseable {
 	    throw new RuntimeException(ex);
 	}
     }    
+
+    /**
+     * Reads only every {@code subsampling}th pixel of every
+     * {@code subsampling}th row of the image at index 0. The decoder skips
+     * the other pixels, so time and memory needed are reduced accordingly.
+     *
+     * @param subsampling Distance between read pixels, 1 reads all pixels
+     * @return The subsampled image at index 0
+     */
+    public BufferedImage read(final int subsampling) {
+	if (subsampling == 1) {
+	    return read();
+	}
+	final ImageReadParam param = this.imageReader.getDefaultReadParam();
+	param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+	try {
+	    return this.imageReader.read(0, param);
+	} catch (IOException ex) {
+	    throw new RuntimeException(ex);
+	}
+    }
+
+    /**
+     * Reads the first thumbnail embedded in the image at index 0. For JPEG
+     * images these are JFIF and JFXX thumbnails, thumbnails inside EXIF data
+     * are not supported by the standard reader.
+     *
+     * @return The thumbnail, if any
+     */
+    public Optional<BufferedImage> readThumbnail() {
+	try {
+	    return this.imageReader.getNumThumbnails(0) == 0 ? Optional.empty() : Optional.of(this.imageReader.readThumbnail(0, 0));
+	} catch (IOException ex) {
+	    throw new RuntimeException(ex);
+	}
+    }
+
+    /**
+     * @return The width of the image at index 0, read from its header
+     */
+    public int getWidth() {
+	try {
+	    return this.imageReader.getWidth(0);
+	} catch (IOException ex) {
+	    throw new RuntimeException(ex);
+	}
+    }
+
+    /**
+     * @return The height of the image at index 0, read from its header
+     */
+    public int getHeight() {
+	try {
+	    return this.imageReader.getHeight(0);
+	} catch (IOException ex) {
+	    throw new RuntimeException(ex);
+	}
+    }
 }
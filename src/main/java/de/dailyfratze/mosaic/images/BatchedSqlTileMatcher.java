@@ -0,0 +1,171 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.images;
+
+import de.dailyfratze.mosaic.metrics.Histogram;
+import de.dailyfratze.mosaic.metrics.MetricsRegistry;
+import java.sql.Date;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.jooq.DSLContext;
+import org.jooq.Field;
+import org.jooq.Record;
+import org.jooq.Record5;
+import org.jooq.Result;
+import org.jooq.Select;
+import org.jooq.impl.DSL;
+
+import static de.dailyfratze.mosaic.images.db.tables.Images.IMAGES;
+import static org.jooq.impl.DSL.val;
+
+/**
+ * Still matches inside the database, but retrieves the nearest
+ * {@link #candidatesPerTile} images of all tiles of a row with a single
+ * statement when the row is prepared. The excluded images are then filtered
+ * in Java. Only if all candidates of a tile are excluded, a query for that
+ * single tile is issued.<br>
+ * The version of H2 used doesn't support window functions, so the statement is
+ * a union of one "top n" query per tile.<br>
+ * Candidates are ordered by distance and id, so the result is the same as the
+ * one of the {@link SqlTileMatcher}.
+ *
+ * @author Michael J. Simons, 2015-04-15
+ */
+public class BatchedSqlTileMatcher implements TileMatcher {
+
+    public static final int DEFAULT_CANDIDATES_PER_TILE = 64;
+
+    private static final Field<Integer> TILE_X = DSL.fieldByName(Integer.class, "tile_x");
+
+    private static final Field<Double> DISTANCE = DSL.fieldByName(Double.class, "distance");
+
+    private static final Histogram DB_QUERY_TIME = MetricsRegistry.getDefault().timer("mosaic.db.query.time");
+
+    /**
+     * jOOQ context for "stringless" database access.
+     */
+    private final DSLContext create;
+
+    /**
+     * Number of nearest images retrieved per tile.
+     */
+    private final int candidatesPerTile;
+
+    /**
+     * Used if all candidates of a tile are excluded.
+     */
+    private final SqlTileMatcher sqlTileMatcher;
+
+    /**
+     * Candidates of prepared, not yet matched tiles by position.
+     */
+    private final Map<Long, List<Candidate>> candidates = new ConcurrentHashMap<>();
+
+    public BatchedSqlTileMatcher(final DSLContext create, final int candidatesPerTile) {
+	if (candidatesPerTile < 1) {
+	    throw new IllegalArgumentException("At least one candidate per tile is needed.");
+	}
+	this.create = create;
+	this.candidatesPerTile = candidatesPerTile;
+	this.sqlTileMatcher = new SqlTileMatcher(create);
+    }
+
+    @Override
+    public void prepareRow(final int y, final int[] averageColors) {
+	Select<Record5<Integer, Integer, String, Date, Double>> query = null;
+	for (int x = 0; x < averageColors.length; ++x) {
+	    final double[] lab = CIE94ColorDistance.toLab(averageColors[x]);
+	    final Field<Double> cie94ColorDistance = DSL.function("f_CIE94_color_distance", Double.class,
+		    IMAGES.LAB_L, IMAGES.LAB_A, IMAGES.LAB_B, IMAGES.CHROMA,
+		    val(lab[0]), val(lab[1]), val(lab[2]), val(CIE94ColorDistance.chroma(lab[1], lab[2]))
+	    );
+	    final Select<Record5<Integer, Integer, String, Date, Double>> tileQuery = create
+		    .select(val(x).as(TILE_X.getName()), IMAGES.ID, IMAGES.ABSOLUTE_FILE_NAME, IMAGES.TAKEN_ON, cie94ColorDistance.as(DISTANCE.getName()))
+		    .from(IMAGES)
+		    .orderBy(DISTANCE.asc(), IMAGES.ID.asc())
+		    .limit(candidatesPerTile);
+	    query = query == null ? tileQuery : query.unionAll(tileQuery);
+	}
+	if (query == null) {
+	    return;
+	}
+
+	final long start = System.nanoTime();
+	final Result<Record5<Integer, Integer, String, Date, Double>> result = query.fetch();
+	DB_QUERY_TIME.recordSince(start);
+	final Map<Integer, List<Candidate>> row = new HashMap<>();
+	for (Record record : result) {
+	    row.computeIfAbsent(record.getValue(TILE_X), x -> new ArrayList<>()).add(new Candidate(
+		    record.getValue(DISTANCE),
+		    record.getValue(IMAGES.ID),
+		    record.getValue(IMAGES.ABSOLUTE_FILE_NAME),
+		    record.getValue(IMAGES.TAKEN_ON)
+	    ));
+	}
+	// The order of union parts is not guaranteed, so sort again
+	row.forEach((x, tileCandidates) -> {
+	    tileCandidates.sort(Comparator.comparingDouble((Candidate c) -> c.distance).thenComparingInt(c -> c.id));
+	    candidates.put(key(x, y), tileCandidates);
+	});
+    }
+
+    @Override
+    public Optional<Tile> match(final int x, final int y, final int averageColor, final Set<Integer> excluded) {
+	final List<Candidate> tileCandidates = candidates.remove(key(x, y));
+	if (tileCandidates != null) {
+	    int inspected = 0;
+	    for (Candidate candidate : tileCandidates) {
+		++inspected;
+		if (!excluded.contains(candidate.id)) {
+		    CANDIDATES.record(inspected);
+		    return Optional.of(new Tile(x, y, candidate.id, candidate.absoluteFilename, candidate.takenOn.toLocalDate()));
+		}
+	    }
+	}
+	return sqlTileMatcher.match(x, y, averageColor, excluded);
+    }
+
+    private static long key(final int x, final int y) {
+	return ((long) y << 32) | (x & 0xFFFFFFFFL);
+    }
+
+    /**
+     * A library image near to the color of a tile.
+     */
+    private static final class Candidate {
+
+	private final double distance;
+
+	private final int id;
+
+	private final String absoluteFilename;
+
+	private final Date takenOn;
+
+	Candidate(final double distance, final int id, final String absoluteFilename, final Date takenOn) {
+	    this.distance = distance;
+	    this.id = id;
+	    this.absoluteFilename = absoluteFilename;
+	    this.takenOn = takenOn;
+	}
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.images;
+
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Computes the distance to every image of an in memory library with the batch
+ * variant of {@link CIE94ColorDistance}. Simple and exact, this is the
+ * baseline all other matchers are tested and benchmarked against.
+ *
+ * @author Michael J. Simons, 2015-04-16
+ */
+public class BruteForceTileMatcher implements TileMatcher {
+
+    /**
+     * Distances are computed in blocks of this size, so that the buffer fits
+     * into the cache and doesn't depend on the size of the library.
+     */
+    private static final int BLOCK_SIZE = 1024;
+
+    private final InMemoryLibrary library;
+
+    public BruteForceTileMatcher(final InMemoryLibrary library) {
+	this.library = library;
+    }
+
+    @Override
+    public Optional<Tile> match(final int x, final int y, final int averageColor, final Set<Integer> excluded) {
+	final int[] nearest = nearest(averageColor, 1, excluded);
+	CANDIDATES.record(library.size());
+	return nearest.length == 0 ? Optional.empty() : Optional.of(library.toTile(x, y, nearest[0]));
+    }
+
+    /**
+     * Finds the {@code k} library images nearest to the given color.
+     *
+     * @param averageColor The color to search for
+     * @param k Maximum number of images to return
+     * @param excluded Ids of images that must not be returned
+     * @return Indexes of up to {@code k} images inside the library, ordered by
+     * CIE94 distance and id
+     */
+    int[] nearest(final int averageColor, final int k, final Set<Integer> excluded) {
+	final double[] lab = CIE94ColorDistance.toLab(averageColor);
+	final double chroma = CIE94ColorDistance.chroma(lab[1], lab[2]);
+
+	final int[] indexes = new int[k];
+	final double[] bestDistances = new double[k];
+	int size = 0;
+
+	final double[] distances = new double[BLOCK_SIZE];
+	for (int from = 0; from < library.size(); from += BLOCK_SIZE) {
+	    final int to = Math.min(from + BLOCK_SIZE, library.size());
+	    CIE94ColorDistance.compute(
+		    library.lValues(), library.aValues(), library.bValues(), library.chromaValues(), from, to,
+		    lab[0], lab[1], lab[2], chroma,
+		    distances
+	    );
+	    for (int i = from; i < to; ++i) {
+		final double distance = distances[i - from];
+		// Cheap check first, images are stored ordered by id, so an equally
+		// distant image found later is never better
+		if (size == k && distance >= bestDistances[k - 1]) {
+		    continue;
+		}
+		if (excluded.contains(library.getId(i))) {
+		    continue;
+		}
+		int position = Math.min(size, k - 1);
+		while (position > 0 && distance < bestDistances[position - 1]) {
+		    indexes[position] = indexes[position - 1];
+		    bestDistances[position] = bestDistances[position - 1];
+		    --position;
+		}
+		indexes[position] = i;
+		bestDistances[position] = distance;
+		size = Math.min(size + 1, k);
+	    }
+	}
+	return Arrays.copyOf(indexes, size);
+    }
+}
@@ -24,13 +24,9 @@ package de.dailyfratze.mosaic.images;
  */
 public final class CIE94ColorDistance {
 
-    /**
-     * Standard D65 daylight color coefficients
-     */
-    private static final double[] D65 = {95.047, 100.0, 108.883};
     // CIE94 coefficients for graphic arts
     private static final double kL = 1;
-    private static final double K1 = 0.045;
+    static final double K1 = 0.045;
     private static final double K2 = 0.015;
     // Weighting factors
     private static final double sl = 1.0;
@@ -38,38 +34,16 @@ public final class CIE94ColorDistance {
     private static final double kh = 1.0;
 
     /**
-     * Converts the given color from sRGB color space to CIEL*a*b*<br>
-     * Mathematics from
-     * <a href="http://www.easyrgb.com/index.php?X=MATH">EasyRGB</a> and
-     * <a href="http://www.brucelindbloom.com">Bruce Lindbloom</a>.
+     * Converts the given color from sRGB color space to CIEL*a*b*, see
+     * {@link LabConverter}.
      *
      * @param color Color to convert
      * @return 3-item double array containing L*, a*, b*
      */
     static double[] toLab(final int rgb) {
-	double r = ((rgb >> 16) & 0xFF) / 255.0;
-	double g = ((rgb >> 8) & 0xFF) / 255.0;
-	double b = (rgb & 0xFF) / 255.0;
-
-	r = (r > 0.04045 ? Math.pow((r + 0.055) / 1.055, 2.4) : r / 12.92f) * 100.0;
-	g = (g > 0.04045 ? Math.pow((g + 0.055) / 1.055, 2.4) : g / 12.92f) * 100.0;
-	b = (b > 0.04045 ? Math.pow((b + 0.055) / 1.055, 2.4) : b / 12.92f) * 100.0;
-
-	// Observer 2°, Standard Daylight D65
-	double X, Y, Z;
-	X = r * 0.4124 + g * 0.3576 + b * 0.1805;
-	Y = r * 0.2126 + g * 0.7152 + b * 0.0722;
-	Z = r * 0.0193 + g * 0.1192 + b * 0.9505;
-
-	X /= D65[0];
-	Y /= D65[1];
-	Z /= D65[2];
-
-	X = X > 0.008856 ? Math.pow(X, 1.0 / 3.0) : (7.787 * X) + (16.0 / 116.0);
-	Y = Y > 0.008856 ? Math.pow(Y, 1.0 / 3.0) : (7.787 * Y) + (16.0 / 116.0);
-	Z = Z > 0.008856 ? Math.pow(Z, 1.0 / 3.0) : (7.787 * Z) + (16.0 / 116.0);
-
-	return new double[]{(116 * Y) - 16, 500 * (X - Y), 200 * (Y - Z)};
+	final double[] rv = new double[3];
+	LabConverter.toLab(rgb, rv, 0);
+	return rv;
     }
 
     /**
@@ -84,22 +58,89 @@ public final class CIE94ColorDistance {
 	final double[] lab1 = toLab(rgb1);
 	final double[] lab2 = toLab(rgb2);
 
-	// Make it more readable
-	final double L1 = lab1[0];
-	final double a1 = lab1[1];
-	final double b1 = lab1[2];
-	final double L2 = lab2[0];
-	final double a2 = lab2[1];
-	final double b2 = lab2[2];
+	return compute(
+		lab1[0], lab1[1], lab1[2], chroma(lab1[1], lab1[2]),
+		lab2[0], lab2[1], lab2[2], chroma(lab2[1], lab2[2])
+	);
+    }
+
+    /**
+     * Computes the CIE94 distance between two colors already converted to
+     * L*a*b*. Used with the coordinates stored in the image library so that
+     * the library colors don't have to be converted again and again.
+     *
+     * @param L1 L* of the first color
+     * @param a1 a* of the first color
+     * @param b1 b* of the first color
+     * @param c1 Chroma of the first color, see {@link #chroma(double, double)}
+     * @param L2 L* of the second color
+     * @param a2 a* of the second color
+     * @param b2 b* of the second color
+     * @param c2 Chroma of the second color
+     * @return
+     */
+    public static double compute(final double L1, final double a1, final double b1, final double c1, final double L2, final double a2, final double b2, final double c2) {
+	// See http://en.wikipedia.org/wiki/Color_difference#CIE94
+	final double deltaL = L1 - L2;
+	final double deltaC = c1 - c2;
+	final double deltaA = a1 - a2;
+	final double deltaB = b1 - b2;
+	final double deltaH = Math.sqrt(Math.max(0.0, deltaA * deltaA + deltaB * deltaB - deltaC * deltaC));
+
+	final double termL = deltaL / (kL * sl);
+	final double termC = deltaC / (kc * (1 + K1 * c1));
+	final double termH = deltaH / (kh * (1 + K2 * c1));
+	return Math.sqrt(Math.max(0.0, termL * termL + termC * termC + termH * termH));
+    }
+
+    /**
+     * Computes the CIE94 distances from many colors, stored as separate arrays
+     * of L*, a*, b* and chroma, to a single color. The loop has no branches
+     * and no calls besides intrinsics, so that the JIT can vectorize it. The
+     * results are the same as those of
+     * {@link #compute(double, double, double, double, double, double, double, double)}.
+     *
+     * @param L1 L* of the first colors
+     * @param a1 a* of the first colors
+     * @param b1 b* of the first colors
+     * @param c1 Chroma of the first colors
+     * @param from Index of the first color to compute (inclusive)
+     * @param to Index of the last color to compute (exclusive)
+     * @param L2 L* of the second color
+     * @param a2 a* of the second color
+     * @param b2 b* of the second color
+     * @param c2 Chroma of the second color
+     * @param distances Receives the distance of color {@code from + i} at
+     * index {@code i}
+     */
+    public static void compute(
+	    final double[] L1, final double[] a1, final double[] b1, final double[] c1, final int from, final int to,
+	    final double L2, final double a2, final double b2, final double c2,
+	    final double[] distances
+    ) {
+	for (int i = from; i < to; ++i) {
+	    final double deltaL = L1[i] - L2;
+	    final double deltaC = c1[i] - c2;
+	    final double deltaA = a1[i] - a2;
+	    final double deltaB = b1[i] - b2;
+	    final double deltaH = Math.sqrt(Math.max(0.0, deltaA * deltaA + deltaB * deltaB - deltaC * deltaC));
 
-	// See http://en.wikipedia.org/wiki/Color_difference#CIE94	
-	double c1 = Math.sqrt(a1 * a1 + b1 * b1);
-	double deltaC = c1 - Math.sqrt(a2 * a2 + b2 * b2);
-	double deltaA = a1 - a2;
-	double deltaB = b1 - b2;
-	double deltaH = Math.sqrt(Math.max(0.0, deltaA * deltaA + deltaB * deltaB - deltaC * deltaC));
+	    final double termL = deltaL / (kL * sl);
+	    final double termC = deltaC / (kc * (1 + K1 * c1[i]));
+	    final double termH = deltaH / (kh * (1 + K2 * c1[i]));
+	    distances[i - from] = Math.sqrt(Math.max(0.0, termL * termL + termC * termC + termH * termH));
+	}
+    }
 
-	return Math.sqrt(Math.max(0.0, Math.pow((L1 - L2) / (kL * sl), 2) + Math.pow(deltaC / (kc * (1 + K1 * c1)), 2) + Math.pow(deltaH / (kh * (1 + K2 * c1)), 2.0)));
+    /**
+     * Computes the chroma C*ab of a color in L*a*b*.
+     *
+     * @param a a*
+     * @param b b*
+     * @return
+     */
+    public static double chroma(final double a, final double b) {
+	return Math.sqrt(a * a + b * b);
     }
 
     private CIE94ColorDistance() {
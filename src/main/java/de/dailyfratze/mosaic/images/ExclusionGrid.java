@@ -0,0 +1,125 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.images;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Remembers which image has been placed at which tile position, so that the
+ * images around a tile can be looked up without visiting all tiles placed so
+ * far. A lookup only visits the positions inside the exclusion box and
+ * therefore costs the same, no matter how large the mosaic is.
+ *
+ * @author Michael J. Simons, 2015-04-12
+ */
+final class ExclusionGrid {
+
+    /**
+     * Marks positions without an image.
+     */
+    private static final int EMPTY = -1;
+
+    private final int columns;
+
+    private final int rows;
+
+    /**
+     * An image must not be used again if it has been used at a position at
+     * most this number of tiles away in both directions.
+     */
+    private final int radius;
+
+    /**
+     * Image ids by position, row by row.
+     */
+    private final int[] imageIds;
+
+    ExclusionGrid(final int columns, final int rows, final int radius) {
+	if (radius < 0) {
+	    throw new IllegalArgumentException("Exclusion radius must not be negative.");
+	}
+	this.columns = columns;
+	this.rows = rows;
+	this.radius = radius;
+	this.imageIds = new int[columns * rows];
+	Arrays.fill(imageIds, EMPTY);
+    }
+
+    /**
+     * Records that image {@code imageId} has been placed at {@code x, y}.
+     *
+     * @param x x-position of the tile
+     * @param y y-position of the tile
+     * @param imageId Id of the image
+     */
+    void place(final int x, final int y, final int imageId) {
+	place(x, y, 1, 1, imageId);
+    }
+
+    /**
+     * Records that image {@code imageId} has been placed on a tile covering
+     * {@code width} times {@code height} positions, starting at {@code x, y}.
+     *
+     * @param x x-position of the tile
+     * @param y y-position of the tile
+     * @param width Number of positions covered horizontally
+     * @param height Number of positions covered vertically
+     * @param imageId Id of the image
+     */
+    void place(final int x, final int y, final int width, final int height, final int imageId) {
+	for (int j = y; j < Math.min(y + height, rows); ++j) {
+	    for (int i = x; i < Math.min(x + width, columns); ++i) {
+		imageIds[j * columns + i] = imageId;
+	    }
+	}
+    }
+
+    /**
+     * @param x x-position of the tile
+     * @param y y-position of the tile
+     * @return Ids of all images placed inside the exclusion box around the
+     * given position
+     */
+    Set<Integer> excludedAround(final int x, final int y) {
+	return excludedAround(x, y, 1, 1);
+    }
+
+    /**
+     * @param x x-position of the tile
+     * @param y y-position of the tile
+     * @param width Number of positions covered horizontally
+     * @param height Number of positions covered vertically
+     * @return Ids of all images placed inside the exclusion box around the
+     * given tile
+     */
+    Set<Integer> excludedAround(final int x, final int y, final int width, final int height) {
+	final Set<Integer> rv = new HashSet<>();
+	final int fromX = Math.max(0, x - radius), toX = Math.min(columns - 1, x + width - 1 + radius);
+	final int fromY = Math.max(0, y - radius), toY = Math.min(rows - 1, y + height - 1 + radius);
+	for (int j = fromY; j <= toY; ++j) {
+	    final int offset = j * columns;
+	    for (int i = fromX; i <= toX; ++i) {
+		final int imageId = imageIds[offset + i];
+		if (imageId != EMPTY) {
+		    rv.add(imageId);
+		}
+	    }
+	}
+	return rv;
+    }
+}
@@ -16,42 +16,58 @@
 package de.dailyfratze.mosaic.images;
 
 import de.dailyfratze.mosaic.images.db.tables.records.ImagesRecord;
+import de.dailyfratze.mosaic.images.db.tables.records.QuarantineRecord;
+import de.dailyfratze.mosaic.images.db.tables.records.ScansRecord;
+import de.dailyfratze.mosaic.metrics.Counter;
+import de.dailyfratze.mosaic.metrics.Histogram;
+import de.dailyfratze.mosaic.metrics.MetricsRegistry;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.FileVisitResult;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.attribute.BasicFileAttributes;
 import java.sql.Date;
+import java.sql.Timestamp;
 import java.time.LocalDate;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
-
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
-import javax.sql.DataSource;
 import org.flywaydb.core.Flyway;
-import org.h2.jdbcx.JdbcDataSource;
+import org.flywaydb.core.api.MigrationInfo;
+import org.flywaydb.core.api.MigrationVersion;
+import org.h2.jdbcx.JdbcConnectionPool;
 import org.jooq.DSLContext;
+import org.jooq.Record;
 import org.jooq.SQLDialect;
 import org.jooq.impl.DSL;
 
+import static de.dailyfratze.mosaic.images.db.tables.Images.IMAGES;
+import static de.dailyfratze.mosaic.images.db.tables.Quarantine.QUARANTINE;
+import static de.dailyfratze.mosaic.images.db.tables.Scans.SCANS;
+import static de.dailyfratze.mosaic.images.db.tables.ThumbnailStores.THUMBNAIL_STORES;
 import static java.util.Arrays.stream;
 
 /**
  * Creates a new database of images (an image library) used to create mosaics.
+ * Holds connections to the database until it is closed.
  *
  * @author Michael J. Simons, 2015-03-29
  */
-public class ImageLibrary {
+public class ImageLibrary implements AutoCloseable {
 
     /**
      * UTC Zone
@@ -59,9 +75,50 @@ public class ImageLibrary {
     private static final ZoneId ZONE_ID_UTC = ZoneId.of("UTC");
 
     /**
-     * DataSource for storing image records.
+     * Version of the schema that added {@code SCANS}.
+     */
+    private static final MigrationVersion SCANS_VERSION = MigrationVersion.fromVersion("5");
+
+    private static final Counter FILES_DECODED = MetricsRegistry.getDefault().counter("library.files.decoded");
+
+    private static final Counter FILES_QUARANTINED = MetricsRegistry.getDefault().counter("library.files.quarantined");
+
+    private static final Histogram DECODE_TIME = MetricsRegistry.getDefault().timer("library.decode.time");
+
+    /**
+     * Decode times by the size of the original images in megapixels, see
+     * {@link #DECODE_TIME_LIMITS}.
+     */
+    private static final Histogram[] DECODE_TIME_BY_SIZE = {
+	MetricsRegistry.getDefault().timer("library.decode.time.under-1mp"),
+	MetricsRegistry.getDefault().timer("library.decode.time.1-4mp"),
+	MetricsRegistry.getDefault().timer("library.decode.time.4-16mp"),
+	MetricsRegistry.getDefault().timer("library.decode.time.16mp-and-more")
+    };
+
+    private static final long[] DECODE_TIME_LIMITS = {1_000_000, 4_000_000, 16_000_000};
+
+    private static final Histogram DB_WRITE_TIME = MetricsRegistry.getDefault().timer("library.db.write.time");
+
+    /**
+     * Enough pixels for an average color well within one just noticeable
+     * difference of the one of the full image, see
+     * {@link #setSampledPixels(int)}.
+     */
+    public static final int DEFAULT_SAMPLED_PIXELS = 1 << 16;
+
+    public static final int DEFAULT_QUEUE_SIZE = 256;
+
+    public static final int DEFAULT_THUMBNAIL_WIDTH = 150;
+
+    public static final int DEFAULT_THUMBNAIL_HEIGHT = 113;
+
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
+    /**
+     * Connections to the library, kept open between statements.
      */
-    private final DataSource dataSource;
+    private final JdbcConnectionPool dataSource;
 
     /**
      * jOOQ context for "stringless" database access.
@@ -84,14 +141,69 @@ public class ImageLibrary {
      */
     private final DateTimeFormatter dateTimeFormatter;
 
+    /**
+     * Number of regions per row and column of the stored signatures, 0 for
+     * no signatures.
+     */
+    private int signatureSize = 0;
+
+    /**
+     * Images are subsampled so that at least this number of pixels is read,
+     * 0 for reading all pixels.
+     */
+    private int sampledPixels = DEFAULT_SAMPLED_PIXELS;
+
+    /**
+     * Use embedded thumbnails if they have at least {@link #sampledPixels}
+     * pixels.
+     */
+    private boolean useThumbnails = false;
+
+    /**
+     * Stores images scaled to the size of a tile if not null.
+     */
+    private File thumbnailFile;
+
+    private int thumbnailWidth = DEFAULT_THUMBNAIL_WIDTH;
+
+    private int thumbnailHeight = DEFAULT_THUMBNAIL_HEIGHT;
+
+    /**
+     * Number of directories listed at once.
+     */
+    private int walkThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Number of threads decoding images.
+     */
+    private int decodeThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Number of files found but not yet decoded.
+     */
+    private int decodeQueueSize = DEFAULT_QUEUE_SIZE;
+
+    /**
+     * Number of threads storing records.
+     */
+    private int insertThreads = 1;
+
+    /**
+     * Number of records decoded but not yet stored.
+     */
+    private int insertQueueSize = DEFAULT_QUEUE_SIZE;
+
+    /**
+     * Number of records stored and committed together.
+     */
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
     public ImageLibrary(String baseDir, String databaseFile, String filenamePattern, String dateFormat) {
 
 	// TODO check for invalid paths and stuff
 	final String databaseUrl = String.format("jdbc:h2:file:%s;FILE_LOCK=FS", databaseFile);
 
-	final JdbcDataSource jdbcDataSource = new JdbcDataSource();
-	jdbcDataSource.setUrl(databaseUrl);
-	this.dataSource = jdbcDataSource;
+	this.dataSource = JdbcConnectionPool.create(databaseUrl, "", "");
 	this.create = DSL.using(dataSource, SQLDialect.H2);
 
 	this.baseDir = new File(baseDir);
@@ -99,6 +211,192 @@ public class ImageLibrary {
 	this.dateTimeFormatter = DateTimeFormatter.ofPattern(dateFormat, Locale.ENGLISH);
     }
 
+    public File getBaseDir() {
+	return baseDir;
+    }
+
+    public int getSignatureSize() {
+	return signatureSize;
+    }
+
+    /**
+     * Enables storing a signature for each image: The average colors of a
+     * grid of {@code signatureSize} times {@code signatureSize} regions, used
+     * by {@link Mosaic.Matching#SIGNATURE}.
+     *
+     * @param signatureSize 2 or 3 for a 2x2 or 3x3 grid, 0 for no signatures
+     */
+    public void setSignatureSize(final int signatureSize) {
+	if (signatureSize != 0 && signatureSize != 2 && signatureSize != 3) {
+	    throw new IllegalArgumentException("Signature size must be 0, 2 or 3.");
+	}
+	this.signatureSize = signatureSize;
+    }
+
+    public int getSampledPixels() {
+	return sampledPixels;
+    }
+
+    /**
+     * Sets the accuracy of the average colors and signatures: Images are
+     * decoded with the largest subsampling that still yields at least
+     * {@code sampledPixels} pixels. The error of the average color shrinks
+     * with the square root of the number of pixels read. With the default,
+     * the CIE94 distance to the average of the full image is below 1 for the
+     * test images, most of it caused by rounding the averages to 8 bit per
+     * channel.
+     *
+     * @param sampledPixels Minimum number of pixels read per image, 0 to
+     * read all pixels
+     */
+    public void setSampledPixels(final int sampledPixels) {
+	if (sampledPixels < 0) {
+	    throw new IllegalArgumentException("Number of sampled pixels must not be negative.");
+	}
+	this.sampledPixels = sampledPixels;
+    }
+
+    public boolean isUseThumbnails() {
+	return useThumbnails;
+    }
+
+    /**
+     * @param useThumbnails True, if thumbnails embedded in the images should
+     * be used instead of the images if they have at least
+     * {@link #getSampledPixels()} pixels
+     */
+    public void setUseThumbnails(final boolean useThumbnails) {
+	this.useThumbnails = useThumbnails;
+    }
+
+    public File getThumbnailFile() {
+	return thumbnailFile;
+    }
+
+    /**
+     * Enables storing all images scaled to the size of a tile while scanning,
+     * see {@link ThumbnailStore}. New images get their ids from the identity
+     * of the database before they are stored, the ids are also their
+     * position in the store.<br>
+     * The library records the store it keeps up to date. Once recorded, the
+     * library can't be updated without it anymore, as the store would miss
+     * the changes.
+     *
+     * @param thumbnailFile The store, null for no thumbnails
+     */
+    public void setThumbnailFile(final File thumbnailFile) {
+	this.thumbnailFile = thumbnailFile;
+    }
+
+    public int getThumbnailWidth() {
+	return thumbnailWidth;
+    }
+
+    public int getThumbnailHeight() {
+	return thumbnailHeight;
+    }
+
+    /**
+     * @param thumbnailWidth Width of the stored thumbnails in pixels
+     * @param thumbnailHeight Height of the stored thumbnails in pixels
+     */
+    public void setThumbnailSize(final int thumbnailWidth, final int thumbnailHeight) {
+	if (thumbnailWidth < 1 || thumbnailHeight < 1) {
+	    throw new IllegalArgumentException("Thumbnails must be at least 1x1 pixel.");
+	}
+	this.thumbnailWidth = thumbnailWidth;
+	this.thumbnailHeight = thumbnailHeight;
+    }
+
+    public int getWalkThreads() {
+	return walkThreads;
+    }
+
+    /**
+     * @param walkThreads Number of directories listed at once, defaults to the
+     * number of processors. Network mounted libraries benefit from more.
+     */
+    public void setWalkThreads(final int walkThreads) {
+	if (walkThreads < 1) {
+	    throw new IllegalArgumentException("At least one thread must walk the library.");
+	}
+	this.walkThreads = walkThreads;
+    }
+
+    public int getDecodeThreads() {
+	return decodeThreads;
+    }
+
+    /**
+     * @param decodeThreads Number of threads decoding images, defaults to the
+     * number of processors
+     */
+    public void setDecodeThreads(final int decodeThreads) {
+	if (decodeThreads < 1) {
+	    throw new IllegalArgumentException("At least one thread must decode images.");
+	}
+	this.decodeThreads = decodeThreads;
+    }
+
+    public int getDecodeQueueSize() {
+	return decodeQueueSize;
+    }
+
+    /**
+     * @param decodeQueueSize Maximum number of files found but not yet
+     * decoded, the walk waits if decoding falls behind
+     */
+    public void setDecodeQueueSize(final int decodeQueueSize) {
+	if (decodeQueueSize < 1) {
+	    throw new IllegalArgumentException("Decode queue size must be at least 1.");
+	}
+	this.decodeQueueSize = decodeQueueSize;
+    }
+
+    public int getInsertThreads() {
+	return insertThreads;
+    }
+
+    /**
+     * @param insertThreads Number of threads storing records, each with its
+     * own connection
+     */
+    public void setInsertThreads(final int insertThreads) {
+	if (insertThreads < 1) {
+	    throw new IllegalArgumentException("At least one thread must store records.");
+	}
+	this.insertThreads = insertThreads;
+    }
+
+    public int getInsertQueueSize() {
+	return insertQueueSize;
+    }
+
+    /**
+     * @param insertQueueSize Maximum number of records decoded but not yet
+     * stored, decoding waits if storing falls behind
+     */
+    public void setInsertQueueSize(final int insertQueueSize) {
+	if (insertQueueSize < 1) {
+	    throw new IllegalArgumentException("Insert queue size must be at least 1.");
+	}
+	this.insertQueueSize = insertQueueSize;
+    }
+
+    public int getBatchSize() {
+	return batchSize;
+    }
+
+    /**
+     * @param batchSize Number of records stored and committed together
+     */
+    public void setBatchSize(final int batchSize) {
+	if (batchSize < 1) {
+	    throw new IllegalArgumentException("Batch size must be at least 1.");
+	}
+	this.batchSize = batchSize;
+    }
+
     /**
      * Opens connection and creates the schema via Flyway api
      */
@@ -106,59 +404,260 @@ public class ImageLibrary {
 	final Flyway flyway = new Flyway();
 	flyway.setDataSource(this.dataSource);
 	flyway.clean();
+	migrateDatabase();
+    }
+
+    /**
+     * Brings the schema of an existing database up to date without deleting
+     * anything.
+     */
+    void migrateDatabase() {
+	final Flyway flyway = new Flyway();
+	flyway.setDataSource(this.dataSource);
 	flyway.migrate();
 	// Could be done in a migration, but not through
-	// maven because CIE94ColorDistance doesn't exist yet
+	// maven because CIE94ColorDistance doesn't exist yet.
+	// The alias maps both the rgb and the L*a*b* variant.
 	create.execute("create alias if not exists f_CIE94_color_distance deterministic for \"de.dailyfratze.mosaic.images.CIE94ColorDistance.compute\"");
+	fillLabCoordinates();
+    }
+
+    /**
+     * Computes the L*a*b* coordinates and chroma of images stored before
+     * they have been part of the library, from their average color.
+     */
+    private void fillLabCoordinates() {
+	int filled = 0;
+	List<ImagesRecord> records;
+	while (!(records = create.selectFrom(IMAGES).where(IMAGES.LAB_L.isNull()).limit(batchSize).fetch()).isEmpty()) {
+	    records.forEach(record -> setAverageColor(record, record.getAverageColor()));
+	    create.batchStore(records).execute();
+	    filled += records.size();
+	}
+	if (filled > 0) {
+	    Logger.getLogger(ImageLibrary.class.getName()).log(Level.INFO, "Computed L*a*b* coordinates of {0} images", new Object[]{filled});
+	}
     }
 
     /**
-     * Scans a path for files matching the given pattern. Assumes all files are
-     * readable images and converts them to {@link ImageRecord ImageRecords}.
+     * Passes all files below {@link #baseDir} matching the filename pattern to
+     * the given consumer while walking the tree with {@link #walkThreads}
+     * threads.
      *
-     * @return
+     * @param files Receives the files, called concurrently
      * @throws IOException
      */
-    List<ImagesRecord> scanTree() throws IOException {
-	final List<Path> files = new ArrayList<>();
-	// Get a list of all files matching our... Nice addition to standard API
-	Files.walkFileTree(baseDir.toPath(), new SimpleFileVisitor<Path>() {
-	    @Override
-	    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-		if (attrs.isRegularFile() && filenamePattern.matcher(file.getFileName().toString()).matches()) {
-		    files.add(file);
-		}
-		return FileVisitResult.CONTINUE;
-	    }
+    void walk(final Consumer<File> files) throws IOException {
+	new ParallelFileWalker(walkThreads, filenamePattern).walk(baseDir.toPath(), files);
+    }
+
+    /**
+     * Decodes the given file and converts it to an image record. Assumes the
+     * file is a readable image.
+     *
+     * @param file A readable image
+     * @return A new record
+     */
+    ImagesRecord toRecord(final File file) {
+	return toRecord(file, image -> {
 	});
+    }
 
-	// Create a list of image records
-	// Insert could be done in single steps, but i want to use batches
-	return files
-		.stream()
-		.parallel()
-		.map(Path::toFile)
-		.map(file -> {
-		    final ImagesRecord record = new ImagesRecord();
-		    record.setAbsoluteFileName(file.getAbsolutePath());
-		    record.setTakenOn(new Date(dateTimeFormatter.parse(file.getName(), LocalDate::from).atStartOfDay(ZONE_ID_UTC).toInstant().toEpochMilli()));
-		    try (AutoCloseableImageReader reader = AutoCloseableImageReader.create(file)) {
-			final BufferedImage image = reader.read();
-			final int width = image.getWidth();
-			final int height = image.getHeight();
-			// This one is cool... Grab the rgb value of all pixels as array, stream it 
-			// and reduce it with the RGBAverage
-			record.setAverageColor(
-				stream(image.getRGB(0, 0, width, height, null, 0, width))
-					.parallel()
-					.collect(RGBAverage::new, RGBAverage::accept, RGBAverage::combine)
-					.value()
-			);
-		    }
-		    return record;
-		}).collect(Collectors.toList());	
+    /**
+     * Decodes the given file and converts it to an image record. Assumes the
+     * file is a readable image.
+     *
+     * @param file A readable image
+     * @param sampledImage Receives the image as read by
+     * {@link #readSampled(AutoCloseableImageReader)}
+     * @return A new record
+     */
+    ImagesRecord toRecord(final File file, final Consumer<BufferedImage> sampledImage) {
+	final ImagesRecord record = new ImagesRecord();
+	record.setAbsoluteFileName(file.getAbsolutePath());
+	record.setTakenOn(toDate(dateTimeFormatter.parse(file.getName(), LocalDate::from)));
+	record.setFileSize(file.length());
+	record.setLastModified(new Timestamp(file.lastModified()));
+	final long start = System.nanoTime();
+	try (AutoCloseableImageReader reader = AutoCloseableImageReader.create(file)) {
+	    final BufferedImage image = readSampled(reader);
+	    final int width = image.getWidth();
+	    final int height = image.getHeight();
+	    // This one is cool... Grab the rgb value of all pixels as array, stream it 
+	    // and reduce it with the RGBAverage
+	    setAverageColor(record,
+		    stream(image.getRGB(0, 0, width, height, null, 0, width))
+			    .collect(RGBAverage::new, RGBAverage::accept, RGBAverage::combine)
+			    .value()
+	    );
+	    if (signatureSize > 0) {
+		setSignature(record, computeSignature(image, signatureSize));
+	    }
+	    // Storing a thumbnail isn't part of decoding
+	    final long elapsed = System.nanoTime() - start;
+	    sampledImage.accept(image);
+	    final long pixels = (long) reader.getWidth() * reader.getHeight();
+	    int sizeClass = 0;
+	    while (sizeClass < DECODE_TIME_LIMITS.length && pixels >= DECODE_TIME_LIMITS[sizeClass]) {
+		++sizeClass;
+	    }
+	    DECODE_TIME.record(elapsed);
+	    DECODE_TIME_BY_SIZE[sizeClass].record(elapsed);
+	    FILES_DECODED.increment();
+	}
+	return record;
+    }
+
+    /**
+     * @return A pipeline configured with the settings of this library
+     */
+    IngestionPipeline newPipeline() {
+	// Quarantining decoders and inserters need a connection at the same time
+	dataSource.setMaxConnections(Math.max(dataSource.getMaxConnections(), decodeThreads + insertThreads + 1));
+	return new IngestionPipeline(decodeThreads, decodeQueueSize, insertThreads, insertQueueSize, batchSize);
     }
-    
+
+    /**
+     * Reads an image with the accuracy configured by
+     * {@link #setSampledPixels(int)} and {@link #setUseThumbnails(boolean)}.
+     *
+     * @param reader Reader of the image
+     * @return The image, its thumbnail or a subsampled version of it
+     */
+    BufferedImage readSampled(final AutoCloseableImageReader reader) {
+	if (sampledPixels == 0) {
+	    return reader.read();
+	}
+	// Stored thumbnails are scaled down from at least twice their size
+	final int minimumPixels = thumbnailFile == null ? sampledPixels : Math.max(sampledPixels, 4 * thumbnailWidth * thumbnailHeight);
+	if (useThumbnails) {
+	    final Optional<BufferedImage> thumbnail = reader.readThumbnail()
+		    .filter(image -> (long) image.getWidth() * image.getHeight() >= minimumPixels);
+	    if (thumbnail.isPresent()) {
+		return thumbnail.get();
+	    }
+	}
+	return reader.read(subsampling(reader.getWidth(), reader.getHeight(), minimumPixels));
+    }
+
+    /**
+     * @return The largest subsampling of an image with the given size that
+     * still yields at least {@code sampledPixels} pixels
+     */
+    static int subsampling(final int width, final int height, final int sampledPixels) {
+	// Every subsampling up to this estimate yields enough pixels, larger
+	// ones may as well because partial rows and columns count
+	int rv = (int) Math.max(1, Math.sqrt((double) width * height / sampledPixels));
+	while (rv < Math.max(width, height) && (long) ((width + rv) / (rv + 1)) * ((height + rv) / (rv + 1)) >= sampledPixels) {
+	    ++rv;
+	}
+	return rv;
+    }
+
+    /**
+     * @return True, if size or modification time of {@code file} differ from
+     * the ones recorded in {@code record} or haven't been recorded at all
+     */
+    static boolean isModified(final ImagesRecord record, final File file) {
+	return isModified(record.getFileSize(), record.getLastModified(), file);
+    }
+
+    /**
+     * @return True, if size or modification time of {@code file} differ from
+     * the given ones or those are unknown
+     */
+    static boolean isModified(final Long fileSize, final Timestamp lastModified, final File file) {
+	return fileSize == null || lastModified == null
+		|| fileSize != file.length()
+		|| lastModified.getTime() != file.lastModified();
+    }
+
+    /**
+     * @param day A day
+     * @return The start of that day in UTC, the way dates are stored
+     */
+    static Date toDate(final LocalDate day) {
+	return new Date(day.atStartOfDay(ZONE_ID_UTC).toInstant().toEpochMilli());
+    }
+
+    /**
+     * Stores the average color of an image together with its L*a*b*
+     * coordinates and chroma, so that matching doesn't need to convert the
+     * library colors over and over again.
+     *
+     * @param record The record to update
+     * @param averageColor The average rgb color of the image
+     */
+    static void setAverageColor(final ImagesRecord record, final int averageColor) {
+	final double[] lab = CIE94ColorDistance.toLab(averageColor);
+	record.setAverageColor(averageColor);
+	record.setLabL(lab[0]);
+	record.setLabA(lab[1]);
+	record.setLabB(lab[2]);
+	record.setChroma(CIE94ColorDistance.chroma(lab[1], lab[2]));
+    }
+
+    /**
+     * Computes the average colors of {@code size} times {@code size} regions
+     * of the given image in one pass over all pixels. The region in column
+     * {@code i} spans from {@code i * width / size} to
+     * {@code (i + 1) * width / size}, rows likewise.
+     *
+     * @param image The image
+     * @param size Number of regions per row and column
+     * @return The average rgb colors of all regions, row by row
+     */
+    static int[] computeSignature(final BufferedImage image, final int size) {
+	final int width = image.getWidth();
+	final int height = image.getHeight();
+	final int[] columnToRegion = new int[width];
+	for (int x = 0; x < width; ++x) {
+	    // Largest i with i * width / size <= x
+	    int i = (int) ((long) x * size / width);
+	    while (i + 1 < size && (long) (i + 1) * width / size <= x) {
+		++i;
+	    }
+	    columnToRegion[x] = i;
+	}
+
+	final long[] r = new long[size * size], g = new long[size * size], b = new long[size * size], cnt = new long[size * size];
+	final int[] pixels = new int[width];
+	int j = 0;
+	for (int y = 0; y < height; ++y) {
+	    while (j + 1 < size && (long) (j + 1) * height / size <= y) {
+		++j;
+	    }
+	    image.getRGB(0, y, width, 1, pixels, 0, width);
+	    for (int x = 0; x < width; ++x) {
+		final int region = j * size + columnToRegion[x];
+		final int rgb = pixels[x];
+		r[region] += (rgb >> 16) & 0xFF;
+		g[region] += (rgb >> 8) & 0xFF;
+		b[region] += rgb & 0xFF;
+		++cnt[region];
+	    }
+	}
+
+	final int[] rv = new int[size * size];
+	for (int region = 0; region < rv.length; ++region) {
+	    final long n = Math.max(1, cnt[region]);
+	    rv[region] = 0xFF000000 | (int) (r[region] / n) << 16 | (int) (g[region] / n) << 8 | (int) (b[region] / n);
+	}
+	return rv;
+    }
+
+    /**
+     * Stores the signature of an image as big endian ints.
+     *
+     * @param record The record to update
+     * @param signature The average rgb colors of the regions, row by row
+     */
+    static void setSignature(final ImagesRecord record, final int[] signature) {
+	final ByteBuffer buffer = ByteBuffer.allocate(signature.length * 4);
+	buffer.asIntBuffer().put(signature);
+	record.setSignature(buffer.array());
+    }
+
     /**
      * Uses jOOQ batch API for fast storage
      * @param records 
@@ -166,15 +665,296 @@ public class ImageLibrary {
     void storeImageRecords(final List<ImagesRecord> records) {
 	// Using pretty sweet jOOQ batch api
 	create.batchInsert(records).execute();
-	Logger.getLogger(ImageLibrary.class.getName()).log(Level.INFO, "Created database containing {0} images", new Object[]{records.size()});
+	Logger.getLogger(ImageLibrary.class.getName()).log(Level.FINE, "Stored {0} images", new Object[]{records.size()});
     }
 
     /**
-     * Public api for creating new image databases.
+     * Public api for updating an existing image database, or creating it if
+     * it doesn't exist: Only new files and files whose size or modification
+     * time changed are decoded, rows of files that don't exist anymore are
+     * deleted. Existing images keep their ids, so that mosaics created before
+     * stay valid.<br>
+     * Changes are committed batch by batch while scanning, deletions after
+     * the whole tree has been scanned. An interrupted update therefore only
+     * needs to be repeated.
+     *
+     * @throws IOException
+     * @throws IllegalStateException if the library keeps a thumbnail store
+     * but no thumbnail file is set
+     */
+    public void update() throws IOException {
+	migrateDatabase();
+	scan();
+    }
+
+    /**
+     * Public api for exporting the library into a file that can be used for
+     * creating mosaics without the database, see
+     * {@link Mosaic#setLibraryFile(File)}. The file has to be exported again
+     * after the library has been updated.
+     *
+     * @param libraryFile Target file
+     * @throws IOException
+     */
+    public void export(final File libraryFile) throws IOException {
+	migrateDatabase();
+	final InMemoryLibrary library = InMemoryLibrary.load(create);
+	LibraryFile.write(library, libraryFile);
+	Logger.getLogger(ImageLibrary.class.getName()).log(Level.INFO, "Exported {0} images to {1}", new Object[]{library.size(), libraryFile});
+    }
+
+    /**
+     * Public api for creating new image databases. Images are stored batch by
+     * batch while scanning, so they are visible before the scan is finished.
+     * If the last scan of the same base dir didn't finish, it is resumed
+     * instead: Images already stored or quarantined are not read again.
+     *
      * @throws IOException 
      */
     public void create() throws IOException {
-	createDatabase();
-	storeImageRecords(scanTree());	
-    }    
+	ScansRecord scan = null;
+	// Older libraries are rebuilt without being migrated first
+	if (hasScans()) {
+	    migrateDatabase();
+	    scan = create.selectFrom(SCANS).orderBy(SCANS.ID.desc()).limit(1).fetchOne();
+	}
+	if (scan != null && scan.getFinishedOn() == null && baseDir.getAbsolutePath().equals(scan.getBaseDir())) {
+	    Logger.getLogger(ImageLibrary.class.getName()).log(Level.INFO, "Resuming scan started on {0}", new Object[]{scan.getStartedOn()});
+	} else {
+	    createDatabase();
+	    if (thumbnailFile != null) {
+		Files.deleteIfExists(thumbnailFile.toPath());
+	    }
+	    scan = create.newRecord(SCANS);
+	    scan.setBaseDir(baseDir.getAbsolutePath());
+	    scan.setStartedOn(new Timestamp(System.currentTimeMillis()));
+	    scan.store();
+	}
+	scan();
+	scan.setFinishedOn(new Timestamp(System.currentTimeMillis()));
+	scan.store();
+    }
+
+    /**
+     * @return True, if the schema of the database already contains the scans,
+     * read from the schema history without migrating
+     */
+    private boolean hasScans() {
+	final Flyway flyway = new Flyway();
+	flyway.setDataSource(this.dataSource);
+	final MigrationInfo current = flyway.info().current();
+	return current != null && current.getVersion().compareTo(SCANS_VERSION) >= 0;
+    }
+
+    /**
+     * Decodes and stores all files that are new or have been modified since
+     * they were stored or quarantined, deletes images and quarantined files
+     * that don't exist anymore. Thumbnails of deleted and quarantined images
+     * are removed from the store. Files that can't be decoded are quarantined
+     * and don't abort the scan.
+     *
+     * @throws IOException
+     */
+    private void scan() throws IOException {
+	recordThumbnailStore();
+	try (ThumbnailStore thumbnails = thumbnailFile == null ? null : ThumbnailStore.open(thumbnailFile, thumbnailWidth, thumbnailHeight)) {
+	    scan(thumbnails);
+	}
+    }
+
+    /**
+     * Records {@link #thumbnailFile} as the store of this library.
+     *
+     * @throws IllegalStateException if no thumbnail file is set but the
+     * library already keeps a store
+     */
+    void recordThumbnailStore() {
+	final String recordedFile = create.select(THUMBNAIL_STORES.ABSOLUTE_FILE_NAME).from(THUMBNAIL_STORES).fetchOne(THUMBNAIL_STORES.ABSOLUTE_FILE_NAME);
+	if (thumbnailFile == null) {
+	    if (recordedFile != null) {
+		throw new IllegalStateException(String.format("Thumbnails of this library are stored in %s, which has to be set as thumbnail file to keep it up to date.", recordedFile));
+	    }
+	} else if (!thumbnailFile.getAbsolutePath().equals(recordedFile)) {
+	    create.transaction(configuration -> {
+		final DSLContext tx = DSL.using(configuration);
+		tx.delete(THUMBNAIL_STORES).execute();
+		tx.insertInto(THUMBNAIL_STORES, THUMBNAIL_STORES.ABSOLUTE_FILE_NAME).values(thumbnailFile.getAbsolutePath()).execute();
+	    });
+	}
+    }
+
+    /**
+     * @return Qualified name of the sequence of the identity column of the
+     * images
+     */
+    private String imageIdSequence() {
+	final Record column = create.fetchOne("select table_schema, sequence_name from information_schema.columns where table_name = 'IMAGES' and column_name = 'ID'");
+	return String.format("\"%s\".\"%s\"", column.getValue(0, String.class), column.getValue(1, String.class));
+    }
+
+    /**
+     * Takes the id of a new image from the identity of the images, like an
+     * insert without id would. Ids of deleted images are therefore never
+     * reused, not even the highest one, and mosaics created before keep
+     * referring to the images they have been created with.
+     *
+     * @param idSequence See {@link #imageIdSequence()}
+     * @return A new id
+     */
+    private int nextImageId(final String idSequence) {
+	return create.fetchOne("select next value for " + idSequence).getValue(0, Integer.class);
+    }
+
+    /**
+     * @param thumbnails Receives the images scaled to the size of a tile,
+     * may be null
+     * @throws IOException
+     */
+    private void scan(final ThumbnailStore thumbnails) throws IOException {
+	// Only what's needed to detect modifications
+	final Map<String, ImagesRecord> existingRecords = create
+		.select(IMAGES.ID, IMAGES.ABSOLUTE_FILE_NAME, IMAGES.FILE_SIZE, IMAGES.LAST_MODIFIED)
+		.from(IMAGES)
+		.fetch()
+		.into(IMAGES)
+		.stream()
+		.collect(Collectors.toMap(ImagesRecord::getAbsoluteFileName, Function.identity()));
+	final Map<String, QuarantineRecord> quarantinedFiles = create
+		.select(QUARANTINE.ID, QUARANTINE.ABSOLUTE_FILE_NAME, QUARANTINE.FILE_SIZE, QUARANTINE.LAST_MODIFIED)
+		.from(QUARANTINE)
+		.fetch()
+		.into(QUARANTINE)
+		.stream()
+		.collect(Collectors.toMap(QuarantineRecord::getAbsoluteFileName, Function.identity()));
+	final Set<String> existingFiles = ConcurrentHashMap.newKeySet();
+	final AtomicInteger newImages = new AtomicInteger();
+	final AtomicInteger changedImages = new AtomicInteger();
+	final AtomicInteger quarantinedImages = new AtomicInteger();
+	// Ids of new images if they need to be known before they are stored
+	final String idSequence = thumbnails == null ? null : imageIdSequence();
+
+	newPipeline().run(
+		files -> walk(file -> {
+		    final String absoluteFilename = file.getAbsolutePath();
+		    existingFiles.add(absoluteFilename);
+		    final QuarantineRecord quarantined = quarantinedFiles.get(absoluteFilename);
+		    if (quarantined != null && !isModified(quarantined.getFileSize(), quarantined.getLastModified(), file)) {
+			return;
+		    }
+		    final ImagesRecord record = existingRecords.get(absoluteFilename);
+		    if (record == null || isModified(record, file)) {
+			files.accept(file);
+		    }
+		}),
+		file -> {
+		    final ImagesRecord existingRecord = existingRecords.get(file.getAbsolutePath());
+		    final int id = thumbnails == null ? 0 : existingRecord == null ? nextImageId(idSequence) : existingRecord.getId();
+		    try {
+			if (thumbnails == null) {
+			    return toRecord(file);
+			}
+			final ImagesRecord record = toRecord(file, image -> thumbnails.write(id, image));
+			record.setId(id);
+			return record;
+		    } catch (RuntimeException | OutOfMemoryError e) {
+			// The memory of a single huge image is available again
+			// as soon as decoding it has been abandoned
+			if (thumbnails != null) {
+			    thumbnails.remove(id);
+			}
+			quarantine(file, e);
+			quarantinedImages.incrementAndGet();
+			FILES_QUARANTINED.increment();
+			return null;
+		    }
+		},
+		records -> {
+		    final List<ImagesRecord> newRecords = new ArrayList<>();
+		    final List<ImagesRecord> updatedRecords = new ArrayList<>();
+		    final List<String> recoveredFiles = new ArrayList<>();
+		    for (ImagesRecord record : records) {
+			final ImagesRecord existingRecord = existingRecords.get(record.getAbsoluteFileName());
+			if (existingRecord == null) {
+			    newRecords.add(record);
+			} else {
+			    // Keep the id, but take all new values
+			    final ImagesRecord updatedRecord = create.newRecord(IMAGES);
+			    updatedRecord.from(record);
+			    updatedRecord.setId(existingRecord.getId());
+			    updatedRecord.changed(IMAGES.ID, false);
+			    updatedRecords.add(updatedRecord);
+			}
+			if (quarantinedFiles.containsKey(record.getAbsoluteFileName())) {
+			    recoveredFiles.add(record.getAbsoluteFileName());
+			}
+		    }
+		    final long start = System.nanoTime();
+		    if (!updatedRecords.isEmpty()) {
+			create.batchUpdate(updatedRecords).execute();
+		    }
+		    if (!newRecords.isEmpty()) {
+			create.batchInsert(newRecords).execute();
+		    }
+		    if (!recoveredFiles.isEmpty()) {
+			create.delete(QUARANTINE).where(QUARANTINE.ABSOLUTE_FILE_NAME.in(recoveredFiles)).execute();
+		    }
+		    DB_WRITE_TIME.recordSince(start);
+		    newImages.addAndGet(newRecords.size());
+		    changedImages.addAndGet(updatedRecords.size());
+		}
+	);
+
+	final List<Integer> deletedIds = existingRecords.values().stream()
+		.filter(record -> !existingFiles.contains(record.getAbsoluteFileName()))
+		.map(ImagesRecord::getId)
+		.collect(Collectors.toList());
+	if (!deletedIds.isEmpty()) {
+	    if (thumbnails != null) {
+		deletedIds.forEach(thumbnails::remove);
+	    }
+	    create.delete(IMAGES).where(IMAGES.ID.in(deletedIds)).execute();
+	}
+	final List<Integer> deletedQuarantineIds = quarantinedFiles.values().stream()
+		.filter(record -> !existingFiles.contains(record.getAbsoluteFileName()))
+		.map(QuarantineRecord::getId)
+		.collect(Collectors.toList());
+	if (!deletedQuarantineIds.isEmpty()) {
+	    create.delete(QUARANTINE).where(QUARANTINE.ID.in(deletedQuarantineIds)).execute();
+	}
+	Logger.getLogger(ImageLibrary.class.getName()).log(Level.INFO, "Scanned library: {0} new, {1} changed, {2} deleted and {3} quarantined images", new Object[]{newImages.get(), changedImages.get(), deletedIds.size(), quarantinedImages.get()});
+    }
+
+    /**
+     * Records a file that couldn't be decoded, so that it isn't read again
+     * until it is modified. A stored image of an older version of the file is
+     * deleted.
+     *
+     * @param file The file
+     * @param cause The reason
+     */
+    private void quarantine(final File file, final Throwable cause) {
+	Logger.getLogger(ImageLibrary.class.getName()).log(Level.WARNING, "Quarantining " + file.getAbsolutePath(), cause);
+	final String reason = String.valueOf(cause);
+	create.transaction(configuration -> {
+	    final DSLContext tx = DSL.using(configuration);
+	    tx.delete(IMAGES).where(IMAGES.ABSOLUTE_FILE_NAME.eq(file.getAbsolutePath())).execute();
+	    tx.mergeInto(QUARANTINE, QUARANTINE.ABSOLUTE_FILE_NAME, QUARANTINE.FILE_SIZE, QUARANTINE.LAST_MODIFIED, QUARANTINE.REASON, QUARANTINE.QUARANTINED_ON)
+		    .key(QUARANTINE.ABSOLUTE_FILE_NAME)
+		    .values(
+			    file.getAbsolutePath(),
+			    file.length(),
+			    new Timestamp(file.lastModified()),
+			    reason.length() > 4096 ? reason.substring(0, 4096) : reason,
+			    new Timestamp(System.currentTimeMillis())
+		    ).execute();
+	});
+    }
+
+    /**
+     * Closes all connections to the database.
+     */
+    @Override
+    public void close() {
+	dataSource.dispose();
+    }
 }
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.images;
+
+import java.nio.ByteBuffer;
+import java.time.LocalDate;
+import java.util.Arrays;
+import org.jooq.DSLContext;
+import org.jooq.Record;
+import org.jooq.Result;
+
+import static de.dailyfratze.mosaic.images.db.tables.Images.IMAGES;
+
+/**
+ * A read only copy of an image library, loaded once and kept as plain arrays.
+ * Contains the L*a*b* coordinates and chroma of each average color as stored
+ * in the library and the signature of each image, see
+ * {@link ImageLibrary#setSignatureSize(int)}. Images are ordered by id.
+ *
+ * @author Michael J. Simons, 2015-04-11
+ */
+public final class InMemoryLibrary {
+
+    private final int[] ids;
+
+    private final String[] absoluteFilenames;
+
+    private final LocalDate[] takenOn;
+
+    private final int[] averageColors;
+
+    private final double[] l;
+
+    private final double[] a;
+
+    private final double[] b;
+
+    private final double[] chroma;
+
+    /**
+     * Number of regions per row and column of each signature, 1 if the
+     * library doesn't contain signatures.
+     */
+    private final int signatureSize;
+
+    /**
+     * Average rgb colors of the regions of all images, row by row, image by
+     * image.
+     */
+    private final int[] signatures;
+
+    InMemoryLibrary(final int[] ids, final String[] absoluteFilenames, final LocalDate[] takenOn, final int[] averageColors, final double[] l, final double[] a, final double[] b, final double[] chroma) {
+	this(ids, absoluteFilenames, takenOn, averageColors, l, a, b, chroma, 1, averageColors.clone());
+    }
+
+    InMemoryLibrary(final int[] ids, final String[] absoluteFilenames, final LocalDate[] takenOn, final int[] averageColors, final double[] l, final double[] a, final double[] b, final double[] chroma, final int signatureSize, final int[] signatures) {
+	this.ids = ids;
+	this.absoluteFilenames = absoluteFilenames;
+	this.takenOn = takenOn;
+	this.averageColors = averageColors;
+	this.l = l;
+	this.a = a;
+	this.b = b;
+	this.chroma = chroma;
+	this.signatureSize = signatureSize;
+	this.signatures = signatures;
+    }
+
+    /**
+     * Loads all images from the given library, ordered by id. The size of the
+     * signatures is taken from the first image having one. Images without a
+     * signature of that size get one filled with their average color.
+     *
+     * @param create jOOQ context of the library
+     * @return An in memory copy of the library
+     */
+    public static InMemoryLibrary load(final DSLContext create) {
+	final Result<? extends Record> records = create
+		.select(IMAGES.ID, IMAGES.ABSOLUTE_FILE_NAME, IMAGES.TAKEN_ON, IMAGES.AVERAGE_COLOR, IMAGES.LAB_L, IMAGES.LAB_A, IMAGES.LAB_B, IMAGES.CHROMA, IMAGES.SIGNATURE)
+		.from(IMAGES)
+		.orderBy(IMAGES.ID.asc())
+		.fetch();
+
+	final int n = records.size();
+	final int[] ids = new int[n];
+	final String[] absoluteFilenames = new String[n];
+	final LocalDate[] takenOn = new LocalDate[n];
+	final int[] averageColors = new int[n];
+	final double[] l = new double[n];
+	final double[] a = new double[n];
+	final double[] b = new double[n];
+	final double[] chroma = new double[n];
+	final int signatureSize = records.stream()
+		.map(record -> record.getValue(IMAGES.SIGNATURE))
+		.filter(signature -> signature != null)
+		.findFirst()
+		.map(signature -> (int) Math.round(Math.sqrt(signature.length / 4)))
+		.orElse(1);
+	final int cells = signatureSize * signatureSize;
+	final int[] signatures = new int[n * cells];
+	for (int i = 0; i < n; ++i) {
+	    final Record record = records.get(i);
+	    ids[i] = record.getValue(IMAGES.ID);
+	    absoluteFilenames[i] = record.getValue(IMAGES.ABSOLUTE_FILE_NAME);
+	    takenOn[i] = record.getValue(IMAGES.TAKEN_ON).toLocalDate();
+	    averageColors[i] = record.getValue(IMAGES.AVERAGE_COLOR);
+	    l[i] = record.getValue(IMAGES.LAB_L);
+	    a[i] = record.getValue(IMAGES.LAB_A);
+	    b[i] = record.getValue(IMAGES.LAB_B);
+	    chroma[i] = record.getValue(IMAGES.CHROMA);
+	    final byte[] signature = record.getValue(IMAGES.SIGNATURE);
+	    if (signature != null && signature.length == cells * 4) {
+		ByteBuffer.wrap(signature).asIntBuffer().get(signatures, i * cells, cells);
+	    } else {
+		Arrays.fill(signatures, i * cells, (i + 1) * cells, averageColors[i]);
+	    }
+	}
+	return new InMemoryLibrary(ids, absoluteFilenames, takenOn, averageColors, l, a, b, chroma, signatureSize, signatures);
+    }
+
+    /**
+     * @return Number of images in this library
+     */
+    public int size() {
+	return ids.length;
+    }
+
+    /**
+     * Computes a fingerprint of the ids and colors of all images. Data derived
+     * from this library can store it and check whether it is still up to
+     * date.
+     *
+     * @return A 64bit fingerprint of this library
+     */
+    public long fingerprint() {
+	// FNV-1a over ids and colors
+	long rv = 0xcbf29ce484222325L;
+	for (int i = 0; i < ids.length; ++i) {
+	    rv = (rv ^ ids[i]) * 0x100000001b3L;
+	    rv = (rv ^ averageColors[i]) * 0x100000001b3L;
+	}
+	return rv;
+    }
+
+    public int getId(final int index) {
+	return ids[index];
+    }
+
+    public String getAbsoluteFilename(final int index) {
+	return absoluteFilenames[index];
+    }
+
+    public LocalDate getTakenOn(final int index) {
+	return takenOn[index];
+    }
+
+    public int getAverageColor(final int index) {
+	return averageColors[index];
+    }
+
+    public double getL(final int index) {
+	return l[index];
+    }
+
+    public double getA(final int index) {
+	return a[index];
+    }
+
+    public double getB(final int index) {
+	return b[index];
+    }
+
+    public double getChroma(final int index) {
+	return chroma[index];
+    }
+
+    /**
+     * @return Number of regions per row and column of each signature, 1 if
+     * the library doesn't contain signatures
+     */
+    public int signatureSize() {
+	return signatureSize;
+    }
+
+    /**
+     * @return Average rgb colors of the regions of all images, row by row,
+     * image by image, not to be modified
+     */
+    int[] signatures() {
+	return signatures;
+    }
+
+    /**
+     * @return L* of all images, not to be modified
+     */
+    double[] lValues() {
+	return l;
+    }
+
+    /**
+     * @return a* of all images, not to be modified
+     */
+    double[] aValues() {
+	return a;
+    }
+
+    /**
+     * @return b* of all images, not to be modified
+     */
+    double[] bValues() {
+	return b;
+    }
+
+    /**
+     * @return Chroma of all images, not to be modified
+     */
+    double[] chromaValues() {
+	return chroma;
+    }
+
+    /**
+     * Creates a tile at the given position showing the image at
+     * {@code index}.
+     *
+     * @param x x-position of the tile
+     * @param y y-position of the tile
+     * @param index Index of the image inside this library
+     * @return A new tile
+     */
+    Tile toTile(final int x, final int y, final int index) {
+	return new Tile(x, y, ids[index], absoluteFilenames[index], takenOn[index]);
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.images;
+
+import de.dailyfratze.mosaic.images.db.tables.records.ImagesRecord;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Reads images into a library in three stages connected by bounded queues:
+ * <ol>
+ * <li>A single thread finds the files</li>
+ * <li>{@link #decodeThreads} threads decode them into records</li>
+ * <li>{@link #insertThreads} threads store the records in batches of
+ * {@link #batchSize}</li>
+ * </ol>
+ * Each stage waits if the next one falls behind, so the number of files and
+ * records in memory doesn't depend on the size of the library. Decoding runs
+ * on dedicated threads instead of the common pool, as it is mostly waiting
+ * for the disk.
+ *
+ * @author Michael J. Simons, 2015-04-21
+ */
+final class IngestionPipeline {
+
+    /**
+     * Finds the files to read.
+     */
+    @FunctionalInterface
+    interface Source {
+
+	/**
+	 * @param files Receives the files, waits if decoding falls behind. May
+	 * be called concurrently.
+	 * @throws IOException
+	 */
+	void forEach(Consumer<File> files) throws IOException;
+    }
+
+    /**
+     * Marks the end of the files, compared by identity.
+     */
+    private static final File END_OF_FILES = new File("");
+
+    /**
+     * Marks the end of the records, compared by identity.
+     */
+    private static final ImagesRecord END_OF_RECORDS = new ImagesRecord();
+
+    /**
+     * Milliseconds between checks for failed stages while waiting for room in
+     * a queue.
+     */
+    private static final long POLL_INTERVAL = 100;
+
+    private final int decodeThreads;
+
+    private final int decodeQueueSize;
+
+    private final int insertThreads;
+
+    private final int insertQueueSize;
+
+    private final int batchSize;
+
+    IngestionPipeline(final int decodeThreads, final int decodeQueueSize, final int insertThreads, final int insertQueueSize, final int batchSize) {
+	if (decodeThreads < 1 || insertThreads < 1) {
+	    throw new IllegalArgumentException("Each stage needs at least one thread.");
+	}
+	if (decodeQueueSize < 1 || insertQueueSize < 1) {
+	    throw new IllegalArgumentException("Queues must hold at least one element.");
+	}
+	if (batchSize < 1) {
+	    throw new IllegalArgumentException("Batch size must be at least 1.");
+	}
+	this.decodeThreads = decodeThreads;
+	this.decodeQueueSize = decodeQueueSize;
+	this.insertThreads = insertThreads;
+	this.insertQueueSize = insertQueueSize;
+	this.batchSize = batchSize;
+    }
+
+    /**
+     * Runs the pipeline and returns when all records have been stored or a
+     * stage failed. In the latter case all other stages are stopped.
+     *
+     * @param source Finds the files
+     * @param decoder Decodes a single file, may return {@literal null} to
+     * skip it
+     * @param writer Stores a batch of records, called concurrently if there
+     * is more than one insert thread
+     * @return Number of stored records
+     * @throws IOException if finding the files failed
+     */
+    long run(final Source source, final Function<File, ImagesRecord> decoder, final Consumer<List<ImagesRecord>> writer) throws IOException {
+	final BlockingQueue<File> files = new ArrayBlockingQueue<>(decodeQueueSize);
+	final BlockingQueue<ImagesRecord> records = new ArrayBlockingQueue<>(insertQueueSize);
+	final AtomicInteger runningDecoders = new AtomicInteger(decodeThreads);
+	final AtomicLong stored = new AtomicLong();
+	final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+	final ExecutorService executorService = Executors.newFixedThreadPool(1 + decodeThreads + insertThreads);
+	final Consumer<Runnable> submit = stage -> {
+	    try {
+		executorService.execute(() -> {
+		    try {
+			stage.run();
+		    } catch (StageInterruptedException e) {
+			// Stopped because another stage failed
+		    } catch (RuntimeException | Error e) {
+			if (failure.compareAndSet(null, e)) {
+			    executorService.shutdownNow();
+			}
+		    }
+		});
+	    } catch (RejectedExecutionException e) {
+		// A stage already failed before all were started
+	    }
+	};
+
+	submit.accept(() -> {
+	    try {
+		source.forEach(file -> put(files, file, failure));
+	    } catch (IOException e) {
+		throw new UncheckedIOException(e);
+	    }
+	    for (int i = 0; i < decodeThreads; ++i) {
+		put(files, END_OF_FILES, failure);
+	    }
+	});
+	for (int i = 0; i < decodeThreads; ++i) {
+	    submit.accept(() -> {
+		File file;
+		while ((file = take(files)) != END_OF_FILES) {
+		    final ImagesRecord record = decoder.apply(file);
+		    if (record != null) {
+			put(records, record, failure);
+		    }
+		}
+		if (runningDecoders.decrementAndGet() == 0) {
+		    for (int j = 0; j < insertThreads; ++j) {
+			put(records, END_OF_RECORDS, failure);
+		    }
+		}
+	    });
+	}
+	for (int i = 0; i < insertThreads; ++i) {
+	    submit.accept(() -> {
+		final List<ImagesRecord> batch = new ArrayList<>(batchSize);
+		ImagesRecord record;
+		while ((record = take(records)) != END_OF_RECORDS) {
+		    batch.add(record);
+		    if (batch.size() == batchSize) {
+			writer.accept(batch);
+			stored.addAndGet(batch.size());
+			batch.clear();
+		    }
+		}
+		if (!batch.isEmpty()) {
+		    writer.accept(batch);
+		    stored.addAndGet(batch.size());
+		}
+	    });
+	}
+
+	executorService.shutdown();
+	try {
+	    while (!executorService.awaitTermination(1, TimeUnit.MINUTES)) {
+	    }
+	} catch (InterruptedException e) {
+	    executorService.shutdownNow();
+	    Thread.currentThread().interrupt();
+	    throw new RuntimeException(e);
+	}
+
+	final Throwable cause = failure.get();
+	if (cause == null) {
+	    return stored.get();
+	} else if (cause instanceof UncheckedIOException) {
+	    throw ((UncheckedIOException) cause).getCause();
+	} else if (cause instanceof RuntimeException) {
+	    throw (RuntimeException) cause;
+	} else {
+	    throw (Error) cause;
+	}
+    }
+
+    /**
+     * Waits until there is room for the element. Checks regularly if another
+     * stage failed, as the source may put elements from threads of its own
+     * that aren't interrupted.
+     */
+    private static <T> void put(final BlockingQueue<T> queue, final T element, final AtomicReference<Throwable> failure) {
+	try {
+	    while (!queue.offer(element, POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+		if (failure.get() != null) {
+		    throw new StageInterruptedException();
+		}
+	    }
+	} catch (InterruptedException e) {
+	    throw new StageInterruptedException();
+	}
+    }
+
+    private static <T> T take(final BlockingQueue<T> queue) {
+	try {
+	    return queue.take();
+	} catch (InterruptedException e) {
+	    throw new StageInterruptedException();
+	}
+    }
+
+    /**
+     * Thrown by stages stopped because another stage failed.
+     */
+    private static final class StageInterruptedException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.images;
+
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Matches tiles against an in memory k-d tree over the L*a*b* coordinates of
+ * the library images.<br>
+ * CIE94 is not an euclidean distance, but it is bounded from below by one:
+ * Both chroma and hue difference are divided by weights no larger than
+ * {@code 1 + K1 * C}, where C is the chroma of the library color. So for every
+ * node of the tree the distance to its bounding box in L*a*b*, with a*b*
+ * scaled by the largest chroma inside that node, is a lower bound for the
+ * CIE94 distance to all images in that node. Nodes whose bound is larger than
+ * the best distance found so far are skipped, only the remaining candidates
+ * are ranked with the exact {@link CIE94ColorDistance}. The result is the same
+ * as the one of the {@link SqlTileMatcher}.
+ *
+ * @author Michael J. Simons, 2015-04-11
+ */
+public class KdTreeTileMatcher implements TileMatcher {
+
+    /**
+     * Nodes with no more than this number of images are not split any further.
+     */
+    private static final int LEAF_SIZE = 8;
+
+    /**
+     * Lower bounds are only used for pruning if they exceed the best distance
+     * by more than this, so that rounding errors can't hide an equally good
+     * image with a lower id.
+     */
+    private static final double TOLERANCE = 1e-9;
+
+    private final InMemoryLibrary library;
+
+    /**
+     * Indexes into the library, ordered so that every node covers a
+     * continuous range.
+     */
+    private final int[] indexes;
+
+    private final Node root;
+
+    public KdTreeTileMatcher(final InMemoryLibrary library) {
+	this.library = library;
+	this.indexes = new int[library.size()];
+	for (int i = 0; i < indexes.length; ++i) {
+	    indexes[i] = i;
+	}
+	this.root = indexes.length == 0 ? null : build(0, indexes.length);
+    }
+
+    @Override
+    public Optional<Tile> match(final int x, final int y, final int averageColor, final Set<Integer> excluded) {
+	final Search search = find(averageColor, 1, excluded);
+	CANDIDATES.record(search.candidates);
+	return search.size == 0 ? Optional.empty() : Optional.of(library.toTile(x, y, search.indexes[0]));
+    }
+
+    /**
+     * Finds the {@code k} library images nearest to the given color.
+     *
+     * @param averageColor The color to search for
+     * @param k Maximum number of images to return
+     * @param excluded Ids of images that must not be returned
+     * @return Indexes of up to {@code k} images inside the library, ordered by
+     * CIE94 distance and id
+     */
+    int[] nearest(final int averageColor, final int k, final Set<Integer> excluded) {
+	final Search search = find(averageColor, k, excluded);
+	return Arrays.copyOf(search.indexes, search.size);
+    }
+
+    private Search find(final int averageColor, final int k, final Set<Integer> excluded) {
+	final Search search = new Search(averageColor, k, excluded);
+	if (root != null) {
+	    search(root, search);
+	}
+	return search;
+    }
+
+    private void search(final Node node, final Search search) {
+	if (node.isLeaf()) {
+	    for (int i = node.from; i < node.to; ++i) {
+		search.offer(indexes[i]);
+	    }
+	    return;
+	}
+
+	// Descend into the more promising child first
+	final double leftBound = node.left.lowerBound(search.l, search.a, search.b);
+	final double rightBound = node.right.lowerBound(search.l, search.a, search.b);
+	final Node first = leftBound <= rightBound ? node.left : node.right;
+	final Node second = first == node.left ? node.right : node.left;
+	final double secondBound = first == node.left ? rightBound : leftBound;
+
+	if (Math.min(leftBound, rightBound) - TOLERANCE <= search.worstDistance()) {
+	    search(first, search);
+	}
+	if (secondBound - TOLERANCE <= search.worstDistance()) {
+	    search(second, search);
+	}
+    }
+
+    private Node build(final int from, final int to) {
+	final Node node = new Node(from, to);
+	if (to - from > LEAF_SIZE) {
+	    final int axis = node.widestAxis();
+	    final int median = (from + to) >>> 1;
+	    select(from, to, median, axis);
+	    node.left = build(from, median);
+	    node.right = build(median, to);
+	}
+	return node;
+    }
+
+    /**
+     * Partially orders {@code indexes[from..to)} so that no image before
+     * {@code k} has a larger and no image after {@code k} a smaller coordinate
+     * on the given axis (Hoare's selection algorithm).
+     */
+    private void select(final int from, final int to, final int k, final int axis) {
+	int lo = from;
+	int hi = to - 1;
+	while (lo < hi) {
+	    final double pivot = coordinate(indexes[(lo + hi) >>> 1], axis);
+	    int i = lo, j = hi;
+	    while (i <= j) {
+		while (coordinate(indexes[i], axis) < pivot) {
+		    ++i;
+		}
+		while (coordinate(indexes[j], axis) > pivot) {
+		    --j;
+		}
+		if (i <= j) {
+		    final int h = indexes[i];
+		    indexes[i] = indexes[j];
+		    indexes[j] = h;
+		    ++i;
+		    --j;
+		}
+	    }
+	    if (k <= j) {
+		hi = j;
+	    } else if (k >= i) {
+		lo = i;
+	    } else {
+		break;
+	    }
+	}
+    }
+
+    private double coordinate(final int index, final int axis) {
+	switch (axis) {
+	    case 0:
+		return library.getL(index);
+	    case 1:
+		return library.getA(index);
+	    default:
+		return library.getB(index);
+	}
+    }
+
+    /**
+     * A node of the tree, covering the images in {@code indexes[from..to)}.
+     */
+    private final class Node {
+
+	private final int from;
+
+	private final int to;
+
+	private final double[] min = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+
+	private final double[] max = {-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+
+	/**
+	 * Largest weight by which chroma and hue differences of images in this
+	 * node are divided.
+	 */
+	private final double maxChromaWeight;
+
+	private Node left;
+
+	private Node right;
+
+	Node(final int from, final int to) {
+	    this.from = from;
+	    this.to = to;
+
+	    double maxChroma = 0.0;
+	    for (int i = from; i < to; ++i) {
+		final int index = indexes[i];
+		for (int axis = 0; axis < 3; ++axis) {
+		    final double c = coordinate(index, axis);
+		    min[axis] = Math.min(min[axis], c);
+		    max[axis] = Math.max(max[axis], c);
+		}
+		maxChroma = Math.max(maxChroma, library.getChroma(index));
+	    }
+	    this.maxChromaWeight = 1 + CIE94ColorDistance.K1 * maxChroma;
+	}
+
+	boolean isLeaf() {
+	    return left == null;
+	}
+
+	int widestAxis() {
+	    int rv = 0;
+	    for (int axis = 1; axis < 3; ++axis) {
+		if (max[axis] - min[axis] > max[rv] - min[rv]) {
+		    rv = axis;
+		}
+	    }
+	    return rv;
+	}
+
+	/**
+	 * @return A lower bound of the CIE94 distance from any image in this
+	 * node to the given color
+	 */
+	double lowerBound(final double l, final double a, final double b) {
+	    final double dL = distance(l, 0);
+	    final double dA = distance(a, 1);
+	    final double dB = distance(b, 2);
+	    return Math.sqrt(dL * dL + (dA * dA + dB * dB) / (maxChromaWeight * maxChromaWeight));
+	}
+
+	private double distance(final double c, final int axis) {
+	    return c < min[axis] ? min[axis] - c : c > max[axis] ? c - max[axis] : 0.0;
+	}
+    }
+
+    /**
+     * State of a single search, keeping the best {@code k} images found so far
+     * ordered by distance and id.
+     */
+    private final class Search {
+
+	private final Set<Integer> excluded;
+
+	private final double l;
+
+	private final double a;
+
+	private final double b;
+
+	private final double chroma;
+
+	private final int[] indexes;
+
+	private final double[] distances;
+
+	private int size;
+
+	/**
+	 * Number of images whose exact distance has been computed.
+	 */
+	private int candidates;
+
+	Search(final int averageColor, final int k, final Set<Integer> excluded) {
+	    this.excluded = excluded;
+	    final double[] lab = CIE94ColorDistance.toLab(averageColor);
+	    this.l = lab[0];
+	    this.a = lab[1];
+	    this.b = lab[2];
+	    this.chroma = CIE94ColorDistance.chroma(a, b);
+	    this.indexes = new int[k];
+	    this.distances = new double[k];
+	}
+
+	/**
+	 * @return The distance an image must not exceed to be among the best
+	 * images
+	 */
+	double worstDistance() {
+	    return size < indexes.length ? Double.POSITIVE_INFINITY : distances[size - 1];
+	}
+
+	void offer(final int index) {
+	    final int id = library.getId(index);
+	    if (excluded.contains(id)) {
+		return;
+	    }
+	    ++candidates;
+	    // Same argument order as in the query of the SqlTileMatcher
+	    final double distance = CIE94ColorDistance.compute(
+		    library.getL(index), library.getA(index), library.getB(index), library.getChroma(index),
+		    l, a, b, chroma
+	    );
+	    if (size == indexes.length && !isBetter(distance, id, size - 1)) {
+		return;
+	    }
+	    // Insertion sort, k is small
+	    int position = Math.min(size, indexes.length - 1);
+	    while (position > 0 && isBetter(distance, id, position - 1)) {
+		indexes[position] = indexes[position - 1];
+		distances[position] = distances[position - 1];
+		--position;
+	    }
+	    indexes[position] = index;
+	    distances[position] = distance;
+	    size = Math.min(size + 1, indexes.length);
+	}
+
+	private boolean isBetter(final double distance, final int id, final int position) {
+	    return distance < distances[position] || (distance == distances[position] && id < library.getId(indexes[position]));
+	}
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.images;
+
+/**
+ * Converts sRGB colors to CIEL*a*b* without calling {@link Math#pow(double, double)}
+ * and without allocating memory:
+ * <ul>
+ * <li>A channel has only 256 values, so the linearized values are looked up
+ * in a table computed once</li>
+ * <li>The cube root is computed with a bit level estimate and two Halley
+ * iterations, which has a relative error below 1e-14, resulting in L*a*b*
+ * values within 1e-11 of the exact ones.</li>
+ * </ul>
+ * Mathematics from
+ * <a href="http://www.easyrgb.com/index.php?X=MATH">EasyRGB</a> and
+ * <a href="http://www.brucelindbloom.com">Bruce Lindbloom</a>.
+ *
+ * @author Michael J. Simons, 2015-04-17
+ */
+public final class LabConverter {
+
+    /**
+     * Standard D65 daylight color coefficients
+     */
+    private static final double[] D65 = {95.047, 100.0, 108.883};
+
+    /**
+     * Linearized value times 100 by 8bit channel value.
+     */
+    private static final double[] LINEAR = new double[256];
+
+    static {
+	for (int i = 0; i < LINEAR.length; ++i) {
+	    final double v = i / 255.0;
+	    LINEAR[i] = (v > 0.04045 ? Math.pow((v + 0.055) / 1.055, 2.4) : v / 12.92f) * 100.0;
+	}
+    }
+
+    /**
+     * Converts the given color from sRGB color space to CIEL*a*b*.
+     *
+     * @param rgb Color to convert
+     * @param target Receives L*, a* and b* at {@code offset},
+     * {@code offset + 1} and {@code offset + 2}
+     * @param offset Index of L* inside {@code target}
+     */
+    public static void toLab(final int rgb, final double[] target, final int offset) {
+	final double r = LINEAR[(rgb >> 16) & 0xFF];
+	final double g = LINEAR[(rgb >> 8) & 0xFF];
+	final double b = LINEAR[rgb & 0xFF];
+
+	// Observer 2°, Standard Daylight D65
+	final double X = f((r * 0.4124 + g * 0.3576 + b * 0.1805) / D65[0]);
+	final double Y = f((r * 0.2126 + g * 0.7152 + b * 0.0722) / D65[1]);
+	final double Z = f((r * 0.0193 + g * 0.1192 + b * 0.9505) / D65[2]);
+
+	target[offset] = (116 * Y) - 16;
+	target[offset + 1] = 500 * (X - Y);
+	target[offset + 2] = 200 * (Y - Z);
+    }
+
+    private static double f(final double t) {
+	return t > 0.008856 ? cbrt(t) : (7.787 * t) + (16.0 / 116.0);
+    }
+
+    /**
+     * Computes the cube root of positive, normal numbers.
+     *
+     * @param x A positive, normal number
+     * @return The cube root of {@code x} with a relative error below 1e-14
+     */
+    static double cbrt(final double x) {
+	// Estimate by dividing the exponent by 3 (see fdlibm's cbrt), good to
+	// about 5%, then two Halley iterations, each tripling the correct digits
+	final long highWord = Double.doubleToRawLongBits(x) >>> 32;
+	double t = Double.longBitsToDouble((highWord / 3 + 715094163L) << 32);
+	double t3 = t * t * t;
+	t = t * (t3 + x + x) / (t3 + t3 + x);
+	t3 = t * t * t;
+	return t * (t3 + x + x) / (t3 + t3 + x);
+    }
+
+    private LabConverter() {
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.images;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+
+/**
+ * Reads and writes an {@link InMemoryLibrary} as a compact binary file, so
+ * that creating a mosaic needs neither H2, Flyway nor jOOQ. The H2 database
+ * stays the library being scanned and updated, the file is exported from it.
+ * <br>
+ * The file consists of a header and one column per attribute, each aligned to
+ * 8 bytes and stored little endian:
+ * <ul>
+ * <li>Ids, average colors and dates (as epoch days) as ints</li>
+ * <li>L*, a*, b* and chroma as doubles</li>
+ * <li>The signatures as ints, image by image</li>
+ * <li>Offsets of the filenames into the string table as ints, one more than
+ * the number of images</li>
+ * <li>The string table: All filenames as UTF-8</li>
+ * </ul>
+ * Loading maps the file and copies each column into its array with one bulk
+ * get.
+ *
+ * @author Michael J. Simons, 2015-04-24
+ */
+public final class LibraryFile {
+
+    /**
+     * Identifies library files ("MLIB").
+     */
+    private static final int MAGIC = 0x4D4C4942;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 24;
+
+    /**
+     * Writes the given library to {@code file}, replacing its content.
+     *
+     * @param library The library
+     * @param file Target file
+     * @throws IOException
+     */
+    public static void write(final InMemoryLibrary library, final File file) throws IOException {
+	final int n = library.size();
+	final int cells = library.signatureSize() * library.signatureSize();
+	final int[] offsets = new int[n + 1];
+	final byte[][] filenames = new byte[n][];
+	for (int i = 0; i < n; ++i) {
+	    filenames[i] = library.getAbsoluteFilename(i).getBytes(StandardCharsets.UTF_8);
+	    offsets[i + 1] = offsets[i] + filenames[i].length;
+	}
+	final Layout layout = new Layout(n, cells, offsets[n]);
+	if (layout.size > Integer.MAX_VALUE) {
+	    throw new IllegalArgumentException("Library is too large for a single library file.");
+	}
+
+	final int[] ids = new int[n], averageColors = new int[n], takenOn = new int[n];
+	for (int i = 0; i < n; ++i) {
+	    ids[i] = library.getId(i);
+	    averageColors[i] = library.getAverageColor(i);
+	    takenOn[i] = (int) library.getTakenOn(i).toEpochDay();
+	}
+
+	try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+	    final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, layout.size);
+	    buffer.order(ByteOrder.LITTLE_ENDIAN);
+	    buffer.putInt(MAGIC).putInt(VERSION).putInt(n).putInt(library.signatureSize()).putLong(layout.size);
+	    ((ByteBuffer) buffer.position(layout.ids)).asIntBuffer().put(ids);
+	    ((ByteBuffer) buffer.position(layout.averageColors)).asIntBuffer().put(averageColors);
+	    ((ByteBuffer) buffer.position(layout.takenOn)).asIntBuffer().put(takenOn);
+	    ((ByteBuffer) buffer.position(layout.l)).asDoubleBuffer().put(library.lValues());
+	    ((ByteBuffer) buffer.position(layout.a)).asDoubleBuffer().put(library.aValues());
+	    ((ByteBuffer) buffer.position(layout.b)).asDoubleBuffer().put(library.bValues());
+	    ((ByteBuffer) buffer.position(layout.chroma)).asDoubleBuffer().put(library.chromaValues());
+	    ((ByteBuffer) buffer.position(layout.signatures)).asIntBuffer().put(library.signatures());
+	    ((ByteBuffer) buffer.position(layout.offsets)).asIntBuffer().put(offsets);
+	    buffer.position(layout.strings);
+	    for (byte[] filename : filenames) {
+		buffer.put(filename);
+	    }
+	    buffer.force();
+	}
+    }
+
+    /**
+     * Loads a library written by {@link #write(InMemoryLibrary, File)}.
+     *
+     * @param file The library file
+     * @return An in memory copy of the library
+     * @throws IOException
+     * @throws IllegalArgumentException if {@code file} isn't a library file
+     */
+    public static InMemoryLibrary load(final File file) throws IOException {
+	try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+	    final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+	    buffer.order(ByteOrder.LITTLE_ENDIAN);
+	    if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+		throw new IllegalArgumentException(file + " is not a library file.");
+	    }
+	    final int n = buffer.getInt();
+	    final int signatureSize = buffer.getInt();
+	    final long size = buffer.getLong();
+	    if (size != channel.size()) {
+		throw new IllegalArgumentException(file + " is incomplete.");
+	    }
+
+	    final int cells = signatureSize * signatureSize;
+	    final int[] offsets = new int[n + 1];
+	    ((ByteBuffer) buffer.position(new Layout(n, cells, 0).offsets)).asIntBuffer().get(offsets);
+	    final Layout layout = new Layout(n, cells, offsets[n]);
+
+	    final int[] ids = new int[n], averageColors = new int[n], epochDays = new int[n], signatures = new int[n * cells];
+	    final double[] l = new double[n], a = new double[n], b = new double[n], chroma = new double[n];
+	    ((ByteBuffer) buffer.position(layout.ids)).asIntBuffer().get(ids);
+	    ((ByteBuffer) buffer.position(layout.averageColors)).asIntBuffer().get(averageColors);
+	    ((ByteBuffer) buffer.position(layout.takenOn)).asIntBuffer().get(epochDays);
+	    ((ByteBuffer) buffer.position(layout.l)).asDoubleBuffer().get(l);
+	    ((ByteBuffer) buffer.position(layout.a)).asDoubleBuffer().get(a);
+	    ((ByteBuffer) buffer.position(layout.b)).asDoubleBuffer().get(b);
+	    ((ByteBuffer) buffer.position(layout.chroma)).asDoubleBuffer().get(chroma);
+	    ((ByteBuffer) buffer.position(layout.signatures)).asIntBuffer().get(signatures);
+
+	    final byte[] strings = new byte[offsets[n]];
+	    ((ByteBuffer) buffer.position(layout.strings)).get(strings);
+	    final String[] absoluteFilenames = new String[n];
+	    final LocalDate[] takenOn = new LocalDate[n];
+	    for (int i = 0; i < n; ++i) {
+		absoluteFilenames[i] = new String(strings, offsets[i], offsets[i + 1] - offsets[i], StandardCharsets.UTF_8);
+		takenOn[i] = LocalDate.ofEpochDay(epochDays[i]);
+	    }
+	    return new InMemoryLibrary(ids, absoluteFilenames, takenOn, averageColors, l, a, b, chroma, signatureSize, signatures);
+	}
+    }
+
+    /**
+     * Positions of the columns inside a library file.
+     */
+    private static final class Layout {
+
+	final int ids;
+
+	final int averageColors;
+
+	final int takenOn;
+
+	final int l;
+
+	final int a;
+
+	final int b;
+
+	final int chroma;
+
+	final int signatures;
+
+	final int offsets;
+
+	final int strings;
+
+	final long size;
+
+	Layout(final int n, final int cells, final int stringTableSize) {
+	    this.ids = HEADER_SIZE;
+	    this.averageColors = align(ids + 4L * n);
+	    this.takenOn = align(averageColors + 4L * n);
+	    this.l = align(takenOn + 4L * n);
+	    this.a = align(l + 8L * n);
+	    this.b = align(a + 8L * n);
+	    this.chroma = align(b + 8L * n);
+	    this.signatures = align(chroma + 8L * n);
+	    this.offsets = align(signatures + 4L * n * cells);
+	    this.strings = align(offsets + 4L * (n + 1));
+	    this.size = (long) strings + stringTableSize;
+	}
+
+	private static int align(final long position) {
+	    final long rv = (position + 7) & ~7L;
+	    if (rv > Integer.MAX_VALUE) {
+		throw new IllegalArgumentException("Library is too large for a single library file.");
+	    }
+	    return (int) rv;
+	}
+    }
+
+    private LibraryFile() {
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.images;
+
+import de.dailyfratze.mosaic.images.db.tables.records.ImagesRecord;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.RadialGradientPaint;
+import java.awt.RenderingHints;
+import java.awt.geom.Ellipse2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+
+import static java.util.Arrays.stream;
+
+/**
+ * Generates synthetic image libraries and source images for testing mosaics
+ * at scale without a real photo archive.<br>
+ * Libraries consist of one directory per {@link #imagesPerDirectory} images,
+ * each image named after the day it was "taken" on ({@code yyyy-MM-dd.jpg}),
+ * with consecutive days and an occasional gap like in a photo diary. The
+ * colors follow the distribution of photos: Mostly muted skin, wood and
+ * interior tones, some sky and vegetation and a few arbitrary colors.<br>
+ * Every image is derived from a tiny picture of {@value #SIZE} by
+ * {@value #SIZE} pixels that depends only on the seed and the position of the
+ * image. A library can either be written as JPEG files and then be read with
+ * {@link ImageLibrary#create()}, or be stored directly as rows of a library
+ * database, which is much faster and computes the same average colors and
+ * signatures the library would compute from the tiny pictures.
+ *
+ * @author Michael J. Simons, 2015-04-25
+ */
+public final class LibraryGenerator {
+
+    public static final int DEFAULT_IMAGES_PER_DIRECTORY = 3650;
+
+    public static final int DEFAULT_IMAGE_WIDTH = 64;
+
+    public static final int DEFAULT_IMAGE_HEIGHT = 48;
+
+    /**
+     * Width and height of the tiny pictures, divisible by all supported
+     * signature sizes and by {@link #REGIONS}.
+     */
+    private static final int SIZE = 12;
+
+    /**
+     * Number of differently colored regions per row and column of a picture.
+     */
+    private static final int REGIONS = 4;
+
+    private static final DateTimeFormatter FILENAME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'.jpg'");
+
+    private final long seed;
+
+    private int imagesPerDirectory = DEFAULT_IMAGES_PER_DIRECTORY;
+
+    private LocalDate firstDay = LocalDate.of(2005, 8, 1);
+
+    /**
+     * Size of the JPEG files written by {@link #writeImages(File, int)}.
+     * Small images keep large libraries small on disk.
+     */
+    private int imageWidth = DEFAULT_IMAGE_WIDTH;
+
+    private int imageHeight = DEFAULT_IMAGE_HEIGHT;
+
+    /**
+     * @param seed Libraries and source images generated with the same seed
+     * and settings are the same
+     */
+    public LibraryGenerator(final long seed) {
+	this.seed = seed;
+    }
+
+    public int getImagesPerDirectory() {
+	return imagesPerDirectory;
+    }
+
+    public void setImagesPerDirectory(final int imagesPerDirectory) {
+	if (imagesPerDirectory < 1) {
+	    throw new IllegalArgumentException("A directory must contain at least one image.");
+	}
+	this.imagesPerDirectory = imagesPerDirectory;
+    }
+
+    public LocalDate getFirstDay() {
+	return firstDay;
+    }
+
+    /**
+     * @param firstDay The day the first image of each directory is taken on
+     */
+    public void setFirstDay(final LocalDate firstDay) {
+	this.firstDay = firstDay;
+    }
+
+    public int getImageWidth() {
+	return imageWidth;
+    }
+
+    public int getImageHeight() {
+	return imageHeight;
+    }
+
+    public void setImageSize(final int imageWidth, final int imageHeight) {
+	if (imageWidth < 1 || imageHeight < 1) {
+	    throw new IllegalArgumentException("Images must be at least 1x1 pixel.");
+	}
+	this.imageWidth = imageWidth;
+	this.imageHeight = imageHeight;
+    }
+
+    /**
+     * Writes {@code count} images as JPEG files below {@code baseDir}.
+     * Directories are written in parallel.
+     *
+     * @param baseDir The directory of the library
+     * @param count Number of images
+     * @throws IOException
+     */
+    public void writeImages(final File baseDir, final int count) throws IOException {
+	checkCount(count);
+	final long start = System.nanoTime();
+	try {
+	    IntStream.range(0, directories(count)).parallel().forEach(directory -> {
+		final File target = new File(baseDir, directoryName(directory));
+		try {
+		    Files.createDirectories(target.toPath());
+		    for (GeneratedImage image : generate(directory, count)) {
+			final BufferedImage scaled = new BufferedImage(imageWidth, imageHeight, BufferedImage.TYPE_INT_RGB);
+			final Graphics2D g2 = scaled.createGraphics();
+			g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			g2.drawImage(image.pixels, 0, 0, imageWidth, imageHeight, null);
+			g2.dispose();
+			try (OutputStream out = new FileOutputStream(new File(target, image.filename))) {
+			    new ImageStorage().storeAsJpeg(scaled, out, 0.9f);
+			}
+		    }
+		} catch (IOException e) {
+		    throw new UncheckedIOException(e);
+		}
+	    });
+	} catch (UncheckedIOException e) {
+	    throw e.getCause();
+	}
+	Logger.getLogger(LibraryGenerator.class.getName()).log(Level.INFO, "Wrote {0} images to {1} in {2} s", new Object[]{count, baseDir, String.format("%.3f", (System.nanoTime() - start) / 1e9)});
+    }
+
+    /**
+     * Replaces the content of the library's database with {@code count}
+     * generated images below its base dir, without writing the images
+     * themselves. Signatures are stored if enabled, thumbnails are stored if
+     * a thumbnail file is set, so mosaics can be rendered from the library.
+     *
+     * @param library The library to populate
+     * @param count Number of images
+     * @throws IOException
+     */
+    public void populate(final ImageLibrary library, final int count) throws IOException {
+	checkCount(count);
+	final long start = System.nanoTime();
+	library.createDatabase();
+	if (library.getThumbnailFile() != null) {
+	    Files.deleteIfExists(library.getThumbnailFile().toPath());
+	}
+	library.recordThumbnailStore();
+	final File baseDir = library.getBaseDir().getAbsoluteFile();
+	final int signatureSize = library.getSignatureSize();
+	try (ThumbnailStore thumbnails = library.getThumbnailFile() == null ? null : ThumbnailStore.open(library.getThumbnailFile(), library.getThumbnailWidth(), library.getThumbnailHeight())) {
+	    final List<ImagesRecord> batch = new ArrayList<>(library.getBatchSize());
+	    int id = 0;
+	    for (int directory = 0; directory < directories(count); ++directory) {
+		final File directoryFile = new File(baseDir, directoryName(directory));
+		for (GeneratedImage image : generate(directory, count)) {
+		    final ImagesRecord record = new ImagesRecord();
+		    record.setId(++id);
+		    record.setAbsoluteFileName(new File(directoryFile, image.filename).getAbsolutePath());
+		    record.setTakenOn(ImageLibrary.toDate(image.takenOn));
+		    ImageLibrary.setAverageColor(record,
+			    stream(image.pixels.getRGB(0, 0, SIZE, SIZE, null, 0, SIZE))
+				    .collect(RGBAverage::new, RGBAverage::accept, RGBAverage::combine)
+				    .value()
+		    );
+		    if (signatureSize > 0) {
+			ImageLibrary.setSignature(record, ImageLibrary.computeSignature(image.pixels, signatureSize));
+		    }
+		    if (thumbnails != null) {
+			thumbnails.write(id, image.pixels);
+		    }
+		    batch.add(record);
+		    if (batch.size() == library.getBatchSize()) {
+			library.storeImageRecords(batch);
+			batch.clear();
+		    }
+		}
+	    }
+	    if (!batch.isEmpty()) {
+		library.storeImageRecords(batch);
+	    }
+	}
+	Logger.getLogger(LibraryGenerator.class.getName()).log(Level.INFO, "Generated a library of {0} images in {1} s", new Object[]{count, String.format("%.3f", (System.nanoTime() - start) / 1e9)});
+    }
+
+    /**
+     * Generates a source image: A gradient overlaid with soft blobs in the
+     * colors of the library.
+     *
+     * @param width Width of the image
+     * @param height Height of the image
+     * @return A new image
+     */
+    public BufferedImage sourceImage(final int width, final int height) {
+	if (width < 1 || height < 1) {
+	    throw new IllegalArgumentException("Images must be at least 1x1 pixel.");
+	}
+	final Random random = new Random(seed);
+	final BufferedImage rv = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+	final Graphics2D g2 = rv.createGraphics();
+	g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+	g2.setPaint(new GradientPaint(0, 0, new Color(averageColor(random)), width, height, new Color(averageColor(random))));
+	g2.fillRect(0, 0, width, height);
+	for (int i = 0; i < 24; ++i) {
+	    final float radius = (float) (Math.min(width, height) * (0.05 + 0.3 * random.nextDouble()));
+	    final float x = random.nextFloat() * width;
+	    final float y = random.nextFloat() * height;
+	    final Color color = new Color(averageColor(random));
+	    g2.setPaint(new RadialGradientPaint(x, y, radius, new float[]{0f, 1f}, new Color[]{color, new Color(color.getRGB() & 0xFFFFFF, true)}));
+	    g2.fill(new Ellipse2D.Float(x - radius, y - radius, 2 * radius, 2 * radius));
+	}
+	g2.dispose();
+	return rv;
+    }
+
+    private static void checkCount(final int count) {
+	if (count < 0) {
+	    throw new IllegalArgumentException("Number of images must not be negative.");
+	}
+    }
+
+    private int directories(final int count) {
+	return (count + imagesPerDirectory - 1) / imagesPerDirectory;
+    }
+
+    private static String directoryName(final int directory) {
+	return String.format("%05d", directory);
+    }
+
+    /**
+     * Generates the images of a single directory, independent of all other
+     * directories.
+     */
+    private List<GeneratedImage> generate(final int directory, final int count) {
+	final int images = Math.min(imagesPerDirectory, count - directory * imagesPerDirectory);
+	final Random random = new Random(seed * 31 + directory);
+	final List<GeneratedImage> rv = new ArrayList<>(images);
+	LocalDate day = firstDay;
+	for (int i = 0; i < images; ++i) {
+	    rv.add(new GeneratedImage(day, picture(random)));
+	    day = day.plusDays(random.nextInt(10) == 0 ? 2 + random.nextInt(7) : 1);
+	}
+	return rv;
+    }
+
+    /**
+     * @return A tiny picture of regions with colors around a common average
+     * and some noise
+     */
+    private static BufferedImage picture(final Random random) {
+	final int averageColor = averageColor(random);
+	final BufferedImage rv = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_RGB);
+	final int regionSize = SIZE / REGIONS;
+	for (int j = 0; j < REGIONS; ++j) {
+	    for (int i = 0; i < REGIONS; ++i) {
+		final int regionColor = vary(random, averageColor, 40);
+		for (int y = j * regionSize; y < (j + 1) * regionSize; ++y) {
+		    for (int x = i * regionSize; x < (i + 1) * regionSize; ++x) {
+			rv.setRGB(x, y, vary(random, regionColor, 6));
+		    }
+		}
+	    }
+	}
+	return rv;
+    }
+
+    /**
+     * @return An average color of a photo
+     */
+    private static int averageColor(final Random random) {
+	final double kind = random.nextDouble();
+	final double hue;
+	if (kind < 0.5) {
+	    // Skin, wood, interiors
+	    hue = 0.06 + 0.03 * random.nextGaussian();
+	} else if (kind < 0.7) {
+	    // Sky and water
+	    hue = 0.58 + 0.04 * random.nextGaussian();
+	} else if (kind < 0.85) {
+	    // Vegetation
+	    hue = 0.28 + 0.05 * random.nextGaussian();
+	} else {
+	    hue = random.nextDouble();
+	}
+	final double saturation = Math.max(0.0, Math.min(1.0, 0.3 + 0.15 * random.nextGaussian()));
+	final double brightness = Math.max(0.05, Math.min(1.0, 0.5 + 0.2 * random.nextGaussian()));
+	return Color.HSBtoRGB((float) hue, (float) saturation, (float) brightness);
+    }
+
+    /**
+     * @return {@code rgb} with each channel changed by up to {@code amount}
+     */
+    private static int vary(final Random random, final int rgb, final int amount) {
+	int rv = 0xFF000000;
+	for (int shift = 16; shift >= 0; shift -= 8) {
+	    final int channel = Math.max(0, Math.min(255, ((rgb >> shift) & 0xFF) + random.nextInt(2 * amount + 1) - amount));
+	    rv |= channel << shift;
+	}
+	return rv;
+    }
+
+    private static final class GeneratedImage {
+
+	final LocalDate takenOn;
+
+	final String filename;
+
+	final BufferedImage pixels;
+
+	GeneratedImage(final LocalDate takenOn, final BufferedImage pixels) {
+	    this.takenOn = takenOn;
+	    this.filename = takenOn.format(FILENAME_FORMAT);
+	    this.pixels = pixels;
+	}
+    }
+}
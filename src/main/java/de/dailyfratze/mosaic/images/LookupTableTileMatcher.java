@@ -0,0 +1,218 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.images;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+
+/**
+ * Matches tiles through a precomputed table: The rgb color space is divided
+ * into cells and for each cell the images nearest to its center are stored.
+ * Matching a tile is a lookup of its cell and picking the best, not excluded
+ * candidate. Only if all candidates are excluded, the k-d tree is searched.
+ * <br>
+ * This is an approximation: The nearest image to a tile is usually, but not
+ * necessarily, among the nearest images to the center of the tile's cell.
+ * <br>
+ * Building the table takes a while, so it is stored in a file next to the
+ * library. The file contains a fingerprint of the library and is rebuilt if
+ * the library has changed.
+ *
+ * @author Michael J. Simons, 2015-04-14
+ */
+public class LookupTableTileMatcher implements TileMatcher {
+
+    /**
+     * Identifies lookup table files ("MLUT").
+     */
+    private static final int MAGIC = 0x4D4C5554;
+
+    private static final int VERSION = 1;
+
+    /**
+     * 32 values per channel, 32768 cells.
+     */
+    public static final int DEFAULT_BITS = 5;
+
+    public static final int DEFAULT_CANDIDATES = 16;
+
+    private final InMemoryLibrary library;
+
+    /**
+     * Used when all candidates are excluded.
+     */
+    private final KdTreeTileMatcher kdTreeTileMatcher;
+
+    /**
+     * Number of bits used per rgb channel to address a cell.
+     */
+    private final int bits;
+
+    /**
+     * Number of candidates per cell.
+     */
+    private final int candidates;
+
+    /**
+     * Library indexes of the candidates, {@link #candidates} entries per cell,
+     * -1 if a cell has less candidates than that.
+     */
+    private final int[] table;
+
+    LookupTableTileMatcher(final InMemoryLibrary library, final KdTreeTileMatcher kdTreeTileMatcher, final int bits, final int candidates, final int[] table) {
+	this.library = library;
+	this.kdTreeTileMatcher = kdTreeTileMatcher;
+	this.bits = bits;
+	this.candidates = candidates;
+	this.table = table;
+    }
+
+    /**
+     * Loads the lookup table for the given library from {@code file} or
+     * builds and stores a new one if the file doesn't exist or doesn't match
+     * the library or the requested dimensions.
+     *
+     * @param library The library to match against
+     * @param file The file containing the lookup table
+     * @param bits Bits per rgb channel, the table has 2<sup>3 * bits</sup>
+     * cells
+     * @param candidates Number of candidates per cell
+     * @return A new matcher
+     */
+    public static LookupTableTileMatcher loadOrBuild(final InMemoryLibrary library, final File file, final int bits, final int candidates) {
+	if (bits < 1 || bits > 8) {
+	    throw new IllegalArgumentException("Bits per channel must be between 1 and 8.");
+	}
+	if (candidates < 1) {
+	    throw new IllegalArgumentException("At least one candidate per cell is needed.");
+	}
+
+	final KdTreeTileMatcher kdTreeTileMatcher = new KdTreeTileMatcher(library);
+	final long fingerprint = library.fingerprint();
+	int[] table = file.isFile() ? read(file, fingerprint, bits, candidates) : null;
+	if (table == null) {
+	    table = build(kdTreeTileMatcher, bits, candidates);
+	    write(file, fingerprint, bits, candidates, table);
+	}
+	return new LookupTableTileMatcher(library, kdTreeTileMatcher, bits, candidates, table);
+    }
+
+    static int[] build(final KdTreeTileMatcher kdTreeTileMatcher, final int bits, final int candidates) {
+	final int shift = 8 - bits;
+	final int cells = 1 << (3 * bits);
+	final int[] table = new int[cells * candidates];
+	final Set<Integer> noExclusions = Collections.emptySet();
+	IntStream.range(0, cells).parallel().forEach(cell -> {
+	    final int r = cell >> (2 * bits);
+	    final int g = (cell >> bits) & ((1 << bits) - 1);
+	    final int b = cell & ((1 << bits) - 1);
+	    // Center of the cell
+	    final int half = (1 << shift) >> 1;
+	    final int center = 0xFF000000 | ((r << shift) + half) << 16 | ((g << shift) + half) << 8 | ((b << shift) + half);
+	    final int[] nearest = kdTreeTileMatcher.nearest(center, candidates, noExclusions);
+	    for (int i = 0; i < candidates; ++i) {
+		table[cell * candidates + i] = i < nearest.length ? nearest[i] : -1;
+	    }
+	});
+	return table;
+    }
+
+    /**
+     * @return The table stored in {@code file} or null, if it doesn't fit
+     */
+    private static int[] read(final File file, final long fingerprint, final int bits, final int candidates) {
+	try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+	    if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != fingerprint || in.readInt() != bits || in.readInt() != candidates) {
+		return null;
+	    }
+	    final int[] table = new int[(1 << (3 * bits)) * candidates];
+	    for (int i = 0; i < table.length; ++i) {
+		table[i] = in.readInt();
+	    }
+	    return table;
+	} catch (IOException e) {
+	    Logger.getLogger(LookupTableTileMatcher.class.getName()).log(Level.WARNING, "Could not read lookup table " + file + ", rebuilding it", e);
+	    return null;
+	}
+    }
+
+    private static void write(final File file, final long fingerprint, final int bits, final int candidates, final int[] table) {
+	try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+	    out.writeInt(MAGIC);
+	    out.writeInt(VERSION);
+	    out.writeLong(fingerprint);
+	    out.writeInt(bits);
+	    out.writeInt(candidates);
+	    for (int index : table) {
+		out.writeInt(index);
+	    }
+	} catch (IOException e) {
+	    throw new RuntimeException(e);
+	}
+    }
+
+    @Override
+    public Optional<Tile> match(final int x, final int y, final int averageColor, final Set<Integer> excluded) {
+	final int shift = 8 - bits;
+	final int mask = (1 << bits) - 1;
+	final int cell = ((averageColor >> (16 + shift)) & mask) << (2 * bits)
+		| ((averageColor >> (8 + shift)) & mask) << bits
+		| ((averageColor >> shift) & mask);
+
+	// Rank the candidates by their distance to the actual color
+	final double[] lab = CIE94ColorDistance.toLab(averageColor);
+	final double chroma = CIE94ColorDistance.chroma(lab[1], lab[2]);
+	int bestIndex = -1;
+	double bestDistance = Double.POSITIVE_INFINITY;
+	int ranked = 0;
+	for (int i = cell * candidates; i < (cell + 1) * candidates; ++i) {
+	    final int index = table[i];
+	    if (index < 0) {
+		break;
+	    }
+	    if (excluded.contains(library.getId(index))) {
+		continue;
+	    }
+	    ++ranked;
+	    final double distance = CIE94ColorDistance.compute(
+		    library.getL(index), library.getA(index), library.getB(index), library.getChroma(index),
+		    lab[0], lab[1], lab[2], chroma
+	    );
+	    if (distance < bestDistance || (distance == bestDistance && library.getId(index) < library.getId(bestIndex))) {
+		bestDistance = distance;
+		bestIndex = index;
+	    }
+	}
+
+	if (bestIndex < 0) {
+	    return kdTreeTileMatcher.match(x, y, averageColor, excluded);
+	}
+	CANDIDATES.record(ranked);
+	return Optional.of(library.toTile(x, y, bestIndex));
+    }
+}
@@ -15,32 +15,98 @@
  */
 package de.dailyfratze.mosaic.images;
 
+import de.dailyfratze.mosaic.metrics.Counter;
+import de.dailyfratze.mosaic.metrics.Histogram;
+import de.dailyfratze.mosaic.metrics.MetricsRegistry;
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.stream.Collectors;
-import org.h2.jdbcx.JdbcDataSource;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import org.h2.jdbcx.JdbcConnectionPool;
 import org.jooq.DSLContext;
-import org.jooq.Field;
 import org.jooq.SQLDialect;
 import org.jooq.impl.DSL;
 
-import static de.dailyfratze.mosaic.images.db.tables.Images.IMAGES;
-import static org.jooq.impl.DSL.not;
-import static org.jooq.impl.DSL.val;
-
 /**
+ * Creates mosaics from a source image and an image library. Holds
+ * connections to the library until it is closed.
  *
  * @author Michael J. Simons, 2015-03-29
  */
-public class Mosaic {
+public class Mosaic implements AutoCloseable {
+
+    private static final Counter TILES_MATCHED = MetricsRegistry.getDefault().counter("mosaic.tiles.matched");
+
+    private static final Histogram MATCH_TIME = MetricsRegistry.getDefault().timer("mosaic.match.time");
+
+    private static final Histogram LIBRARY_LOAD_TIME = MetricsRegistry.getDefault().timer("mosaic.library.load.time");
+
+    /**
+     * Available strategies for finding the best matching library image.
+     */
+    public enum Matching {
+	/**
+	 * Computes the distance to every image inside the database, one query per
+	 * tile.
+	 */
+	SQL,
+	/**
+	 * Loads the library once into an in memory k-d tree.
+	 */
+	INDEX,
+	/**
+	 * Uses a precomputed table of candidates per color, stored next to the
+	 * database. Faster than {@link #INDEX}, but only approximately finds the
+	 * nearest image.
+	 */
+	LOOKUP_TABLE,
+	/**
+	 * Retrieves candidates for a whole row of tiles with one query and
+	 * filters the excluded images in Java.
+	 */
+	BATCHED_SQL,
+	/**
+	 * Loads the library once and computes the distance to every image.
+	 * Slow, but simple, used as a baseline.
+	 */
+	BRUTE_FORCE,
+	/**
+	 * Matches a grid of average colors per tile against the signatures
+	 * stored in the library (see {@link ImageLibrary#setSignatureSize(int)}),
+	 * so that the structure of a tile is taken into account. Libraries
+	 * without signatures are matched on the average colors only.
+	 */
+	SIGNATURE
+    }
+
+    /**
+     * Connections to the library, kept open between queries. Opened on first
+     * use, so that a mosaic using a library file doesn't touch the database.
+     */
+    private JdbcConnectionPool connectionPool;
 
     /**
-     * jOOQ context for "stringless" database access.
+     * jOOQ context for "stringless" database access, see {@link #database()}.
      */
-    private final DSLContext create;
+    private DSLContext create;
+
+    private final String databaseFile;
+
+    private final Matching matching;
+
+    /**
+     * Selects the library images, created on first use.
+     */
+    private TileMatcher tileMatcher;
     
     /**
      * Tile width
@@ -52,17 +118,59 @@ public class Mosaic {
      */
     private final int tileHeight = 30;
 
+    /**
+     * An image is not used again if it has been used at most this number of
+     * tiles away in both directions.
+     */
+    private int exclusionRadius = 10;
+
+    /**
+     * Number of threads used for matching tiles.
+     */
+    private int parallelism = 1;
+
+    /**
+     * Number of candidates per tile retrieved by {@link Matching#BATCHED_SQL}.
+     */
+    private int candidatesPerTile = BatchedSqlTileMatcher.DEFAULT_CANDIDATES_PER_TILE;
+
+    /**
+     * Uniform regions may be covered by tiles of up to 2^adaptiveLevels times
+     * 2^adaptiveLevels regular tiles, 0 for regular tiles only.
+     */
+    private int adaptiveLevels = 0;
+
+    /**
+     * Maximum CIE94 distance between the average color of a regular tile and
+     * the average color of a larger tile covering it. The default is about
+     * one just noticeable difference.
+     */
+    private double adaptiveTolerance = 2.3;
+
+    /**
+     * Library exported by {@link ImageLibrary#export(File)}, loaded instead
+     * of the database if not null.
+     */
+    private File libraryFile;
+
     private final BufferedImage sourceImage;
 
+    /**
+     * Computed once, used for the average colors of all tiles.
+     */
+    private final SummedAreaTable summedAreaTable;
+
     public Mosaic(final String databaseFile, final String sourceImageFile) {
-	final String databaseUrl = String.format("jdbc:h2:file:%s;FILE_LOCK=FS", databaseFile);
+	this(databaseFile, sourceImageFile, Matching.INDEX);
+    }
 
-	final JdbcDataSource jdbcDataSource = new JdbcDataSource();
-	jdbcDataSource.setUrl(databaseUrl);
-	this.create = DSL.using(jdbcDataSource, SQLDialect.H2);
+    public Mosaic(final String databaseFile, final String sourceImageFile, final Matching matching) {
+	this.databaseFile = databaseFile;
+	this.matching = matching;
 	try (AutoCloseableImageReader imageReader = AutoCloseableImageReader.create(new File(sourceImageFile))) {
 	    this.sourceImage = imageReader.read();
 	}
+	this.summedAreaTable = new SummedAreaTable(sourceImage);
     }
 
     public int getTileWidth() {
@@ -73,68 +181,473 @@ public class Mosaic {
 	return tileHeight;
     }
 
+    public int getExclusionRadius() {
+	return exclusionRadius;
+    }
+
+    public void setExclusionRadius(final int exclusionRadius) {
+	if (exclusionRadius < 0) {
+	    throw new IllegalArgumentException("Exclusion radius must not be negative.");
+	}
+	this.exclusionRadius = exclusionRadius;
+    }
+
+    public int getParallelism() {
+	return parallelism;
+    }
+
+    /**
+     * Sets the number of threads used for matching tiles. The result is the
+     * same for every value, only the time it takes differs.
+     *
+     * @param parallelism Number of threads, 1 for matching on the calling
+     * thread
+     */
+    public void setParallelism(final int parallelism) {
+	if (parallelism < 1) {
+	    throw new IllegalArgumentException("Parallelism must be at least 1.");
+	}
+	this.parallelism = parallelism;
+    }
+
+    public int getCandidatesPerTile() {
+	return candidatesPerTile;
+    }
+
+    /**
+     * Sets the number of candidates per tile retrieved by
+     * {@link Matching#BATCHED_SQL}. The more candidates, the less often single
+     * tiles must be queried again because all candidates are excluded. Must be
+     * set before the first mosaic is created.
+     *
+     * @param candidatesPerTile Number of candidates per tile
+     */
+    public void setCandidatesPerTile(final int candidatesPerTile) {
+	if (candidatesPerTile < 1) {
+	    throw new IllegalArgumentException("At least one candidate per tile is needed.");
+	}
+	this.candidatesPerTile = candidatesPerTile;
+    }
+
+    public int getAdaptiveLevels() {
+	return adaptiveLevels;
+    }
+
+    /**
+     * Enables adaptive tiling: The image is divided into squares of
+     * 2^adaptiveLevels regular tiles which are recursively split into four
+     * quadrants unless all regular tiles inside are within
+     * {@link #setAdaptiveTolerance(double)} of the average color of the
+     * square. Uniform regions like sky thereby need far less tiles and
+     * lookups. Adaptive mosaics are always matched on the calling thread.
+     *
+     * @param adaptiveLevels Number of levels, 0 disables adaptive tiling
+     */
+    public void setAdaptiveLevels(final int adaptiveLevels) {
+	if (adaptiveLevels < 0 || adaptiveLevels > 8) {
+	    throw new IllegalArgumentException("Adaptive levels must be between 0 and 8.");
+	}
+	this.adaptiveLevels = adaptiveLevels;
+    }
+
+    public double getAdaptiveTolerance() {
+	return adaptiveTolerance;
+    }
+
+    /**
+     * @param adaptiveTolerance Maximum CIE94 distance between the average
+     * color of a regular tile and the one of a larger tile covering it
+     */
+    public void setAdaptiveTolerance(final double adaptiveTolerance) {
+	if (adaptiveTolerance < 0) {
+	    throw new IllegalArgumentException("Adaptive tolerance must not be negative.");
+	}
+	this.adaptiveTolerance = adaptiveTolerance;
+    }
+
+    public File getLibraryFile() {
+	return libraryFile;
+    }
+
+    /**
+     * Loads the library for all in memory matchings from a library file
+     * instead of the database, which isn't opened at all then.
+     * {@link Matching#SQL} and {@link Matching#BATCHED_SQL} always need the
+     * database.
+     *
+     * @param libraryFile A file written by {@link ImageLibrary#export(File)}
+     * or null for the database
+     */
+    public void setLibraryFile(final File libraryFile) {
+	if (libraryFile != null && (matching == Matching.SQL || matching == Matching.BATCHED_SQL)) {
+	    throw new IllegalArgumentException(String.format("%s matching queries the database and can't use the library file %s.", matching, libraryFile));
+	}
+	this.libraryFile = libraryFile;
+    }
+
     public BufferedImage getSourceImage() {
 	return sourceImage;
     }
 
+    /**
+     * @return Number of regular tiles per row of the mosaic
+     */
+    public int getColumns() {
+	return (sourceImage.getWidth() + tileWidth - 1) / tileWidth;
+    }
+
+    /**
+     * @return Number of rows of regular tiles of the mosaic
+     */
+    public int getRows() {
+	return (sourceImage.getHeight() + tileHeight - 1) / tileHeight;
+    }
+
     /**
      * Public api for creating mosaics. The basic idea is to cut the source
      * image into tiles and compute the average color in this tiles and
      * selecting the library image with the minimal CIE94 to this color which
-     * hasn't been used in a 10x10 box.
+     * hasn't been used in a box around the tile (see
+     * {@link #setExclusionRadius(int)}). How that image is found depends on the
+     * {@link Matching} this mosaic has been created with.<br>
+     * The tiles are added to {@code target} on the calling thread, if matched
+     * in parallel by the worker threads, one at a time. Use
+     * {@link #stream(TileSink)} for processing tiles as they are matched.
      *
      * @param target The list of tiles. Not a finished image.
      * @return
      */
     public List<Tile> create(final List<Tile> target) {
 	final List<Tile> tiles = target == null ? new ArrayList<>() : target;
+	matchTiles(tiles::add);
+	return tiles;
+    }
+
+    /**
+     * Creates the mosaic in the background and passes the tiles in batches of
+     * {@link TileStream#DEFAULT_BATCH_SIZE} to {@code sink}, see
+     * {@link #stream(TileSink, int, int)}.
+     *
+     * @param sink Receives the tiles
+     * @return A handle for waiting for or cancelling the mosaic
+     */
+    public TileStream stream(final TileSink sink) {
+	return stream(sink, TileStream.DEFAULT_BATCH_SIZE, TileStream.DEFAULT_BUFFERED_BATCHES);
+    }
+
+    /**
+     * Creates the mosaic in the background and passes the tiles in the same
+     * order as {@link #create(List)} to {@code sink} as soon as
+     * {@code batchSize} tiles have been matched. The sink is called from a
+     * single thread. If it falls {@code bufferedBatches} batches behind,
+     * matching waits for it.
+     *
+     * @param sink Receives the tiles
+     * @param batchSize Number of tiles per batch, the last batch may be
+     * smaller
+     * @param bufferedBatches Maximum number of batches waiting for the sink
+     * @return A handle for waiting for or cancelling the mosaic
+     */
+    public TileStream stream(final TileSink sink, final int batchSize, final int bufferedBatches) {
+	final TileStream rv = new TileStream(sink, batchSize, bufferedBatches);
+	rv.start(this::matchTiles);
+	return rv;
+    }
+
+    /**
+     * Matches all tiles of the mosaic and passes them to {@code tiles}.
+     */
+    private void matchTiles(final Consumer<Tile> tiles) {
+	final TileMatcher tileMatcher = getTileMatcher();
+	synchronized (this) {
+	    // Every matching thread may keep a connection
+	    if (connectionPool != null) {
+		connectionPool.setMaxConnections(Math.max(connectionPool.getMaxConnections(), parallelism + 1));
+	    }
+	}
+
+	final int columns = getColumns();
+	final int rows = getRows();
+	final ExclusionGrid exclusionGrid = new ExclusionGrid(columns, rows, exclusionRadius);
+
+	if (adaptiveLevels > 0) {
+	    createAdaptive(tileMatcher, columns, rows, exclusionGrid, tiles);
+	} else if (parallelism > 1 && rows > 1) {
+	    createInParallel(tileMatcher, columns, rows, exclusionGrid, tiles);
+	} else {
+	    for (int j = 0; j < rows; ++j) {
+		prepareRow(tileMatcher, columns, j);
+		for (int i = 0; i < columns; ++i) {
+		    matchTile(tileMatcher, i, j, exclusionGrid).ifPresent(tiles);
+		}
+	    }
+	}
+    }
 
-	final int sourceWidth = sourceImage.getWidth();
-	final int sourceHeight = sourceImage.getHeight();
-
-	int ty = 0;
-
-	int j = 0;
-	while (ty < sourceHeight) {	    
-	    final int height = Math.min(tileHeight, sourceHeight - ty);	    
-	    int tx = 0;
-	    int i = 0;
-	    while (tx < sourceWidth) {
-		final int width = Math.min(tileWidth, sourceWidth - tx);
-		final int tileAvgColor = Arrays
-			.stream(sourceImage.getRGB(tx, ty, width, height, null, 0, width))
-			.parallel()
-			.collect(RGBAverage::new, RGBAverage::accept, RGBAverage::combine)
-			.value();
-		// That is a reference to a stored procedure, one parameter filled from
-		// a column, the other one from a single, constant value computed above.
-		final Field<Double> cie94ColorDistance = DSL.function("f_CIE94_color_distance", Double.class, IMAGES.AVERAGE_COLOR, val(tileAvgColor));
-		final int tileX = i, tileY = j;
-		final List<Integer> exclude = tiles.stream()
-			.filter(t -> Math.abs(t.getX() - tileX) <= 10)
-			.filter(t -> Math.abs(t.getY() - tileY) <= 10)
-			.map(Tile::getImageId)
-			.collect(Collectors.toList());
-		tiles.addAll(create
-			.select(
-				IMAGES.ID,
-				IMAGES.ABSOLUTE_FILE_NAME,
-				IMAGES.TAKEN_ON
-			)
-			.from(IMAGES)
-			.where(not(IMAGES.ID.in(exclude)))
-			.orderBy(cie94ColorDistance.asc())
-			.limit(1)
-			.fetch()
-			.map(r -> new Tile(tileX, tileY, r.getValue(IMAGES.ID), r.getValue(IMAGES.ABSOLUTE_FILE_NAME), r.getValue(IMAGES.TAKEN_ON).toLocalDate()))
+    /**
+     * Divides the mosaic into a quadtree of tiles (see
+     * {@link #setAdaptiveLevels(int)}) and matches them in the order of the
+     * squares and inside them from top left to bottom right. Larger tiles are
+     * matched with the average color of their whole area.
+     */
+    private void createAdaptive(final TileMatcher tileMatcher, final int columns, final int rows, final ExclusionGrid exclusionGrid, final Consumer<Tile> tiles) {
+	// Lab coordinates of all regular tiles, computed once for every level
+	final double[] lab = new double[columns * rows * 3];
+	for (int j = 0; j < rows; ++j) {
+	    for (int i = 0; i < columns; ++i) {
+		LabConverter.toLab(averageColor(i, j, 1), lab, (j * columns + i) * 3);
+	    }
+	}
+
+	final int size = 1 << adaptiveLevels;
+	for (int j = 0; j < rows; j += size) {
+	    for (int i = 0; i < columns; i += size) {
+		createQuadrant(tileMatcher, columns, rows, lab, i, j, size, exclusionGrid, tiles);
+	    }
+	}
+    }
+
+    private void createQuadrant(final TileMatcher tileMatcher, final int columns, final int rows, final double[] lab, final int tileX, final int tileY, final int size, final ExclusionGrid exclusionGrid, final Consumer<Tile> tiles) {
+	if (tileX >= columns || tileY >= rows) {
+	    return;
+	}
+	final boolean inside = tileX + size <= columns && tileY + size <= rows;
+	if (size == 1 || inside && isUniform(columns, lab, tileX, tileY, size)) {
+	    final Set<Integer> exclude = exclusionGrid.excludedAround(tileX, tileY, size, size);
+	    match(tileMatcher, tileX, tileY, size, exclude).ifPresent(tile -> {
+		exclusionGrid.place(tileX, tileY, size, size, tile.getImageId());
+		tiles.accept(size == 1 ? tile : new Tile(tileX, tileY, size, size, tile.getImageId(), tile.getAbsoluteFilename(), tile.getTakenOn()));
+	    });
+	} else {
+	    final int half = size / 2;
+	    createQuadrant(tileMatcher, columns, rows, lab, tileX, tileY, half, exclusionGrid, tiles);
+	    createQuadrant(tileMatcher, columns, rows, lab, tileX + half, tileY, half, exclusionGrid, tiles);
+	    createQuadrant(tileMatcher, columns, rows, lab, tileX, tileY + half, half, exclusionGrid, tiles);
+	    createQuadrant(tileMatcher, columns, rows, lab, tileX + half, tileY + half, half, exclusionGrid, tiles);
+	}
+    }
+
+    /**
+     * @return True, if all regular tiles inside the given square are within
+     * {@link #adaptiveTolerance} of the average color of the square
+     */
+    private boolean isUniform(final int columns, final double[] lab, final int tileX, final int tileY, final int size) {
+	final double[] average = new double[3];
+	LabConverter.toLab(averageColor(tileX, tileY, size), average, 0);
+	final double averageChroma = CIE94ColorDistance.chroma(average[1], average[2]);
+	for (int j = tileY; j < tileY + size; ++j) {
+	    for (int i = tileX; i < tileX + size; ++i) {
+		final int offset = (j * columns + i) * 3;
+		final double distance = CIE94ColorDistance.compute(
+			average[0], average[1], average[2], averageChroma,
+			lab[offset], lab[offset + 1], lab[offset + 2], CIE94ColorDistance.chroma(lab[offset + 1], lab[offset + 2])
 		);
-		++i;
-		tx += tileWidth;
+		if (distance > adaptiveTolerance) {
+		    return false;
+		}
 	    }
-	    ++j;
-	    ty += tileHeight;
 	}
+	return true;
+    }
 
-	return tiles;
+    /**
+     * Matches the rows of the mosaic on {@link #parallelism} threads. A tile
+     * may only be matched after all tiles before it that are inside its
+     * exclusion box have been matched, so a row can only proceed up to
+     * {@link #exclusionRadius} + 1 tiles behind the row above. Thereby each
+     * tile sees exactly the same excluded images as in sequential matching and
+     * the result is identical. Rows are passed to {@code tiles} in order, as
+     * soon as they and all rows above are complete.
+     */
+    private void createInParallel(final TileMatcher tileMatcher, final int columns, final int rows, final ExclusionGrid exclusionGrid, final Consumer<Tile> tiles) {
+	// Number of matched tiles per row, also used for synchronization
+	final int[] progress = new int[rows];
+	final List<List<Tile>> matchedRows = new ArrayList<>(Collections.nCopies(rows, null));
+	final int[] nextRowToAdd = {0};
+
+	final ExecutorService executorService = Executors.newFixedThreadPool(parallelism);
+	try {
+	    final List<Future<Void>> futures = new ArrayList<>(rows);
+	    for (int j = 0; j < rows; ++j) {
+		final int tileY = j;
+		// Rows are submitted in order, so that the row above is always
+		// running before the current row starts waiting for it
+		futures.add(executorService.submit(() -> {
+		    prepareRow(tileMatcher, columns, tileY);
+		    final List<Tile> row = new ArrayList<>(columns);
+		    for (int i = 0; i < columns; ++i) {
+			if (tileY > 0) {
+			    final int required = Math.min(i + exclusionRadius + 1, columns);
+			    synchronized (progress) {
+				while (progress[tileY - 1] < required) {
+				    progress.wait();
+				}
+			    }
+			}
+			matchTile(tileMatcher, i, tileY, exclusionGrid).ifPresent(row::add);
+			synchronized (progress) {
+			    progress[tileY] = i + 1;
+			    progress.notifyAll();
+			}
+		    }
+		    synchronized (progress) {
+			matchedRows.set(tileY, row);
+			while (nextRowToAdd[0] < rows && matchedRows.get(nextRowToAdd[0]) != null) {
+			    matchedRows.set(nextRowToAdd[0]++, Collections.emptyList()).forEach(tiles);
+			}
+		    }
+		    return null;
+		}));
+	    }
+	    for (Future<Void> future : futures) {
+		future.get();
+	    }
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new RuntimeException(e);
+	} catch (ExecutionException e) {
+	    throw new RuntimeException(e.getCause());
+	} finally {
+	    executorService.shutdownNow();
+	}
+    }
+
+    /**
+     * Closes the tile matcher and all connections to the library. The mosaic
+     * can't be used anymore afterwards.
+     */
+    @Override
+    public synchronized void close() {
+	if (tileMatcher != null) {
+	    tileMatcher.close();
+	}
+	if (connectionPool != null) {
+	    connectionPool.dispose();
+	}
+    }
+
+    /**
+     * Opens the connections to the database on first use.
+     *
+     * @return The jOOQ context of the database
+     */
+    private synchronized DSLContext database() {
+	if (create == null) {
+	    connectionPool = JdbcConnectionPool.create(String.format("jdbc:h2:file:%s;FILE_LOCK=FS", databaseFile), "", "");
+	    create = DSL.using(connectionPool, SQLDialect.H2);
+	}
+	return create;
+    }
+
+    /**
+     * Creates the tile matcher for the selected {@link Matching} on first use.
+     *
+     * @return The tile matcher
+     */
+    private synchronized TileMatcher getTileMatcher() {
+	if (tileMatcher == null) {
+	    switch (matching) {
+		case SQL:
+		    tileMatcher = new SqlTileMatcher(database());
+		    break;
+		case BATCHED_SQL:
+		    tileMatcher = new BatchedSqlTileMatcher(database(), candidatesPerTile);
+		    break;
+		case BRUTE_FORCE:
+		    tileMatcher = new BruteForceTileMatcher(loadLibrary());
+		    break;
+		case SIGNATURE:
+		    tileMatcher = new SignatureTileMatcher(loadLibrary());
+		    break;
+		case LOOKUP_TABLE:
+		    tileMatcher = LookupTableTileMatcher.loadOrBuild(
+			    loadLibrary(), new File(databaseFile + ".lut"),
+			    LookupTableTileMatcher.DEFAULT_BITS, LookupTableTileMatcher.DEFAULT_CANDIDATES
+		    );
+		    break;
+		default:
+		    tileMatcher = new KdTreeTileMatcher(loadLibrary());
+	    }
+	}
+	return tileMatcher;
+    }
+
+    /**
+     * @return The library from the library file if set, otherwise from the
+     * database
+     */
+    private InMemoryLibrary loadLibrary() {
+	final long start = System.nanoTime();
+	try {
+	    return libraryFile == null ? InMemoryLibrary.load(database()) : LibraryFile.load(libraryFile);
+	} catch (IOException e) {
+	    throw new RuntimeException(e);
+	} finally {
+	    LIBRARY_LOAD_TIME.recordSince(start);
+	}
+    }
+
+    /**
+     * Passes the average colors of all tiles in row {@code tileY} to the
+     * matcher.
+     */
+    private void prepareRow(final TileMatcher tileMatcher, final int columns, final int tileY) {
+	final int[] averageColors = new int[columns];
+	for (int i = 0; i < columns; ++i) {
+	    averageColors[i] = averageColor(i, tileY, 1);
+	}
+	tileMatcher.prepareRow(tileY, averageColors);
+    }
+
+    /**
+     * @return The average color of the source image inside the square of
+     * {@code size} times {@code size} tiles at the given position
+     */
+    private int averageColor(final int tileX, final int tileY, final int size) {
+	final int tx = tileX * tileWidth;
+	final int ty = tileY * tileHeight;
+	final int width = Math.min(size * tileWidth, sourceImage.getWidth() - tx);
+	final int height = Math.min(size * tileHeight, sourceImage.getHeight() - ty);
+	return summedAreaTable.averageColor(tx, ty, width, height);
+    }
+
+    /**
+     * Matches the square of {@code size} times {@code size} tiles at the given
+     * position by its average color or, if the matcher compares signatures, by
+     * the average colors of its regions.
+     */
+    private Optional<Tile> match(final TileMatcher tileMatcher, final int tileX, final int tileY, final int size, final Set<Integer> excluded) {
+	final long start = System.nanoTime();
+	final int signatureSize = tileMatcher.signatureSize();
+	final Optional<Tile> rv;
+	if (signatureSize == 0) {
+	    rv = tileMatcher.match(tileX, tileY, averageColor(tileX, tileY, size), excluded);
+	} else {
+	    final int tx = tileX * tileWidth;
+	    final int ty = tileY * tileHeight;
+	    final int width = Math.min(size * tileWidth, sourceImage.getWidth() - tx);
+	    final int height = Math.min(size * tileHeight, sourceImage.getHeight() - ty);
+	    rv = tileMatcher.matchSignature(tileX, tileY, summedAreaTable.averageColors(tx, ty, width, height, signatureSize), excluded);
+	}
+	MATCH_TIME.recordSince(start);
+	TILES_MATCHED.increment();
+	return rv;
+    }
+
+    /**
+     * Computes the average color of the tile at {@code tileX, tileY}, selects
+     * the best image for it and marks that image as used.
+     *
+     * @param tileMatcher The matcher to use
+     * @param tileX x-position of the tile
+     * @param tileY y-position of the tile
+     * @param exclusionGrid Images used so far
+     * @return The matched tile, if any
+     */
+    private Optional<Tile> matchTile(final TileMatcher tileMatcher, final int tileX, final int tileY, final ExclusionGrid exclusionGrid) {
+	final Set<Integer> exclude = exclusionGrid.excludedAround(tileX, tileY);
+	final Optional<Tile> rv = match(tileMatcher, tileX, tileY, 1, exclude);
+	rv.ifPresent(tile -> exclusionGrid.place(tile.getX(), tile.getY(), tile.getImageId()));
+	return rv;
     }
 }
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.images;
+
+import de.dailyfratze.mosaic.metrics.Histogram;
+import de.dailyfratze.mosaic.metrics.MetricsRegistry;
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Draws the tiles of a mosaic over its scaled source image, which is blend
+ * over the tiles for some additional color correction. Can be passed directly
+ * to {@link Mosaic#stream(TileSink)}.<br>
+ * The target image is split into bands, one row of tiles high. Each batch of
+ * tiles is sorted into the bands it covers and the bands are drawn by
+ * {@link #setParallelism(int)} threads, each one decoding its tiles and
+ * compositing them into its own band only. Tiles don't overlap and every
+ * pixel is computed the same way in every band, so the result is the same
+ * for every parallelism. Batches spanning several rows keep all threads
+ * busy, see {@link Mosaic#stream(TileSink, int, int)}.<br>
+ * Decoded images are scaled to the size of their tiles and kept in a
+ * {@link TileCache}. If the cache is large enough for all distinct images of a
+ * mosaic, each of them is decoded once per render, otherwise at least once
+ * per batch.
+ *
+ * @author Michael J. Simons, 2015-04-26
+ */
+public final class MosaicRenderer implements TileSink, AutoCloseable {
+
+    /**
+     * Opacity of the tiles over the source image.
+     */
+    public static final float TILE_ALPHA = 0.7f;
+
+    private static final Histogram TILE_DECODE_TIME = MetricsRegistry.getDefault().timer("render.tile.decode.time");
+
+    private static final Histogram DRAW_TIME = MetricsRegistry.getDefault().timer("render.draw.time");
+
+    private final BufferedImage sourceImage;
+
+    private final BufferedImage target;
+
+    private final int tileWidth;
+
+    private final int tileHeight;
+
+    private final Function<Tile, BufferedImage> decoder;
+
+    private TileCache tileCache = new TileCache(0);
+
+    private int parallelism = 1;
+
+    /**
+     * Draws the bands if {@link #parallelism} is greater than 1, created with
+     * the first batch.
+     */
+    private ExecutorService executorService;
+
+    private boolean sourceImageDrawn;
+
+    private long renderedTiles;
+
+    /**
+     * Creates the target image. The scaled source image is drawn into it
+     * together with the first batch of tiles.
+     *
+     * @param sourceImage The source image of the mosaic
+     * @param columns Number of tiles per row, see {@link Mosaic#getColumns()}
+     * @param rows Number of rows, see {@link Mosaic#getRows()}
+     * @param tileWidth Width of a tile in the target image
+     * @param tileHeight Height of a tile in the target image
+     * @param decoder Decodes the library image of a tile, in any size. Called
+     * concurrently if the parallelism is greater than 1.
+     */
+    public MosaicRenderer(final BufferedImage sourceImage, final int columns, final int rows, final int tileWidth, final int tileHeight, final Function<Tile, BufferedImage> decoder) {
+	if (tileWidth < 1 || tileHeight < 1) {
+	    throw new IllegalArgumentException("Tiles must be at least 1x1 pixels.");
+	}
+	this.sourceImage = sourceImage;
+	this.target = new BufferedImage(columns * tileWidth, rows * tileHeight, BufferedImage.TYPE_INT_RGB);
+	this.tileWidth = tileWidth;
+	this.tileHeight = tileHeight;
+	this.decoder = decoder;
+    }
+
+    public int getParallelism() {
+	return parallelism;
+    }
+
+    /**
+     * Sets the number of threads drawing the bands. The result is the same
+     * for every value, only the time it takes differs. Must be set before the
+     * first batch.
+     *
+     * @param parallelism Number of threads, 1 for drawing on the calling
+     * thread
+     */
+    public synchronized void setParallelism(final int parallelism) {
+	if (parallelism < 1) {
+	    throw new IllegalArgumentException("Parallelism must be at least 1.");
+	}
+	if (executorService != null) {
+	    throw new IllegalStateException("Parallelism can't be changed while rendering.");
+	}
+	this.parallelism = parallelism;
+    }
+
+    public TileCache getTileCache() {
+	return tileCache;
+    }
+
+    /**
+     * @param tileCache Cache for the scaled tiles, may be shared between
+     * renderers with the same library
+     */
+    public void setTileCache(final TileCache tileCache) {
+	if (tileCache == null) {
+	    throw new IllegalArgumentException("Tile cache must not be null.");
+	}
+	this.tileCache = tileCache;
+    }
+
+    /**
+     * @return The mosaic, complete after {@link #onComplete()}
+     */
+    public BufferedImage getTarget() {
+	return target;
+    }
+
+    /**
+     * @return Number of tiles drawn so far
+     */
+    public synchronized long getRenderedTiles() {
+	return renderedTiles;
+    }
+
+    @Override
+    public synchronized void onTiles(final List<Tile> tiles) {
+	drawSourceImage();
+	// Without cache, images are still decoded only once per batch
+	final TileCache batchCache = tileCache.getMaximumBytes() > 0 ? tileCache : new TileCache(Long.MAX_VALUE);
+	final Map<Integer, List<Tile>> tilesByBand = new TreeMap<>();
+	tiles.forEach(tile -> {
+	    // Tiles of adaptive mosaics may cover more than one grid cell
+	    for (int j = tile.getY(); j < tile.getY() + tile.getHeight(); ++j) {
+		tilesByBand.computeIfAbsent(j, band -> new ArrayList<>()).add(tile);
+	    }
+	});
+	final List<Callable<Void>> bands = new ArrayList<>(tilesByBand.size());
+	tilesByBand.forEach((band, tilesInBand) -> bands.add(() -> {
+	    drawTiles(band, tilesInBand, batchCache);
+	    return null;
+	}));
+	run(bands);
+	renderedTiles += tiles.size();
+    }
+
+    @Override
+    public synchronized void onComplete() {
+	drawSourceImage();
+	Logger.getLogger(MosaicRenderer.class.getName()).log(Level.INFO, "Rendered {0} tiles, decoded {1} images, tile cache hit rate {2,number,percent}", new Object[]{renderedTiles, tileCache.getMisses(), tileCache.getHitRate()});
+    }
+
+    /**
+     * Stops the threads drawing the bands.
+     */
+    @Override
+    public synchronized void close() {
+	if (executorService != null) {
+	    executorService.shutdownNow();
+	}
+    }
+
+    private void drawSourceImage() {
+	if (sourceImageDrawn) {
+	    return;
+	}
+	final List<Callable<Void>> bands = new ArrayList<>(target.getHeight() / tileHeight);
+	for (int j = 0; j < target.getHeight() / tileHeight; ++j) {
+	    final int band = j;
+	    bands.add(() -> {
+		final Graphics2D g2 = createGraphics(band(band));
+		g2.drawImage(sourceImage, 0, -band * tileHeight, target.getWidth(), target.getHeight(), null);
+		g2.dispose();
+		return null;
+	    });
+	}
+	run(bands);
+	sourceImageDrawn = true;
+    }
+
+    /**
+     * Draws the part of {@code tiles} inside {@code band}. Tiles are grouped
+     * by image so that each image is requested from the cache once in a row.
+     */
+    private void drawTiles(final int band, final List<Tile> tiles, final TileCache cache) {
+	final Map<Integer, List<Tile>> tilesByImage = new LinkedHashMap<>();
+	tiles.forEach(tile -> tilesByImage.computeIfAbsent(tile.getImageId(), imageId -> new ArrayList<>()).add(tile));
+
+	final Graphics2D g2 = createGraphics(band(band));
+	g2.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, TILE_ALPHA));
+	tilesByImage.values().forEach(sameImage -> sameImage.forEach(tile -> {
+	    final BufferedImage scaled = cache.get(tile.getImageId(), tile.getWidth() * tileWidth, tile.getHeight() * tileHeight, () -> {
+		final long start = System.nanoTime();
+		final BufferedImage image = decoder.apply(tile);
+		TILE_DECODE_TIME.recordSince(start);
+		return image;
+	    });
+	    final long start = System.nanoTime();
+	    g2.drawImage(scaled, tile.getX() * tileWidth, (tile.getY() - band) * tileHeight, null);
+	    DRAW_TIME.recordSince(start);
+	}));
+	g2.dispose();
+    }
+
+    /**
+     * @return The part of the target image covered by the given row of tiles,
+     * sharing its pixels
+     */
+    private BufferedImage band(final int band) {
+	return target.getSubimage(0, band * tileHeight, target.getWidth(), tileHeight);
+    }
+
+    /**
+     * Runs {@code bands} on the calling thread or the pool, depending on the
+     * parallelism, and waits for all of them.
+     */
+    private void run(final List<Callable<Void>> bands) {
+	try {
+	    if (parallelism == 1 || bands.size() == 1) {
+		for (Callable<Void> band : bands) {
+		    band.call();
+		}
+		return;
+	    }
+	    if (executorService == null) {
+		executorService = Executors.newFixedThreadPool(parallelism);
+	    }
+	    for (Future<Void> future : executorService.invokeAll(bands)) {
+		future.get();
+	    }
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new RuntimeException(e);
+	} catch (ExecutionException e) {
+	    throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+	} catch (RuntimeException e) {
+	    throw e;
+	} catch (Exception e) {
+	    throw new RuntimeException(e);
+	}
+    }
+
+    /**
+     * Scales {@code image} with the same quality as the mosaic is rendered.
+     *
+     * @return {@code image} itself if it already has the requested size and
+     * type, otherwise a scaled copy
+     */
+    static BufferedImage scale(final BufferedImage image, final int width, final int height) {
+	if (image.getWidth() == width && image.getHeight() == height && image.getType() == BufferedImage.TYPE_INT_RGB) {
+	    return image;
+	}
+	final BufferedImage rv = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+	final Graphics2D g2 = createGraphics(rv);
+	g2.drawImage(image, 0, 0, width, height, null);
+	g2.dispose();
+	return rv;
+    }
+
+    /**
+     * @return Graphics with as much quality as it gets
+     */
+    static Graphics2D createGraphics(final BufferedImage image) {
+	final Graphics2D g2 = image.createGraphics();
+	g2.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+	g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+	g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+	g2.setRenderingHint(RenderingHints.KEY_COLOR_RENDERING, RenderingHints.VALUE_COLOR_RENDER_QUALITY);
+	g2.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_NORMALIZE);
+	g2.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS, RenderingHints.VALUE_FRACTIONALMETRICS_ON);
+	g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+	g2.setRenderingHint(RenderingHints.KEY_ALPHA_INTERPOLATION, RenderingHints.VALUE_ALPHA_INTERPOLATION_QUALITY);
+	return g2;
+    }
+}
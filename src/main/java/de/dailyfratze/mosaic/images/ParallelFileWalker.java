@@ -0,0 +1,160 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.images;
+
+import de.dailyfratze.mosaic.metrics.Counter;
+import de.dailyfratze.mosaic.metrics.MetricsRegistry;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Walks a directory tree with a fork/join pool, listing each directory in its
+ * own task. On network file systems listing a directory is mostly waiting
+ * for the server, so listing many of them at once shortens the walk of trees
+ * with a lot of small directories (for example one per day) considerably.<br>
+ * Files are filtered by name while walking and passed on as soon as they are
+ * found. Like {@link Files#walkFileTree(java.nio.file.Path, java.nio.file.FileVisitor)}
+ * symbolic links are not followed.
+ *
+ * @author Michael J. Simons, 2015-04-22
+ */
+final class ParallelFileWalker {
+
+    private static final Counter DIRECTORIES_LISTED = MetricsRegistry.getDefault().counter("library.directories.listed");
+
+    private static final Counter FILES_ENUMERATED = MetricsRegistry.getDefault().counter("library.files.enumerated");
+
+    private final int parallelism;
+
+    private final Pattern filenamePattern;
+
+    private final LongAdder directories = new LongAdder();
+
+    private final LongAdder visitedFiles = new LongAdder();
+
+    private final LongAdder matchingFiles = new LongAdder();
+
+    /**
+     * @param parallelism Maximum number of directories listed at once
+     * @param filenamePattern Files must match this pattern to be passed on
+     */
+    ParallelFileWalker(final int parallelism, final Pattern filenamePattern) {
+	if (parallelism < 1) {
+	    throw new IllegalArgumentException("Parallelism must be at least 1.");
+	}
+	this.parallelism = parallelism;
+	this.filenamePattern = filenamePattern;
+    }
+
+    /**
+     * Walks the tree below {@code baseDir} and logs the throughput. Can be
+     * called once per instance.
+     *
+     * @param baseDir Root of the tree
+     * @param files Receives the regular files matching the pattern, called
+     * concurrently
+     * @throws IOException if a directory couldn't be listed
+     */
+    void walk(final Path baseDir, final Consumer<File> files) throws IOException {
+	final long start = System.nanoTime();
+	final ForkJoinPool pool = new ForkJoinPool(parallelism);
+	try {
+	    pool.invoke(new DirectoryTask(baseDir, files));
+	} catch (UncheckedIOException e) {
+	    throw e.getCause();
+	} finally {
+	    pool.shutdown();
+	}
+	final double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+	Logger.getLogger(ParallelFileWalker.class.getName()).log(Level.INFO,
+		"Walked {0} directories and {1} files in {2} s ({3} files/s), {4} files match",
+		new Object[]{directories.sum(), visitedFiles.sum(), String.format("%.3f", seconds), Math.round(visitedFiles.sum() / seconds), matchingFiles.sum()}
+	);
+    }
+
+    long getDirectories() {
+	return directories.sum();
+    }
+
+    long getVisitedFiles() {
+	return visitedFiles.sum();
+    }
+
+    long getMatchingFiles() {
+	return matchingFiles.sum();
+    }
+
+    /**
+     * Lists a single directory and forks a task for each subdirectory.
+     */
+    private final class DirectoryTask extends RecursiveAction {
+
+	private static final long serialVersionUID = 1L;
+
+	private final Path directory;
+
+	private final Consumer<File> files;
+
+	DirectoryTask(final Path directory, final Consumer<File> files) {
+	    this.directory = directory;
+	    this.files = files;
+	}
+
+	@Override
+	protected void compute() {
+	    final List<DirectoryTask> subdirectories = new ArrayList<>();
+	    try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+		directories.increment();
+		DIRECTORIES_LISTED.increment();
+		for (Path entry : entries) {
+		    final BasicFileAttributes attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		    if (attrs.isDirectory()) {
+			final DirectoryTask subdirectory = new DirectoryTask(entry, files);
+			subdirectory.fork();
+			subdirectories.add(subdirectory);
+		    } else if (attrs.isRegularFile()) {
+			visitedFiles.increment();
+			FILES_ENUMERATED.increment();
+			if (filenamePattern.matcher(entry.getFileName().toString()).matches()) {
+			    matchingFiles.increment();
+			    files.accept(entry.toFile());
+			}
+		    }
+		}
+	    } catch (IOException e) {
+		throw new UncheckedIOException(e);
+	    }
+	    for (DirectoryTask subdirectory : subdirectories) {
+		subdirectory.join();
+	    }
+	}
+    }
+}
@@ -23,8 +23,9 @@ import java.awt.Color;
  */
 public class RGBAverage {
 
-    private int r = 0, g = 0, b = 0;
-    private int cnt;
+    // Sums of large images don't fit into an int
+    private long r = 0, g = 0, b = 0;
+    private long cnt;
 
     public void accept(int rgb) {
 	r += (rgb >> 16) & 0xFF;
@@ -41,6 +42,6 @@ public class RGBAverage {
     }
 
     public int value() {
-	return new Color(r / cnt, g / cnt, b / cnt).getRGB();
+	return new Color((int) (r / cnt), (int) (g / cnt), (int) (b / cnt)).getRGB();
     }
 }
@@ -0,0 +1,393 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.images;
+
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Matches the signatures of tiles, a grid of average colors, against the
+ * signatures of an in memory library. The distance of two signatures is the
+ * sum of the CIE94 distances of their regions.<br>
+ * Signatures have 4 or 9 times as many colors as a single average, so two
+ * techniques keep the number of computed distances down:
+ * <ul>
+ * <li>Lower bound pruning: As in the {@link KdTreeTileMatcher}, each region
+ * distance is at least the euclidean distance in L*a*b* with a*b* scaled by
+ * {@code 1 / (1 + K1 * C)}. By the triangle inequality the sum of those is at
+ * least the number of regions times the same distance between the mean
+ * L*a*b* values of both signatures, using the largest chroma of the library
+ * signature. The mean values are stored in a k-d tree and nodes whose bound
+ * exceeds the best distance found so far are skipped.</li>
+ * <li>Partial distance early termination: The distances of the regions are
+ * summed up one by one, an image is dropped as soon as the partial sum
+ * exceeds the best distance.</li>
+ * </ul>
+ * Both are exact, ties are resolved by choosing the image with the lowest id.
+ *
+ * @author Michael J. Simons, 2015-04-18
+ */
+public class SignatureTileMatcher implements TileMatcher {
+
+    /**
+     * Lower bounds are only used for pruning if they exceed the best distance
+     * by more than this, so that rounding errors can't hide an equally good
+     * image with a lower id.
+     */
+    private static final double TOLERANCE = 1e-9;
+
+    /**
+     * Nodes with no more than this number of images are not split any further.
+     */
+    private static final int LEAF_SIZE = 8;
+
+    private final InMemoryLibrary library;
+
+    private final int signatureSize;
+
+    /**
+     * Number of regions per signature
+     */
+    private final int regions;
+
+    /**
+     * L*a*b* and chroma of all regions of all images, image by image
+     */
+    private final double[] l;
+
+    private final double[] a;
+
+    private final double[] b;
+
+    private final double[] chroma;
+
+    /**
+     * Mean L*, a* and b* of the signatures by index
+     */
+    private final double[][] means;
+
+    /**
+     * {@code 1 / (1 + K1 * C)} for the largest chroma C of each signature
+     */
+    private final double[] scale;
+
+    /**
+     * Indexes into the library, ordered so that every node covers a
+     * continuous range.
+     */
+    private final int[] indexes;
+
+    private final Node root;
+
+    public SignatureTileMatcher(final InMemoryLibrary library) {
+	this.library = library;
+	this.signatureSize = library.signatureSize();
+	this.regions = signatureSize * signatureSize;
+
+	final int[] signatures = library.signatures();
+	this.l = new double[signatures.length];
+	this.a = new double[signatures.length];
+	this.b = new double[signatures.length];
+	this.chroma = new double[signatures.length];
+	final double[] lab = new double[3];
+	for (int i = 0; i < signatures.length; ++i) {
+	    LabConverter.toLab(signatures[i], lab, 0);
+	    l[i] = lab[0];
+	    a[i] = lab[1];
+	    b[i] = lab[2];
+	    chroma[i] = CIE94ColorDistance.chroma(lab[1], lab[2]);
+	}
+
+	final int n = library.size();
+	this.means = new double[3][n];
+	this.scale = new double[n];
+	this.indexes = new int[n];
+	for (int i = 0; i < n; ++i) {
+	    final int offset = i * regions;
+	    means[0][i] = mean(l, offset);
+	    means[1][i] = mean(a, offset);
+	    means[2][i] = mean(b, offset);
+	    double maxChroma = 0.0;
+	    for (int j = offset; j < offset + regions; ++j) {
+		maxChroma = Math.max(maxChroma, chroma[j]);
+	    }
+	    scale[i] = 1.0 / (1.0 + CIE94ColorDistance.K1 * maxChroma);
+	    indexes[i] = i;
+	}
+	this.root = n == 0 ? null : build(0, n);
+    }
+
+    private double mean(final double[] values, final int offset) {
+	double sum = 0.0;
+	for (int j = offset; j < offset + regions; ++j) {
+	    sum += values[j];
+	}
+	return sum / regions;
+    }
+
+    @Override
+    public int signatureSize() {
+	return signatureSize;
+    }
+
+    @Override
+    public Optional<Tile> match(final int x, final int y, final int averageColor, final Set<Integer> excluded) {
+	final int[] signature = new int[regions];
+	Arrays.fill(signature, averageColor);
+	return matchSignature(x, y, signature, excluded);
+    }
+
+    @Override
+    public Optional<Tile> matchSignature(final int x, final int y, final int[] signature, final Set<Integer> excluded) {
+	final Search search = find(signature, excluded);
+	CANDIDATES.record(search.candidates);
+	return search.best < 0 ? Optional.empty() : Optional.of(library.toTile(x, y, search.best));
+    }
+
+    /**
+     * Finds the library image with the signature nearest to the given one.
+     *
+     * @param signature Average colors of the regions, row by row
+     * @param excluded Ids of images that must not be returned
+     * @return Index of the image inside the library or -1 if all images are
+     * excluded
+     */
+    int nearest(final int[] signature, final Set<Integer> excluded) {
+	return find(signature, excluded).best;
+    }
+
+    private Search find(final int[] signature, final Set<Integer> excluded) {
+	if (signature.length != regions) {
+	    throw new IllegalArgumentException("Expected a signature with " + regions + " regions.");
+	}
+	final Search search = new Search(signature, excluded);
+	if (root != null) {
+	    search(root, search);
+	}
+	return search;
+    }
+
+    private void search(final Node node, final Search search) {
+	if (node.isLeaf()) {
+	    for (int i = node.from; i < node.to; ++i) {
+		search.offer(indexes[i]);
+	    }
+	    return;
+	}
+
+	// Descend into the more promising child first
+	final double leftBound = node.left.lowerBound(search.mean);
+	final double rightBound = node.right.lowerBound(search.mean);
+	final Node first = leftBound <= rightBound ? node.left : node.right;
+	final Node second = first == node.left ? node.right : node.left;
+	final double secondBound = first == node.left ? rightBound : leftBound;
+
+	if (regions * Math.min(leftBound, rightBound) - TOLERANCE <= search.bestDistance) {
+	    search(first, search);
+	}
+	if (regions * secondBound - TOLERANCE <= search.bestDistance) {
+	    search(second, search);
+	}
+    }
+
+    private Node build(final int from, final int to) {
+	final Node node = new Node(from, to);
+	if (to - from > LEAF_SIZE) {
+	    final int axis = node.widestAxis();
+	    final int median = (from + to) >>> 1;
+	    select(from, to, median, means[axis]);
+	    node.left = build(from, median);
+	    node.right = build(median, to);
+	}
+	return node;
+    }
+
+    /**
+     * Partially orders {@code indexes[from..to)} by the given coordinate, see
+     * {@link KdTreeTileMatcher}.
+     */
+    private void select(final int from, final int to, final int k, final double[] coordinates) {
+	int lo = from;
+	int hi = to - 1;
+	while (lo < hi) {
+	    final double pivot = coordinates[indexes[(lo + hi) >>> 1]];
+	    int i = lo, j = hi;
+	    while (i <= j) {
+		while (coordinates[indexes[i]] < pivot) {
+		    ++i;
+		}
+		while (coordinates[indexes[j]] > pivot) {
+		    --j;
+		}
+		if (i <= j) {
+		    final int h = indexes[i];
+		    indexes[i] = indexes[j];
+		    indexes[j] = h;
+		    ++i;
+		    --j;
+		}
+	    }
+	    if (k <= j) {
+		hi = j;
+	    } else if (k >= i) {
+		lo = i;
+	    } else {
+		break;
+	    }
+	}
+    }
+
+    /**
+     * A node of the tree, covering the images in {@code indexes[from..to)}.
+     */
+    private final class Node {
+
+	private final int from;
+
+	private final int to;
+
+	private final double[] min = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+
+	private final double[] max = {-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+
+	/**
+	 * Smallest scale of the a*b* differences of images in this node
+	 */
+	private final double minScale;
+
+	private Node left;
+
+	private Node right;
+
+	Node(final int from, final int to) {
+	    this.from = from;
+	    this.to = to;
+
+	    double rv = 1.0;
+	    for (int i = from; i < to; ++i) {
+		final int index = indexes[i];
+		for (int axis = 0; axis < 3; ++axis) {
+		    min[axis] = Math.min(min[axis], means[axis][index]);
+		    max[axis] = Math.max(max[axis], means[axis][index]);
+		}
+		rv = Math.min(rv, scale[index]);
+	    }
+	    this.minScale = rv;
+	}
+
+	boolean isLeaf() {
+	    return left == null;
+	}
+
+	int widestAxis() {
+	    int rv = 0;
+	    for (int axis = 1; axis < 3; ++axis) {
+		if (max[axis] - min[axis] > max[rv] - min[rv]) {
+		    rv = axis;
+		}
+	    }
+	    return rv;
+	}
+
+	/**
+	 * @return A lower bound of the mean region distance from any image in
+	 * this node to a signature with the given mean L*a*b* values
+	 */
+	double lowerBound(final double[] mean) {
+	    final double dL = distance(mean[0], 0);
+	    final double dA = distance(mean[1], 1) * minScale;
+	    final double dB = distance(mean[2], 2) * minScale;
+	    return Math.sqrt(dL * dL + dA * dA + dB * dB);
+	}
+
+	private double distance(final double c, final int axis) {
+	    return c < min[axis] ? min[axis] - c : c > max[axis] ? c - max[axis] : 0.0;
+	}
+    }
+
+    /**
+     * State of a single search, keeping the best image found so far.
+     */
+    private final class Search {
+
+	private final Set<Integer> excluded;
+
+	private final double[] tileL = new double[regions];
+
+	private final double[] tileA = new double[regions];
+
+	private final double[] tileB = new double[regions];
+
+	private final double[] tileChroma = new double[regions];
+
+	/**
+	 * Mean L*, a* and b* of the tile
+	 */
+	private final double[] mean = new double[3];
+
+	private int best = -1;
+
+	private double bestDistance = Double.POSITIVE_INFINITY;
+
+	/**
+	 * Number of images whose exact distance has been computed.
+	 */
+	private int candidates;
+
+	Search(final int[] signature, final Set<Integer> excluded) {
+	    this.excluded = excluded;
+	    final double[] lab = new double[3];
+	    for (int j = 0; j < regions; ++j) {
+		LabConverter.toLab(signature[j], lab, 0);
+		tileL[j] = lab[0];
+		tileA[j] = lab[1];
+		tileB[j] = lab[2];
+		tileChroma[j] = CIE94ColorDistance.chroma(lab[1], lab[2]);
+		mean[0] += lab[0] / regions;
+		mean[1] += lab[1] / regions;
+		mean[2] += lab[2] / regions;
+	    }
+	}
+
+	void offer(final int index) {
+	    final double deltaL = means[0][index] - mean[0];
+	    final double deltaA = (means[1][index] - mean[1]) * scale[index];
+	    final double deltaB = (means[2][index] - mean[2]) * scale[index];
+	    if (regions * Math.sqrt(deltaL * deltaL + deltaA * deltaA + deltaB * deltaB) - TOLERANCE > bestDistance) {
+		return;
+	    }
+	    final int id = library.getId(index);
+	    if (excluded.contains(id)) {
+		return;
+	    }
+
+	    ++candidates;
+	    final int offset = index * regions;
+	    double distance = 0.0;
+	    for (int j = 0; j < regions && distance <= bestDistance; ++j) {
+		distance += CIE94ColorDistance.compute(
+			l[offset + j], a[offset + j], b[offset + j], chroma[offset + j],
+			tileL[j], tileA[j], tileB[j], tileChroma[j]
+		);
+	    }
+	    if (distance < bestDistance || distance == bestDistance && id < library.getId(best)) {
+		best = index;
+		bestDistance = distance;
+	    }
+	}
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.images;
+
+import de.dailyfratze.mosaic.metrics.Histogram;
+import de.dailyfratze.mosaic.metrics.MetricsRegistry;
+import java.sql.Date;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.jooq.DSLContext;
+import org.jooq.Field;
+import org.jooq.Param;
+import org.jooq.Record3;
+import org.jooq.Result;
+import org.jooq.ResultQuery;
+import org.jooq.impl.DSL;
+
+import static de.dailyfratze.mosaic.images.db.tables.Images.IMAGES;
+import static org.jooq.impl.DSL.param;
+
+/**
+ * The original matcher: Let the database compute the CIE94 distance to every
+ * image in the library and take the nearest one.<br>
+ * The query is rendered and prepared once per matching thread and then only
+ * executed with new bind values. Excluded images are skipped in Java after
+ * fetching as many of the nearest images as are excluded plus one, so that
+ * the statement doesn't depend on their number. Prepared queries keep their
+ * connection until the matcher is closed.
+ *
+ * @author Michael J. Simons, 2015-03-29
+ */
+public class SqlTileMatcher implements TileMatcher {
+
+    private static final Histogram DB_QUERY_TIME = MetricsRegistry.getDefault().timer("mosaic.db.query.time");
+
+    /**
+     * jOOQ context for "stringless" database access.
+     */
+    private final DSLContext create;
+
+    /**
+     * Prepared queries not in use by a thread right now.
+     */
+    private final Queue<PreparedQuery> preparedQueries = new ConcurrentLinkedQueue<>();
+
+    /**
+     * All prepared queries, closed together with the matcher.
+     */
+    private final Queue<PreparedQuery> allPreparedQueries = new ConcurrentLinkedQueue<>();
+
+    public SqlTileMatcher(final DSLContext create) {
+	this.create = create;
+    }
+
+    @Override
+    public Optional<Tile> match(final int x, final int y, final int averageColor, final Set<Integer> excluded) {
+	PreparedQuery preparedQuery = preparedQueries.poll();
+	if (preparedQuery == null) {
+	    preparedQuery = new PreparedQuery();
+	    allPreparedQueries.add(preparedQuery);
+	}
+	try {
+	    return preparedQuery.execute(averageColor, excluded)
+		    .map(r -> new Tile(x, y, r.getValue(IMAGES.ID), r.getValue(IMAGES.ABSOLUTE_FILE_NAME), r.getValue(IMAGES.TAKEN_ON).toLocalDate()));
+	} finally {
+	    preparedQueries.add(preparedQuery);
+	}
+    }
+
+    @Override
+    public void close() {
+	PreparedQuery preparedQuery;
+	while ((preparedQuery = allPreparedQueries.poll()) != null) {
+	    preparedQuery.query.close();
+	}
+	preparedQueries.clear();
+    }
+
+    /**
+     * A query with a kept statement, used by one thread at a time.
+     */
+    private final class PreparedQuery {
+
+	private final Param<Double> l = param("l", Double.class);
+
+	private final Param<Double> a = param("a", Double.class);
+
+	private final Param<Double> b = param("b", Double.class);
+
+	private final Param<Double> chroma = param("chroma", Double.class);
+
+	private final Param<Integer> limit = param("limit", Integer.class);
+
+	private final ResultQuery<Record3<Integer, String, Date>> query;
+
+	PreparedQuery() {
+	    // That is a reference to a stored procedure, the first color filled from
+	    // the precomputed L*a*b* columns, the other one from the parameters.
+	    final Field<Double> cie94ColorDistance = DSL.function("f_CIE94_color_distance", Double.class,
+		    IMAGES.LAB_L, IMAGES.LAB_A, IMAGES.LAB_B, IMAGES.CHROMA,
+		    l, a, b, chroma
+	    );
+	    this.query = create
+		    .select(
+			    IMAGES.ID,
+			    IMAGES.ABSOLUTE_FILE_NAME,
+			    IMAGES.TAKEN_ON
+		    )
+		    .from(IMAGES)
+		    .orderBy(cie94ColorDistance.asc(), IMAGES.ID.asc())
+		    .limit(limit)
+		    .keepStatement(true);
+	}
+
+	Optional<Record3<Integer, String, Date>> execute(final int averageColor, final Set<Integer> excluded) {
+	    final double[] lab = CIE94ColorDistance.toLab(averageColor);
+	    l.setValue(lab[0]);
+	    a.setValue(lab[1]);
+	    b.setValue(lab[2]);
+	    chroma.setValue(CIE94ColorDistance.chroma(lab[1], lab[2]));
+	    // At least one of the nearest images is not excluded
+	    limit.setValue(excluded.size() + 1);
+	    final long start = System.nanoTime();
+	    final Result<Record3<Integer, String, Date>> result = query.fetch();
+	    DB_QUERY_TIME.recordSince(start);
+	    CANDIDATES.record(result.size());
+	    return result.stream()
+		    .filter(r -> !excluded.contains(r.getValue(IMAGES.ID)))
+		    .findFirst();
+	}
+    }
+}
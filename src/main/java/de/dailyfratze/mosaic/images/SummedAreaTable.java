@@ -0,0 +1,141 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.images;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * A <a href="http://en.wikipedia.org/wiki/Summed_area_table">summed area
+ * table</a> per color channel of an image. Computed once, the average color of
+ * any rectangle of the image can be retrieved in constant time without
+ * copying any pixels.<br>
+ * The sums are stored as ints and allowed to overflow: The sum of a rectangle
+ * is computed from differences, which are correct modulo 2<sup>32</sup>, so
+ * the average is exact as long as the rectangle has no more than
+ * 2<sup>32</sup> / 255 pixels.
+ *
+ * @author Michael J. Simons, 2015-04-13
+ */
+final class SummedAreaTable {
+
+    private final int width;
+
+    private final int height;
+
+    /**
+     * Sums of the rectangle from 0,0 (inclusive) to x,y (exclusive), stored at
+     * {@code y * (width + 1) + x}.
+     */
+    private final int[] r;
+
+    private final int[] g;
+
+    private final int[] b;
+
+    SummedAreaTable(final BufferedImage image) {
+	this.width = image.getWidth();
+	this.height = image.getHeight();
+
+	final int stride = width + 1;
+	final int size = stride * (height + 1);
+	this.r = new int[size];
+	this.g = new int[size];
+	this.b = new int[size];
+
+	final int[] pixels = new int[width];
+	for (int y = 0; y < height; ++y) {
+	    image.getRGB(0, y, width, 1, pixels, 0, width);
+	    int rowR = 0, rowG = 0, rowB = 0;
+	    final int above = y * stride;
+	    final int current = above + stride;
+	    for (int x = 0; x < width; ++x) {
+		final int rgb = pixels[x];
+		rowR += (rgb >> 16) & 0xFF;
+		rowG += (rgb >> 8) & 0xFF;
+		rowB += rgb & 0xFF;
+		r[current + x + 1] = r[above + x + 1] + rowR;
+		g[current + x + 1] = g[above + x + 1] + rowG;
+		b[current + x + 1] = b[above + x + 1] + rowB;
+	    }
+	}
+    }
+
+    int getWidth() {
+	return width;
+    }
+
+    int getHeight() {
+	return height;
+    }
+
+    /**
+     * Computes the average color of the given rectangle. The result is the same
+     * as streaming all pixels of the rectangle into a {@link RGBAverage}.
+     *
+     * @param x Left edge of the rectangle
+     * @param y Top edge of the rectangle
+     * @param w Width of the rectangle
+     * @param h Height of the rectangle
+     * @return The average rgb color
+     */
+    int averageColor(final int x, final int y, final int w, final int h) {
+	final int stride = width + 1;
+	final int topLeft = y * stride + x;
+	final int topRight = topLeft + w;
+	final int bottomLeft = topLeft + h * stride;
+	final int bottomRight = bottomLeft + w;
+	final long cnt = (long) w * h;
+
+	final long avgR = Integer.toUnsignedLong(r[bottomRight] - r[bottomLeft] - r[topRight] + r[topLeft]) / cnt;
+	final long avgG = Integer.toUnsignedLong(g[bottomRight] - g[bottomLeft] - g[topRight] + g[topLeft]) / cnt;
+	final long avgB = Integer.toUnsignedLong(b[bottomRight] - b[bottomLeft] - b[topRight] + b[topLeft]) / cnt;
+	return 0xFF000000 | (int) avgR << 16 | (int) avgG << 8 | (int) avgB;
+    }
+
+    /**
+     * Computes the average colors of a grid of {@code size} times
+     * {@code size} regions of the given rectangle, divided the same way as
+     * the signatures of library images (see
+     * {@link ImageLibrary#computeSignature(BufferedImage, int)}). Rectangles
+     * too small for the grid get the average color of the whole rectangle in
+     * every region.
+     *
+     * @param x Left edge of the rectangle
+     * @param y Top edge of the rectangle
+     * @param w Width of the rectangle
+     * @param h Height of the rectangle
+     * @param size Number of regions per row and column
+     * @return The average rgb colors of all regions, row by row
+     */
+    int[] averageColors(final int x, final int y, final int w, final int h, final int size) {
+	final int[] rv = new int[size * size];
+	if (w < size || h < size) {
+	    Arrays.fill(rv, averageColor(x, y, w, h));
+	    return rv;
+	}
+	for (int j = 0; j < size; ++j) {
+	    final int top = y + j * h / size;
+	    final int bottom = y + (j + 1) * h / size;
+	    for (int i = 0; i < size; ++i) {
+		final int left = x + i * w / size;
+		final int right = x + (i + 1) * w / size;
+		rv[j * size + i] = averageColor(left, top, right - left, bottom - top);
+	    }
+	}
+	return rv;
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.images;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+
+/**
+ * Stores the images of a library scaled to the size of a tile, so that
+ * rendering a mosaic neither decodes the original images nor needs them to be
+ * available.<br>
+ * The store is a single file: A header with a magic number and the tile size,
+ * followed by one slot per image id. A slot consists of a marker byte and the
+ * raw pixels as 3 byte BGR, the layout of {@link BufferedImage#TYPE_3BYTE_BGR},
+ * so that reading a tile is a single copy. Slots are written at their position
+ * in the file, so images can be added and replaced concurrently and in any
+ * order. Stores opened for reading are memory mapped.
+ *
+ * @author Michael J. Simons, 2015-04-23
+ */
+public final class ThumbnailStore implements AutoCloseable {
+
+    private static final int MAGIC = 0x4d544853;
+
+    private static final int HEADER_SIZE = 16;
+
+    private static final byte PRESENT = 1;
+
+    private static final byte ABSENT = 0;
+
+    private final FileChannel channel;
+
+    private final int width;
+
+    private final int height;
+
+    private final int slotSize;
+
+    /**
+     * Memory mapped slots if opened read only, each segment holding
+     * {@link #slotsPerSegment} slots.
+     */
+    private final MappedByteBuffer[] segments;
+
+    private final int slotsPerSegment;
+
+    private ThumbnailStore(final FileChannel channel, final int width, final int height, final boolean mapped) throws IOException {
+	this.channel = channel;
+	this.width = width;
+	this.height = height;
+	this.slotSize = 1 + width * height * 3;
+	this.slotsPerSegment = Integer.MAX_VALUE / slotSize;
+	if (mapped) {
+	    final long slots = (channel.size() - HEADER_SIZE) / slotSize;
+	    this.segments = new MappedByteBuffer[(int) ((slots + slotsPerSegment - 1) / slotsPerSegment)];
+	    for (int i = 0; i < segments.length; ++i) {
+		final long position = HEADER_SIZE + (long) i * slotsPerSegment * slotSize;
+		segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min((long) slotsPerSegment * slotSize, channel.size() - position));
+	    }
+	} else {
+	    this.segments = null;
+	}
+    }
+
+    /**
+     * Opens a store for writing, creating it if necessary.
+     *
+     * @param file The file of the store
+     * @param width Width of the tiles
+     * @param height Height of the tiles
+     * @return An open store
+     * @throws IOException
+     * @throws IllegalArgumentException if an existing store has a different
+     * tile size
+     */
+    public static ThumbnailStore open(final File file, final int width, final int height) throws IOException {
+	if (width < 1 || height < 1) {
+	    throw new IllegalArgumentException("Thumbnails must be at least 1x1 pixel.");
+	}
+	final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+	try {
+	    if (channel.size() == 0) {
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).putInt(width).putInt(height).flip();
+		channel.write(header, 0);
+	    } else {
+		final int[] size = readHeader(channel, file);
+		if (size[0] != width || size[1] != height) {
+		    throw new IllegalArgumentException(String.format("Thumbnail store %s holds tiles of %dx%d pixels, not %dx%d.", file, size[0], size[1], width, height));
+		}
+	    }
+	    return new ThumbnailStore(channel, width, height, false);
+	} catch (IOException | RuntimeException e) {
+	    channel.close();
+	    throw e;
+	}
+    }
+
+    /**
+     * Opens an existing store for reading and maps it into memory.
+     *
+     * @param file The file of the store
+     * @return An open store
+     * @throws IOException
+     */
+    public static ThumbnailStore openReadOnly(final File file) throws IOException {
+	final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+	try {
+	    final int[] size = readHeader(channel, file);
+	    return new ThumbnailStore(channel, size[0], size[1], true);
+	} catch (IOException | RuntimeException e) {
+	    channel.close();
+	    throw e;
+	}
+    }
+
+    private static int[] readHeader(final FileChannel channel, final File file) throws IOException {
+	final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+	while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+	}
+	header.flip();
+	if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+	    throw new IllegalArgumentException(file + " is not a thumbnail store.");
+	}
+	return new int[]{header.getInt(), header.getInt()};
+    }
+
+    public int getWidth() {
+	return width;
+    }
+
+    public int getHeight() {
+	return height;
+    }
+
+    /**
+     * Scales the given image to the size of the tiles and stores it, replacing
+     * an older thumbnail of the same image.
+     *
+     * @param imageId Id of the image inside the library
+     * @param image The image
+     */
+    public void write(final int imageId, final BufferedImage image) {
+	if (segments != null) {
+	    throw new IllegalStateException("Thumbnail store is read only.");
+	}
+	final BufferedImage thumbnail = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+	final Graphics2D g2 = thumbnail.createGraphics();
+	g2.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+	g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+	g2.drawImage(image, 0, 0, width, height, null);
+	g2.dispose();
+
+	final ByteBuffer slot = ByteBuffer.allocate(slotSize);
+	slot.put(PRESENT).put(((DataBufferByte) thumbnail.getRaster().getDataBuffer()).getData()).flip();
+	try {
+	    final long position = position(imageId);
+	    while (slot.hasRemaining()) {
+		channel.write(slot, position + slot.position());
+	    }
+	} catch (IOException e) {
+	    throw new UncheckedIOException(e);
+	}
+    }
+
+    /**
+     * Removes the thumbnail of an image, if one has been stored. Only the
+     * marker of its slot is cleared.
+     *
+     * @param imageId Id of the image inside the library
+     */
+    public void remove(final int imageId) {
+	if (segments != null) {
+	    throw new IllegalStateException("Thumbnail store is read only.");
+	}
+	try {
+	    final long position = position(imageId);
+	    if (position < channel.size()) {
+		channel.write(ByteBuffer.wrap(new byte[]{ABSENT}), position);
+	    }
+	} catch (IOException e) {
+	    throw new UncheckedIOException(e);
+	}
+    }
+
+    /**
+     * @param imageId Id of the image inside the library
+     * @return The thumbnail or an empty optional if none has been stored for
+     * this image
+     */
+    public Optional<BufferedImage> read(final int imageId) {
+	final BufferedImage thumbnail = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+	final byte[] pixels = ((DataBufferByte) thumbnail.getRaster().getDataBuffer()).getData();
+	final int slot = slot(imageId);
+	if (segments != null) {
+	    final int segment = slot / slotsPerSegment;
+	    if (segment >= segments.length) {
+		return Optional.empty();
+	    }
+	    // Duplicates are independent views, so reads can be concurrent
+	    final ByteBuffer buffer = segments[segment].duplicate();
+	    final int offset = (slot % slotsPerSegment) * slotSize;
+	    if (offset + slotSize > buffer.limit() || buffer.get(offset) != PRESENT) {
+		return Optional.empty();
+	    }
+	    buffer.position(offset + 1);
+	    buffer.get(pixels);
+	} else {
+	    final ByteBuffer buffer = ByteBuffer.allocate(slotSize);
+	    try {
+		final long position = position(imageId);
+		while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) >= 0) {
+		}
+	    } catch (IOException e) {
+		throw new UncheckedIOException(e);
+	    }
+	    if (buffer.hasRemaining() || buffer.get(0) != PRESENT) {
+		return Optional.empty();
+	    }
+	    buffer.position(1);
+	    buffer.get(pixels);
+	}
+	return Optional.of(thumbnail);
+    }
+
+    private static int slot(final int imageId) {
+	if (imageId < 1) {
+	    throw new IllegalArgumentException("Invalid image id " + imageId + ".");
+	}
+	return imageId - 1;
+    }
+
+    private long position(final int imageId) {
+	return HEADER_SIZE + (long) slot(imageId) * slotSize;
+    }
+
+    @Override
+    public void close() throws IOException {
+	channel.close();
+    }
+}
@@ -34,6 +34,17 @@ public class Tile {
      */
     private final int y;
 
+    /**
+     * Number of grid cells covered horizontally, greater than 1 only for
+     * adaptive tiling
+     */
+    private final int width;
+
+    /**
+     * Number of grid cells covered vertically
+     */
+    private final int height;
+
     private final int imageId;
 
     private final String absoluteFilename;
@@ -41,8 +52,14 @@ public class Tile {
     private final LocalDate takenOn;
 
     public Tile(int i, int j, int imageId, String absoluteFilename, LocalDate takenOn) {
+	this(i, j, 1, 1, imageId, absoluteFilename, takenOn);
+    }
+
+    public Tile(int i, int j, int width, int height, int imageId, String absoluteFilename, LocalDate takenOn) {
 	this.x = i;
 	this.y = j;
+	this.width = width;
+	this.height = height;
 	this.imageId = imageId;
 	this.absoluteFilename = absoluteFilename;
 	this.takenOn = takenOn;
@@ -56,6 +73,14 @@ public class Tile {
 	return y;
     }
 
+    public int getWidth() {
+	return width;
+    }
+
+    public int getHeight() {
+	return height;
+    }
+
     public int getImageId() {
 	return imageId;
     }
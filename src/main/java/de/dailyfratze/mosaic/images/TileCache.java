@@ -0,0 +1,227 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.images;
+
+import de.dailyfratze.mosaic.metrics.Counter;
+import de.dailyfratze.mosaic.metrics.MetricsRegistry;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+/**
+ * Keeps decoded library images, already scaled to the size of a tile, so that
+ * images used several times in a mosaic are decoded only once. The cache is
+ * bounded by the bytes of the pixels it holds and evicts the least recently
+ * used tiles first. Tiles larger than the whole cache are not cached at all.
+ *
+ * @author Michael J. Simons, 2015-04-26
+ */
+public final class TileCache {
+
+    private static final Counter HITS = MetricsRegistry.getDefault().counter("render.tile.cache.hits");
+
+    private static final Counter MISSES = MetricsRegistry.getDefault().counter("render.tile.cache.misses");
+
+    private static final Counter EVICTIONS = MetricsRegistry.getDefault().counter("render.tile.cache.evictions");
+
+    private final long maximumBytes;
+
+    /**
+     * Tiles by image id and size in access order, guarded by {@code this}.
+     */
+    private final LinkedHashMap<Key, BufferedImage> tiles = new LinkedHashMap<>(256, 0.75f, true);
+
+    /**
+     * Tiles currently being decoded, guarded by {@code this}.
+     */
+    private final Map<Key, CompletableFuture<BufferedImage>> loading = new HashMap<>();
+
+    private long bytes;
+
+    private long hits;
+
+    private long misses;
+
+    private long evictions;
+
+    /**
+     * @param maximumBytes Maximum number of bytes of all cached pixels, 0
+     * disables the cache
+     */
+    public TileCache(final long maximumBytes) {
+	if (maximumBytes < 0) {
+	    throw new IllegalArgumentException("Maximum size of the cache must not be negative.");
+	}
+	this.maximumBytes = maximumBytes;
+    }
+
+    /**
+     * Returns the cached tile or decodes and scales it and adds it to the
+     * cache. Decoding is done without holding the lock of the cache. Threads
+     * requesting a tile that is currently being decoded wait for it instead
+     * of decoding it again.
+     *
+     * @param imageId Id of the library image
+     * @param width Width of the scaled tile in pixels
+     * @param height Height of the scaled tile in pixels
+     * @param decoder Decodes the library image, its size doesn't matter
+     * @return The scaled image, must not be modified
+     */
+    public BufferedImage get(final int imageId, final int width, final int height, final Supplier<BufferedImage> decoder) {
+	final Key key = new Key(imageId, width, height);
+	final CompletableFuture<BufferedImage> pending;
+	final CompletableFuture<BufferedImage> loading;
+	synchronized (this) {
+	    final BufferedImage rv = tiles.get(key);
+	    if (rv != null) {
+		++hits;
+		HITS.increment();
+		return rv;
+	    }
+	    pending = this.loading.get(key);
+	    if (pending == null) {
+		++misses;
+		loading = new CompletableFuture<>();
+		this.loading.put(key, loading);
+	    } else {
+		++hits;
+		loading = null;
+	    }
+	}
+	if (pending != null) {
+	    HITS.increment();
+	    return join(pending);
+	}
+	MISSES.increment();
+
+	try {
+	    final BufferedImage rv = MosaicRenderer.scale(decoder.get(), width, height);
+	    put(key, rv);
+	    loading.complete(rv);
+	    return rv;
+	} catch (RuntimeException | Error e) {
+	    synchronized (this) {
+		this.loading.remove(key);
+	    }
+	    loading.completeExceptionally(e);
+	    throw e;
+	}
+    }
+
+    private static BufferedImage join(final CompletableFuture<BufferedImage> pending) {
+	try {
+	    return pending.join();
+	} catch (CompletionException e) {
+	    throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+	}
+    }
+
+    private synchronized void put(final Key key, final BufferedImage tile) {
+	loading.remove(key);
+	final long size = bytes(tile);
+	if (size > maximumBytes) {
+	    return;
+	}
+	final BufferedImage previous = tiles.put(key, tile);
+	bytes += size - (previous == null ? 0 : bytes(previous));
+	final Iterator<BufferedImage> eldest = tiles.values().iterator();
+	while (bytes > maximumBytes) {
+	    bytes -= bytes(eldest.next());
+	    eldest.remove();
+	    ++evictions;
+	    EVICTIONS.increment();
+	}
+    }
+
+    public long getMaximumBytes() {
+	return maximumBytes;
+    }
+
+    /**
+     * @return Bytes of all cached pixels
+     */
+    public synchronized long getBytes() {
+	return bytes;
+    }
+
+    public synchronized int size() {
+	return tiles.size();
+    }
+
+    public synchronized long getHits() {
+	return hits;
+    }
+
+    public synchronized long getMisses() {
+	return misses;
+    }
+
+    public synchronized long getEvictions() {
+	return evictions;
+    }
+
+    /**
+     * @return Share of requests served from the cache, 0 if there have been
+     * none
+     */
+    public synchronized double getHitRate() {
+	final long requests = hits + misses;
+	return requests == 0 ? 0.0 : (double) hits / requests;
+    }
+
+    /**
+     * @return Number of bytes of the pixels of {@code image}
+     */
+    static long bytes(final BufferedImage image) {
+	final DataBuffer dataBuffer = image.getRaster().getDataBuffer();
+	return (long) dataBuffer.getSize() * dataBuffer.getNumBanks() * DataBuffer.getDataTypeSize(dataBuffer.getDataType()) / 8;
+    }
+
+    private static final class Key {
+
+	final int imageId;
+
+	final int width;
+
+	final int height;
+
+	Key(final int imageId, final int width, final int height) {
+	    this.imageId = imageId;
+	    this.width = width;
+	    this.height = height;
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+	    if (!(obj instanceof Key)) {
+		return false;
+	    }
+	    final Key other = (Key) obj;
+	    return imageId == other.imageId && width == other.width && height == other.height;
+	}
+
+	@Override
+	public int hashCode() {
+	    return (imageId * 31 + width) * 31 + height;
+	}
+    }
+}
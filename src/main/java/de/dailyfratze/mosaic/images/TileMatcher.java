@@ -0,0 +1,97 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.images;
+
+import de.dailyfratze.mosaic.metrics.Histogram;
+import de.dailyfratze.mosaic.metrics.MetricsRegistry;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Selects the library image that matches the average color of a tile best.
+ *
+ * @author Michael J. Simons, 2015-04-11
+ */
+public interface TileMatcher extends AutoCloseable {
+
+    /**
+     * Number of images inspected per matched tile, recorded by all matchers:
+     * Images ranked by their exact distance, or fetched from the database.
+     */
+    Histogram CANDIDATES = MetricsRegistry.getDefault().histogram("mosaic.match.candidates");
+
+    /**
+     * Finds the library image with the minimal CIE94 distance to
+     * {@code averageColor} that is not contained in {@code excluded}. Ties are
+     * resolved by choosing the image with the lowest id.
+     *
+     * @param x x-position of the tile
+     * @param y y-position of the tile
+     * @param averageColor Average color of the tile in the source image
+     * @param excluded Ids of images that must not be used for this tile
+     * @return The matching tile or an empty optional if all images are
+     * excluded
+     */
+    Optional<Tile> match(int x, int y, int averageColor, Set<Integer> excluded);
+
+    /**
+     * @return Number of regions per row and column of the signatures this
+     * matcher compares, 0 if it only compares average colors
+     */
+    default int signatureSize() {
+	return 0;
+    }
+
+    /**
+     * Finds the library image whose signature has the minimal sum of CIE94
+     * distances to the given signature. Only called if
+     * {@link #signatureSize()} is greater than 0, the default implementation
+     * matches the average of the signature.
+     *
+     * @param x x-position of the tile
+     * @param y y-position of the tile
+     * @param signature Average colors of the regions of the tile, row by row
+     * @param excluded Ids of images that must not be used for this tile
+     * @return The matching tile or an empty optional if all images are
+     * excluded
+     */
+    default Optional<Tile> matchSignature(final int x, final int y, final int[] signature, final Set<Integer> excluded) {
+	final RGBAverage average = new RGBAverage();
+	for (int rgb : signature) {
+	    average.accept(rgb);
+	}
+	return match(x, y, average.value(), excluded);
+    }
+
+    /**
+     * Called before the tiles of row {@code y} are matched. Matchers may use
+     * this to retrieve candidates for all tiles of the row at once. Rows may
+     * be prepared concurrently if the mosaic is matched in parallel.
+     *
+     * @param y y-position of the row
+     * @param averageColors Average colors of all tiles in that row
+     */
+    default void prepareRow(final int y, final int[] averageColors) {
+    }
+
+    /**
+     * Releases database resources held by this matcher. The default
+     * implementation does nothing.
+     */
+    @Override
+    default void close() {
+    }
+}
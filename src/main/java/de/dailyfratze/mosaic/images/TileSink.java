@@ -0,0 +1,55 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.images;
+
+import java.util.List;
+
+/**
+ * Receives the tiles of a mosaic while it is created, see
+ * {@link Mosaic#stream(TileSink, int, int)}. All methods are called from the
+ * same thread, one after another, so implementations don't need to be thread
+ * safe. Matching waits if the sink is too slow.
+ *
+ * @author Michael J. Simons, 2015-04-19
+ */
+@FunctionalInterface
+public interface TileSink {
+
+    /**
+     * Called with the next batch of tiles. If this method throws an exception,
+     * creating the mosaic is cancelled and the exception is passed to
+     * {@link #onError(Throwable)}.
+     *
+     * @param tiles The tiles, in the order they have been matched
+     */
+    void onTiles(List<Tile> tiles);
+
+    /**
+     * Called once after the last batch if the mosaic has been created
+     * completely.
+     */
+    default void onComplete() {
+    }
+
+    /**
+     * Called once instead of {@link #onComplete()} if creating the mosaic
+     * failed.
+     *
+     * @param cause The reason
+     */
+    default void onError(final Throwable cause) {
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.images;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Consumer;
+
+/**
+ * A mosaic being created in the background, see
+ * {@link Mosaic#stream(TileSink, int, int)}. Matched tiles are collected into
+ * batches, which are buffered up to a fixed number and passed to a
+ * {@link TileSink} by a separate thread. Matching waits while the buffer is
+ * full, so a slow sink never causes an unbounded queue.
+ *
+ * @author Michael J. Simons, 2015-04-19
+ */
+public final class TileStream {
+
+    public static final int DEFAULT_BATCH_SIZE = 64;
+
+    public static final int DEFAULT_BUFFERED_BATCHES = 16;
+
+    private final TileSink sink;
+
+    private final int batchSize;
+
+    private final int bufferedBatches;
+
+    /**
+     * Full batches not yet passed to the sink, guarded by {@code this}.
+     */
+    private final ArrayDeque<List<Tile>> batches = new ArrayDeque<>();
+
+    /**
+     * The batch currently being filled.
+     */
+    private List<Tile> current;
+
+    private boolean matchingFinished;
+
+    private boolean cancelled;
+
+    private Throwable error;
+
+    /**
+     * Counted down by the matching and the sink thread when they end, so that
+     * resources used by matching can be released after {@link #await()}.
+     */
+    private final CountDownLatch done = new CountDownLatch(2);
+
+    TileStream(final TileSink sink, final int batchSize, final int bufferedBatches) {
+	if (batchSize < 1) {
+	    throw new IllegalArgumentException("Batch size must be at least 1.");
+	}
+	if (bufferedBatches < 1) {
+	    throw new IllegalArgumentException("At least one batch must be buffered.");
+	}
+	this.sink = sink;
+	this.batchSize = batchSize;
+	this.bufferedBatches = bufferedBatches;
+    }
+
+    /**
+     * Starts a thread running {@code matching} and a thread passing its tiles
+     * to the sink.
+     *
+     * @param matching Matches all tiles and passes them to the given consumer
+     */
+    void start(final Consumer<Consumer<Tile>> matching) {
+	final Thread matchingThread = new Thread(() -> {
+	    try {
+		matching.accept(this::add);
+		finishMatching(null);
+	    } catch (RuntimeException | Error e) {
+		finishMatching(e);
+	    } finally {
+		done.countDown();
+	    }
+	}, "mosaic-matching");
+	final Thread sinkThread = new Thread(this::deliver, "mosaic-sink");
+	matchingThread.setDaemon(true);
+	sinkThread.setDaemon(true);
+	sinkThread.start();
+	matchingThread.start();
+    }
+
+    /**
+     * Cancels creating the mosaic. Matching stops with the next tile that is
+     * completed, the sink isn't called anymore.
+     */
+    public synchronized void cancel() {
+	cancelled = true;
+	batches.clear();
+	notifyAll();
+    }
+
+    public synchronized boolean isCancelled() {
+	return cancelled;
+    }
+
+    /**
+     * @return True, if all tiles have been passed to the sink, creating the
+     * mosaic failed or has been cancelled, and matching has stopped
+     */
+    public boolean isDone() {
+	return done.getCount() == 0;
+    }
+
+    /**
+     * Waits until all tiles have been passed to the sink, creating the mosaic
+     * failed or has been cancelled. Also waits for a tile still being matched
+     * after the sink failed or the mosaic has been cancelled, so that the
+     * mosaic can be closed afterwards.
+     *
+     * @throws RuntimeException if creating the mosaic or the sink failed
+     */
+    public void await() {
+	try {
+	    done.await();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new RuntimeException(e);
+	}
+	synchronized (this) {
+	    if (error != null) {
+		throw new RuntimeException(error);
+	    }
+	}
+    }
+
+    /**
+     * Called by matching for each tile, waits while the buffer is full.
+     */
+    private synchronized void add(final Tile tile) {
+	if (cancelled) {
+	    throw new CancellationException();
+	}
+	if (current == null) {
+	    current = new ArrayList<>(batchSize);
+	}
+	current.add(tile);
+	if (current.size() == batchSize) {
+	    enqueueCurrent();
+	}
+    }
+
+    private void enqueueCurrent() {
+	try {
+	    while (batches.size() == bufferedBatches && !cancelled) {
+		wait();
+	    }
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new RuntimeException(e);
+	}
+	if (cancelled) {
+	    throw new CancellationException();
+	}
+	batches.add(current);
+	current = null;
+	notifyAll();
+    }
+
+    private synchronized void finishMatching(final Throwable cause) {
+	if (cancelled) {
+	    // Includes matching being stopped by the cancellation
+	    return;
+	}
+	if (cause == null && current != null) {
+	    enqueueCurrent();
+	}
+	this.error = cause;
+	this.matchingFinished = true;
+	notifyAll();
+    }
+
+    /**
+     * Passes the batches to the sink until matching is finished or cancelled.
+     */
+    private void deliver() {
+	try {
+	    Throwable cause = null;
+	    while (true) {
+		final List<Tile> batch;
+		synchronized (this) {
+		    while (batches.isEmpty() && !matchingFinished && !cancelled) {
+			wait();
+		    }
+		    if (cancelled) {
+			return;
+		    }
+		    if (batches.isEmpty()) {
+			cause = error;
+			break;
+		    }
+		    batch = batches.poll();
+		    notifyAll();
+		}
+		try {
+		    sink.onTiles(batch);
+		} catch (RuntimeException | Error e) {
+		    synchronized (this) {
+			cancel();
+			error = e;
+		    }
+		    cause = e;
+		    break;
+		}
+	    }
+	    if (cause == null) {
+		sink.onComplete();
+	    } else {
+		sink.onError(cause);
+	    }
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	} finally {
+	    done.countDown();
+	}
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts events, for example decoded files. The rate is computed over the
+ * time between the first and the last event since the counter was created or
+ * reset, so a counter only used during a phase of a run reports the
+ * throughput of that phase.
+ *
+ * @author Michael J. Simons, 2015-04-25
+ */
+public final class Counter {
+
+    private final LongAdder count = new LongAdder();
+
+    private volatile boolean started;
+
+    private volatile long firstEvent;
+
+    private volatile long lastEvent;
+
+    Counter() {
+    }
+
+    public void increment() {
+	add(1);
+    }
+
+    public void add(final long events) {
+	final long now = System.nanoTime();
+	if (!started) {
+	    synchronized (this) {
+		if (!started) {
+		    firstEvent = now;
+		    started = true;
+		}
+	    }
+	}
+	count.add(events);
+	lastEvent = now;
+    }
+
+    public long getCount() {
+	return count.sum();
+    }
+
+    /**
+     * @return Events per second between the first and the last event, 0 if
+     * there were less than two events
+     */
+    public double getRate() {
+	final long elapsed = lastEvent - firstEvent;
+	return !started || elapsed <= 0 ? 0.0 : count.sum() / (elapsed / 1e9);
+    }
+
+    synchronized void reset() {
+	count.reset();
+	started = false;
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records the distribution of non negative values like latencies or
+ * candidate counts in a fixed number of buckets. Each power of two is split
+ * into {@link #SUB_BUCKETS} buckets, so percentiles are accurate within
+ * 12.5% regardless of the magnitude of the values and recording is a few
+ * atomic additions.
+ *
+ * @author Michael J. Simons, 2015-04-25
+ */
+public final class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final String unit;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    private final LongAdder count = new LongAdder();
+
+    private final LongAdder sum = new LongAdder();
+
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+
+    private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+    Histogram(final String unit) {
+	this.unit = unit;
+    }
+
+    /**
+     * @return Unit of the recorded values, {@code ns} for timers, empty for
+     * plain counts
+     */
+    public String getUnit() {
+	return unit;
+    }
+
+    /**
+     * @param value The value to record, negative values are recorded as 0
+     */
+    public void record(final long value) {
+	final long v = Math.max(value, 0);
+	buckets.incrementAndGet(bucket(v));
+	count.increment();
+	sum.add(v);
+	min.accumulateAndGet(v, Math::min);
+	max.accumulateAndGet(v, Math::max);
+    }
+
+    /**
+     * Records the nanoseconds elapsed since {@code start}.
+     *
+     * @param start A value of {@link System#nanoTime()}
+     */
+    public void recordSince(final long start) {
+	record(System.nanoTime() - start);
+    }
+
+    public long getCount() {
+	return count.sum();
+    }
+
+    public long getSum() {
+	return sum.sum();
+    }
+
+    public long getMin() {
+	return getCount() == 0 ? 0 : min.get();
+    }
+
+    public long getMax() {
+	return getCount() == 0 ? 0 : max.get();
+    }
+
+    public double getMean() {
+	final long n = getCount();
+	return n == 0 ? 0.0 : (double) getSum() / n;
+    }
+
+    /**
+     * @param percentile A value between 0 and 100
+     * @return The largest value of the bucket containing the given
+     * percentile, 0 if nothing has been recorded
+     */
+    public long getPercentile(final double percentile) {
+	if (percentile < 0 || percentile > 100) {
+	    throw new IllegalArgumentException("Percentile must be between 0 and 100.");
+	}
+	final long[] snapshot = new long[BUCKETS];
+	long n = 0;
+	for (int i = 0; i < BUCKETS; ++i) {
+	    snapshot[i] = buckets.get(i);
+	    n += snapshot[i];
+	}
+	if (n == 0) {
+	    return 0;
+	}
+	final long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+	long seen = 0;
+	for (int i = 0; i < BUCKETS; ++i) {
+	    seen += snapshot[i];
+	    if (seen >= rank) {
+		return Math.max(Math.min(upperBound(i), getMax()), getMin());
+	    }
+	}
+	return getMax();
+    }
+
+    static int bucket(final long value) {
+	if (value < SUB_BUCKETS) {
+	    return (int) value;
+	}
+	final int exponent = 63 - Long.numberOfLeadingZeros(value);
+	final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+	return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long upperBound(final int bucket) {
+	if (bucket < SUB_BUCKETS) {
+	    return bucket;
+	}
+	final int shift = bucket / SUB_BUCKETS - 1;
+	final long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+	return lower + (1L << shift) - 1;
+    }
+
+    void reset() {
+	for (int i = 0; i < BUCKETS; ++i) {
+	    buckets.set(i, 0);
+	}
+	count.reset();
+	sum.reset();
+	min.set(Long.MAX_VALUE);
+	max.set(Long.MIN_VALUE);
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Named counters and histograms of a library build or a mosaic run.<br>
+ * Like loggers, metrics are usually taken from the {@link #getDefault()
+ * default registry} once and kept in static fields. The default registry is
+ * registered as MBean {@value #OBJECT_NAME}, its attributes are the values of
+ * all metrics, its operations {@code toJson} and {@code reset}. At the end of
+ * a run all metrics can be written to a JSON file with
+ * {@link #writeJson(File)}.<br>
+ * Names are dot separated, starting with the phase ({@code library},
+ * {@code mosaic} or {@code render}). Timers record nanoseconds.
+ *
+ * @author Michael J. Simons, 2015-04-25
+ */
+public final class MetricsRegistry {
+
+    /**
+     * Name of the MBean of the default registry.
+     */
+    public static final String OBJECT_NAME = "de.dailyfratze.mosaic:type=Metrics";
+
+    private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+    static {
+	try {
+	    ManagementFactory.getPlatformMBeanServer().registerMBean(DEFAULT.new MBean(), new ObjectName(OBJECT_NAME));
+	} catch (JMException | SecurityException e) {
+	    Logger.getLogger(MetricsRegistry.class.getName()).log(Level.WARNING, "Could not register metrics MBean", e);
+	}
+    }
+
+    private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    MetricsRegistry() {
+    }
+
+    /**
+     * @return The registry used throughout the application
+     */
+    public static MetricsRegistry getDefault() {
+	return DEFAULT;
+    }
+
+    /**
+     * @param name Name of the counter
+     * @return The counter of that name, created on first use
+     */
+    public Counter counter(final String name) {
+	return counters.computeIfAbsent(name, key -> new Counter());
+    }
+
+    /**
+     * @param name Name of the histogram
+     * @return The histogram of that name for plain values, created on first
+     * use
+     */
+    public Histogram histogram(final String name) {
+	return histogram(name, "");
+    }
+
+    /**
+     * @param name Name of the timer
+     * @return The histogram of that name for nanoseconds, created on first
+     * use
+     */
+    public Histogram timer(final String name) {
+	return histogram(name, "ns");
+    }
+
+    private Histogram histogram(final String name, final String unit) {
+	final Histogram rv = histograms.computeIfAbsent(name, key -> new Histogram(unit));
+	if (!rv.getUnit().equals(unit)) {
+	    throw new IllegalArgumentException("Histogram " + name + " has already been created with unit '" + rv.getUnit() + "'.");
+	}
+	return rv;
+    }
+
+    /**
+     * Sets all metrics back to zero. Metrics keep their identity, so
+     * references to them stay valid.
+     */
+    public void reset() {
+	counters.values().forEach(Counter::reset);
+	histograms.values().forEach(Histogram::reset);
+    }
+
+    /**
+     * @return Current values of all metrics, flattened into
+     * {@code name.property}
+     */
+    public SortedMap<String, Number> values() {
+	final SortedMap<String, Number> rv = new TreeMap<>();
+	counters.forEach((name, counter) -> values(counter).forEach((property, value) -> rv.put(name + "." + property, value)));
+	histograms.forEach((name, histogram) -> values(histogram).forEach((property, value) -> rv.put(name + "." + property, value)));
+	return rv;
+    }
+
+    /**
+     * @return All metrics as JSON object with the members {@code counters}
+     * and {@code histograms}, each mapping names to values
+     */
+    public String toJson() {
+	final StringBuilder json = new StringBuilder();
+	json.append("{\n  \"counters\": ");
+	appendJson(json, counters, MetricsRegistry::values);
+	json.append(",\n  \"histograms\": ");
+	appendJson(json, histograms, MetricsRegistry::values);
+	json.append("\n}\n");
+	return json.toString();
+    }
+
+    /**
+     * Writes {@link #toJson()} into {@code file}, replacing its content.
+     *
+     * @param file The target file
+     * @throws IOException
+     */
+    public void writeJson(final File file) throws IOException {
+	Files.write(file.toPath(), toJson().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Map<String, Number> values(final Counter counter) {
+	final Map<String, Number> rv = new TreeMap<>();
+	rv.put("count", counter.getCount());
+	rv.put("rate", counter.getRate());
+	return rv;
+    }
+
+    private static Map<String, Number> values(final Histogram histogram) {
+	final Map<String, Number> rv = new TreeMap<>();
+	rv.put("count", histogram.getCount());
+	rv.put("min", histogram.getMin());
+	rv.put("mean", histogram.getMean());
+	rv.put("p50", histogram.getPercentile(50));
+	rv.put("p90", histogram.getPercentile(90));
+	rv.put("p99", histogram.getPercentile(99));
+	rv.put("max", histogram.getMax());
+	return rv;
+    }
+
+    private static <T> void appendJson(final StringBuilder json, final Map<String, T> metrics, final Function<T, Map<String, Number>> values) {
+	json.append('{');
+	String separator = "\n";
+	for (Map.Entry<String, T> metric : new TreeMap<>(metrics).entrySet()) {
+	    json.append(separator).append("    ");
+	    appendString(json, metric.getKey());
+	    json.append(": {");
+	    if (metric.getValue() instanceof Histogram) {
+		json.append("\"unit\": ");
+		appendString(json, ((Histogram) metric.getValue()).getUnit());
+		json.append(", ");
+	    }
+	    final List<String> members = new ArrayList<>();
+	    values.apply(metric.getValue()).forEach((property, value) -> members.add("\"" + property + "\": " + format(value)));
+	    json.append(String.join(", ", members)).append('}');
+	    separator = ",\n";
+	}
+	json.append(metrics.isEmpty() ? "}" : "\n  }");
+    }
+
+    private static void appendString(final StringBuilder json, final String value) {
+	json.append('"');
+	for (char c : value.toCharArray()) {
+	    if (c == '"' || c == '\\') {
+		json.append('\\').append(c);
+	    } else if (c < 0x20) {
+		json.append(String.format("\\u%04x", (int) c));
+	    } else {
+		json.append(c);
+	    }
+	}
+	json.append('"');
+    }
+
+    private static String format(final Number value) {
+	return value instanceof Double ? String.format(Locale.ENGLISH, "%.3f", value.doubleValue()) : value.toString();
+    }
+
+    /**
+     * Exposes the values of the registry as read only attributes.
+     */
+    private final class MBean implements DynamicMBean {
+
+	@Override
+	public Object getAttribute(final String attribute) throws AttributeNotFoundException {
+	    final Number rv = values().get(attribute);
+	    if (rv == null) {
+		throw new AttributeNotFoundException(attribute);
+	    }
+	    return rv;
+	}
+
+	@Override
+	public void setAttribute(final Attribute attribute) throws AttributeNotFoundException {
+	    throw new AttributeNotFoundException("Metrics are read only.");
+	}
+
+	@Override
+	public AttributeList getAttributes(final String[] attributes) {
+	    final SortedMap<String, Number> values = values();
+	    final AttributeList rv = new AttributeList();
+	    for (String attribute : attributes) {
+		if (values.containsKey(attribute)) {
+		    rv.add(new Attribute(attribute, values.get(attribute)));
+		}
+	    }
+	    return rv;
+	}
+
+	@Override
+	public AttributeList setAttributes(final AttributeList attributes) {
+	    return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(final String actionName, final Object[] params, final String[] signature) throws ReflectionException {
+	    switch (actionName) {
+		case "toJson":
+		    return toJson();
+		case "reset":
+		    reset();
+		    return null;
+		default:
+		    throw new ReflectionException(new NoSuchMethodException(actionName));
+	    }
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+	    final List<MBeanAttributeInfo> attributes = new ArrayList<>();
+	    values().forEach((name, value) -> attributes.add(new MBeanAttributeInfo(name, value.getClass().getName(), name, true, false, false)));
+	    return new MBeanInfo(MetricsRegistry.class.getName(), "Metrics of library builds and mosaic runs",
+		    attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+		    null,
+		    new MBeanOperationInfo[]{
+			new MBeanOperationInfo("toJson", "All metrics as JSON", new MBeanParameterInfo[0], String.class.getName(), MBeanOperationInfo.INFO),
+			new MBeanOperationInfo("reset", "Sets all metrics back to zero", new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION)
+		    },
+		    null
+	    );
+	}
+    }
+}
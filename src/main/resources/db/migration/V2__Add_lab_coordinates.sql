@@ -0,0 +1,6 @@
+-- Nullable, so that existing images can be migrated. Their coordinates are
+-- computed from average_color after migrating, see ImageLibrary#migrateDatabase.
+alter table images add column lab_l double;
+alter table images add column lab_a double;
+alter table images add column lab_b double;
+alter table images add column chroma double;
@@ -0,0 +1 @@
+alter table images add column signature varbinary(64);
\ No newline at end of file
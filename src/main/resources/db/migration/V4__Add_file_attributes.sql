@@ -0,0 +1,3 @@
+alter table images add column file_size bigint;
+alter table images add column last_modified timestamp;
+create unique index images_absolute_file_name on images(absolute_file_name);
\ No newline at end of file
@@ -0,0 +1,18 @@
+create table scans (
+    id integer not null auto_increment,
+    base_dir varchar(4096) not null,
+    started_on timestamp not null,
+    finished_on timestamp,
+    PRIMARY KEY (id)
+);
+
+create table quarantine (
+    id integer not null auto_increment,
+    absolute_file_name varchar(4096) not null,
+    file_size bigint not null,
+    last_modified timestamp not null,
+    reason varchar(4096) not null,
+    quarantined_on timestamp not null,
+    PRIMARY KEY (id)
+);
+create unique index quarantine_absolute_file_name on quarantine(absolute_file_name);
\ No newline at end of file
@@ -0,0 +1,5 @@
+-- The thumbnail store kept in sync with the images of the library, at most one
+create table thumbnail_stores (
+    absolute_file_name varchar(4096) not null,
+    PRIMARY KEY (absolute_file_name)
+);
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.images;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Michael J. Simons, 2015-04-12
+ */
+public class ExclusionGridTest {
+
+    @Test
+    public void shouldOnlyExcludeImagesInsideTheBox() {
+	final ExclusionGrid exclusionGrid = new ExclusionGrid(20, 10, 2);
+	exclusionGrid.place(0, 0, 1);
+	exclusionGrid.place(5, 5, 2);
+	exclusionGrid.place(7, 7, 3);
+	exclusionGrid.place(9, 5, 4);
+	exclusionGrid.place(19, 9, 5);
+
+	Assert.assertEquals(new HashSet<>(Arrays.asList(2, 3)), exclusionGrid.excludedAround(6, 6));
+	Assert.assertEquals(new HashSet<>(Arrays.asList(2, 4)), exclusionGrid.excludedAround(7, 3));
+	Assert.assertEquals(new HashSet<>(Arrays.asList(1)), exclusionGrid.excludedAround(2, 2));
+	Assert.assertEquals(new HashSet<>(Arrays.asList(5)), exclusionGrid.excludedAround(19, 9));
+	Assert.assertTrue(exclusionGrid.excludedAround(13, 0).isEmpty());
+    }
+
+    @Test
+    public void largerTilesShouldExcludeAroundTheirWholeArea() {
+	final ExclusionGrid exclusionGrid = new ExclusionGrid(20, 10, 1);
+	exclusionGrid.place(4, 4, 4, 4, 1);
+	exclusionGrid.place(0, 0, 2);
+	exclusionGrid.place(10, 2, 3);
+
+	Assert.assertEquals(new HashSet<>(Arrays.asList(1)), exclusionGrid.excludedAround(8, 8));
+	Assert.assertEquals(new HashSet<>(Arrays.asList(1)), exclusionGrid.excludedAround(7, 3));
+	Assert.assertEquals(new HashSet<>(Arrays.asList(1, 2)), exclusionGrid.excludedAround(1, 1, 3, 3));
+	Assert.assertEquals(new HashSet<>(Arrays.asList(1, 3)), exclusionGrid.excludedAround(8, 2, 2, 2));
+	Assert.assertTrue(exclusionGrid.excludedAround(12, 5, 4, 4).isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldNotAllowNegativeRadius() {
+	new ExclusionGrid(1, 1, -1);
+    }
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.images;
+
+import de.dailyfratze.mosaic.images.db.tables.records.ImagesRecord;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import org.flywaydb.core.Flyway;
+import org.flywaydb.core.api.MigrationVersion;
+import org.h2.jdbcx.JdbcDataSource;
+import org.jooq.DSLContext;
+import org.jooq.SQLDialect;
+import org.jooq.impl.DSL;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static de.dailyfratze.mosaic.images.db.tables.Images.IMAGES;
+import static de.dailyfratze.mosaic.images.db.tables.Quarantine.QUARANTINE;
+import static de.dailyfratze.mosaic.images.db.tables.Scans.SCANS;
+
+/**
+ * @author Michael J. Simons, 2015-04-20
+ */
+public class ImageLibraryTest {
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File baseDir;
+
+    private String databaseFile;
+
+    private JdbcDataSource dataSource;
+
+    private DSLContext create;
+
+    @Before
+    public void createImages() throws IOException {
+	this.baseDir = temporaryFolder.newFolder("images");
+	this.databaseFile = new File(temporaryFolder.getRoot(), "library").getAbsolutePath();
+	this.dataSource = new JdbcDataSource();
+	this.dataSource.setUrl(String.format("jdbc:h2:file:%s;FILE_LOCK=FS", databaseFile));
+	this.create = DSL.using(dataSource, SQLDialect.H2);
+
+	storeImage("2015-04-01.jpg", Color.RED);
+	storeImage("2015-04-02.jpg", Color.GREEN);
+	storeImage("2015-04-03.jpg", Color.BLUE);
+	storeImage("notAnImage.txt", Color.BLACK);
+    }
+
+    @Test
+    public void updateShouldOnlyReadNewAndChangedImages() throws IOException {
+	try (ImageLibrary imageLibrary = new ImageLibrary(baseDir.getAbsolutePath(), databaseFile, "\\d{4}-\\d{2}-\\d{2}\\.jpg", "yyyy-MM-dd'.jpg'")) {
+	    imageLibrary.create();
+	    final Map<String, ImagesRecord> before = fetchImages();
+	    Assert.assertEquals(3, before.size());
+
+	    // Unchanged, but unreadable if decoded again
+	    final File unchanged = new File(baseDir, "2015-04-01.jpg");
+	    final long lastModified = unchanged.lastModified();
+	    try (RandomAccessFile file = new RandomAccessFile(unchanged, "rw")) {
+		file.write(new byte[(int) file.length()]);
+	    }
+	    Assert.assertTrue(unchanged.setLastModified(lastModified));
+	    // Changed
+	    final File changed = storeImage("2015-04-02.jpg", Color.WHITE);
+	    Assert.assertTrue(changed.setLastModified(lastModified + 10_000));
+	    // Deleted and new
+	    Assert.assertTrue(new File(baseDir, "2015-04-03.jpg").delete());
+	    storeImage("2015-04-04.jpg", Color.BLACK);
+
+	    imageLibrary.update();
+	    final Map<String, ImagesRecord> after = fetchImages();
+
+	    Assert.assertEquals(3, after.size());
+	    Assert.assertEquals(before.get("2015-04-01.jpg"), after.get("2015-04-01.jpg"));
+	    Assert.assertEquals(before.get("2015-04-02.jpg").getId(), after.get("2015-04-02.jpg").getId());
+	    Assert.assertEquals(0xFFFFFFFF, after.get("2015-04-02.jpg").getAverageColor().intValue());
+	    Assert.assertEquals(lastModified + 10_000, after.get("2015-04-02.jpg").getLastModified().getTime());
+	    Assert.assertFalse(after.containsKey("2015-04-03.jpg"));
+	    Assert.assertTrue(after.get("2015-04-04.jpg").getId() > before.get("2015-04-03.jpg").getId());
+	    Assert.assertEquals(0xFF000000, after.get("2015-04-04.jpg").getAverageColor().intValue());
+
+	    // Nothing to do
+	    imageLibrary.update();
+	    Assert.assertEquals(after, fetchImages());
+	}
+    }
+
+    @Test
+    public void updateShouldCreateMissingDatabases() throws IOException {
+	try (ImageLibrary imageLibrary = new ImageLibrary(baseDir.getAbsolutePath(), databaseFile, "\\d{4}-\\d{2}-\\d{2}\\.jpg", "yyyy-MM-dd'.jpg'")) {
+	    imageLibrary.update();
+	}
+	Assert.assertEquals(3, fetchImages().size());
+    }
+
+    @Test
+    public void unreadableImagesShouldBeQuarantined() throws IOException {
+	final File corrupt = new File(baseDir, "2015-04-04.jpg");
+	Files.write(corrupt.toPath(), new byte[]{(byte) 0xFF, (byte) 0xD8, 1, 2, 3});
+	try (ImageLibrary imageLibrary = new ImageLibrary(baseDir.getAbsolutePath(), databaseFile, "\\d{4}-\\d{2}-\\d{2}\\.jpg", "yyyy-MM-dd'.jpg'")) {
+	    imageLibrary.create();
+
+	    Assert.assertEquals(3, fetchImages().size());
+	    Assert.assertEquals(Arrays.asList(corrupt.getAbsolutePath()), create.select(QUARANTINE.ABSOLUTE_FILE_NAME).from(QUARANTINE).fetch(QUARANTINE.ABSOLUTE_FILE_NAME));
+
+	    // Repaired
+	    storeImage("2015-04-04.jpg", Color.BLACK);
+	    Assert.assertTrue(corrupt.setLastModified(corrupt.lastModified() + 10_000));
+	    imageLibrary.update();
+
+	    Assert.assertEquals(4, fetchImages().size());
+	    Assert.assertEquals(0, create.fetchCount(QUARANTINE));
+	}
+    }
+
+    @Test
+    public void createShouldResumeAnUnfinishedScan() throws IOException {
+	try (ImageLibrary imageLibrary = new ImageLibrary(baseDir.getAbsolutePath(), databaseFile, "\\d{4}-\\d{2}-\\d{2}\\.jpg", "yyyy-MM-dd'.jpg'")) {
+	    imageLibrary.create();
+	    final Map<String, ImagesRecord> before = fetchImages();
+
+	    // Died before storing the last image
+	    create.update(SCANS).set(SCANS.FINISHED_ON, (Timestamp) null).execute();
+	    create.delete(IMAGES).where(IMAGES.ID.eq(before.get("2015-04-03.jpg").getId())).execute();
+	    // Stored before, unreadable if decoded again
+	    final File stored = new File(baseDir, "2015-04-01.jpg");
+	    final long lastModified = stored.lastModified();
+	    try (RandomAccessFile file = new RandomAccessFile(stored, "rw")) {
+		file.write(new byte[(int) file.length()]);
+	    }
+	    Assert.assertTrue(stored.setLastModified(lastModified));
+
+	    imageLibrary.create();
+	    final Map<String, ImagesRecord> resumed = fetchImages();
+	    Assert.assertEquals(3, resumed.size());
+	    Assert.assertEquals(before.get("2015-04-01.jpg"), resumed.get("2015-04-01.jpg"));
+	    Assert.assertEquals(before.get("2015-04-03.jpg").getAverageColor(), resumed.get("2015-04-03.jpg").getAverageColor());
+	    Assert.assertNotNull(create.selectFrom(SCANS).fetchOne().getFinishedOn());
+
+	    // A finished scan starts from scratch
+	    imageLibrary.create();
+	    Assert.assertEquals(2, fetchImages().size());
+	    Assert.assertEquals(1, create.fetchCount(QUARANTINE));
+	}
+    }
+
+    @Test
+    public void shouldStoreThumbnailsByImageId() throws IOException {
+	final File thumbnailFile = new File(temporaryFolder.getRoot(), "thumbnails");
+	try (ImageLibrary imageLibrary = new ImageLibrary(baseDir.getAbsolutePath(), databaseFile, "\\d{4}-\\d{2}-\\d{2}\\.jpg", "yyyy-MM-dd'.jpg'")) {
+	    imageLibrary.setThumbnailFile(thumbnailFile);
+	    imageLibrary.setThumbnailSize(15, 10);
+	    imageLibrary.create();
+	    storeImage("2015-04-04.jpg", Color.BLACK);
+	    imageLibrary.update();
+	}
+
+	final Map<String, ImagesRecord> images = fetchImages();
+	Assert.assertEquals(4, images.size());
+	Assert.assertEquals(4, images.values().stream().mapToInt(ImagesRecord::getId).max().getAsInt());
+	try (ThumbnailStore thumbnails = ThumbnailStore.openReadOnly(thumbnailFile)) {
+	    for (ImagesRecord image : images.values()) {
+		final Optional<BufferedImage> thumbnail = thumbnails.read(image.getId());
+		Assert.assertEquals(15, thumbnail.get().getWidth());
+		Assert.assertTrue(CIE94ColorDistance.compute(image.getAverageColor(), average(thumbnail.get())) < 1.0);
+	    }
+	}
+    }
+
+    @Test
+    public void thumbnailsOfDeletedAndQuarantinedImagesShouldBeRemoved() throws IOException {
+	final File thumbnailFile = new File(temporaryFolder.getRoot(), "thumbnails");
+	final Map<String, ImagesRecord> before;
+	try (ImageLibrary imageLibrary = new ImageLibrary(baseDir.getAbsolutePath(), databaseFile, "\\d{4}-\\d{2}-\\d{2}\\.jpg", "yyyy-MM-dd'.jpg'")) {
+	    imageLibrary.setThumbnailFile(thumbnailFile);
+	    imageLibrary.create();
+	    before = fetchImages();
+
+	    final File corrupt = new File(baseDir, "2015-04-02.jpg");
+	    Files.write(corrupt.toPath(), new byte[]{(byte) 0xFF, (byte) 0xD8, 1, 2, 3});
+	    Assert.assertTrue(corrupt.setLastModified(corrupt.lastModified() + 10_000));
+	    Assert.assertTrue(new File(baseDir, "2015-04-03.jpg").delete());
+	    imageLibrary.update();
+	}
+
+	Assert.assertEquals(1, fetchImages().size());
+	Assert.assertEquals(1, create.fetchCount(QUARANTINE));
+	try (ThumbnailStore thumbnails = ThumbnailStore.openReadOnly(thumbnailFile)) {
+	    Assert.assertTrue(thumbnails.read(before.get("2015-04-01.jpg").getId()).isPresent());
+	    Assert.assertFalse(thumbnails.read(before.get("2015-04-02.jpg").getId()).isPresent());
+	    Assert.assertFalse(thumbnails.read(before.get("2015-04-03.jpg").getId()).isPresent());
+	}
+    }
+
+    @Test
+    public void idsOfDeletedImagesShouldNotBeReusedWithThumbnails() throws IOException {
+	final File thumbnailFile = new File(temporaryFolder.getRoot(), "thumbnails");
+	final ImagesRecord deleted;
+	try (ImageLibrary imageLibrary = new ImageLibrary(baseDir.getAbsolutePath(), databaseFile, "\\d{4}-\\d{2}-\\d{2}\\.jpg", "yyyy-MM-dd'.jpg'")) {
+	    imageLibrary.setThumbnailFile(thumbnailFile);
+	    imageLibrary.create();
+
+	    // The image with the highest id
+	    deleted = fetchImages().values().stream().max(Comparator.comparing(ImagesRecord::getId)).get();
+	    Assert.assertTrue(new File(deleted.getAbsoluteFileName()).delete());
+	    imageLibrary.update();
+	    storeImage("2015-04-04.jpg", Color.BLACK);
+	    imageLibrary.update();
+	}
+
+	final ImagesRecord image = fetchImages().get("2015-04-04.jpg");
+	Assert.assertTrue(image.getId() > deleted.getId());
+	try (ThumbnailStore thumbnails = ThumbnailStore.openReadOnly(thumbnailFile)) {
+	    Assert.assertFalse(thumbnails.read(deleted.getId()).isPresent());
+	    Assert.assertTrue(CIE94ColorDistance.compute(image.getAverageColor(), average(thumbnails.read(image.getId()).get())) < 1.0);
+	}
+    }
+
+    @Test
+    public void updateWithoutTheThumbnailStoreOfTheLibraryShouldFail() throws IOException {
+	try (ImageLibrary imageLibrary = new ImageLibrary(baseDir.getAbsolutePath(), databaseFile, "\\d{4}-\\d{2}-\\d{2}\\.jpg", "yyyy-MM-dd'.jpg'")) {
+	    imageLibrary.setThumbnailFile(new File(temporaryFolder.getRoot(), "thumbnails"));
+	    imageLibrary.create();
+	    storeImage("2015-04-04.jpg", Color.BLACK);
+
+	    imageLibrary.setThumbnailFile(null);
+	    try {
+		imageLibrary.update();
+		Assert.fail("The thumbnail store would have missed the new image");
+	    } catch (IllegalStateException e) {
+	    }
+	}
+	Assert.assertEquals(3, fetchImages().size());
+    }
+
+    @Test
+    public void sampledAveragesShouldBeCloseToFullAverages() throws IOException {
+	try (ImageLibrary imageLibrary = new ImageLibrary(baseDir.getAbsolutePath(), databaseFile, ".*", "yyyy-MM-dd")) {
+	    for (String resource : new String[]{"IPTC-PhotometadataRef01.jpg", "black.jpg", "createTheFuture.jpg"}) {
+		final int expected;
+		try (AutoCloseableImageReader imageReader = new AutoCloseableImageReader(ImageLibraryTest.class.getResourceAsStream("/de/dailyfratze/mosaic/images/" + resource))) {
+		    expected = average(imageReader.read());
+		}
+		for (int sampledPixels : new int[]{4096, ImageLibrary.DEFAULT_SAMPLED_PIXELS}) {
+		    imageLibrary.setSampledPixels(sampledPixels);
+		    try (AutoCloseableImageReader imageReader = new AutoCloseableImageReader(ImageLibraryTest.class.getResourceAsStream("/de/dailyfratze/mosaic/images/" + resource))) {
+			final BufferedImage image = imageLibrary.readSampled(imageReader);
+			Assert.assertTrue((long) image.getWidth() * image.getHeight() >= Math.min(sampledPixels, imageReader.getWidth() * imageReader.getHeight()));
+			Assert.assertTrue(CIE94ColorDistance.compute(expected, average(image)) < 1.0);
+		    }
+		}
+	    }
+	}
+    }
+
+    @Test
+    public void subsamplingShouldYieldEnoughPixels() {
+	Assert.assertEquals(1, ImageLibrary.subsampling(10, 10, 65536));
+	Assert.assertEquals(2, ImageLibrary.subsampling(1000, 500, 65536));
+	Assert.assertEquals(22, ImageLibrary.subsampling(5472, 3648, 40000));
+	final Random random = new Random(42);
+	for (int i = 0; i < 1000; ++i) {
+	    final int width = 1 + random.nextInt(8000), height = 1 + random.nextInt(8000), sampledPixels = 1 + random.nextInt(100_000);
+	    final int subsampling = ImageLibrary.subsampling(width, height, sampledPixels);
+	    final long pixels = (long) ((width + subsampling - 1) / subsampling) * ((height + subsampling - 1) / subsampling);
+	    final long pixelsWithLargerSubsampling = (long) ((width + subsampling) / (subsampling + 1)) * ((height + subsampling) / (subsampling + 1));
+	    Assert.assertTrue(subsampling == 1 || pixels >= sampledPixels);
+	    Assert.assertTrue(pixelsWithLargerSubsampling < sampledPixels || pixelsWithLargerSubsampling == 1);
+	}
+    }
+
+    private static int average(final BufferedImage image) {
+	return Arrays.stream(image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth())).collect(RGBAverage::new, RGBAverage::accept, RGBAverage::combine).value();
+    }
+
+    @Test
+    public void migratingShouldComputeLabCoordinatesOfExistingImages() throws IOException {
+	createVersion1Library();
+	try (ImageLibrary imageLibrary = new ImageLibrary(baseDir.getAbsolutePath(), databaseFile, "\\d{4}-\\d{2}-\\d{2}\\.jpg", "yyyy-MM-dd'.jpg'")) {
+	    imageLibrary.export(temporaryFolder.newFile("library.mlib"));
+	}
+	final Map<String, ImagesRecord> images = fetchImages();
+	Assert.assertEquals(3, images.size());
+	images.values().forEach(record -> {
+	    final double[] lab = CIE94ColorDistance.toLab(record.getAverageColor());
+	    Assert.assertEquals(lab[0], record.getLabL(), 0.0);
+	    Assert.assertEquals(lab[1], record.getLabA(), 0.0);
+	    Assert.assertEquals(lab[2], record.getLabB(), 0.0);
+	    Assert.assertEquals(CIE94ColorDistance.chroma(lab[1], lab[2]), record.getChroma(), 0.0);
+	});
+    }
+
+    @Test
+    public void updateShouldMigratePopulatedVersion1Libraries() throws IOException {
+	createVersion1Library();
+	// Only the columns of the first version exist
+	final Map<String, Integer> ids = create.fetch("select id, absolute_file_name from images").stream()
+		.collect(Collectors.toMap(record -> new File(record.getValue(1, String.class)).getName(), record -> record.getValue(0, Integer.class)));
+	try (ImageLibrary imageLibrary = new ImageLibrary(baseDir.getAbsolutePath(), databaseFile, "\\d{4}-\\d{2}-\\d{2}\\.jpg", "yyyy-MM-dd'.jpg'")) {
+	    imageLibrary.update();
+	}
+	final Map<String, ImagesRecord> images = fetchImages();
+	Assert.assertEquals(ids.keySet(), images.keySet());
+	images.forEach((name, record) -> {
+	    Assert.assertEquals(ids.get(name), record.getId());
+	    Assert.assertNotNull(record.getLabL());
+	    Assert.assertNotNull(record.getFileSize());
+	});
+    }
+
+    @Test
+    public void createShouldRebuildPopulatedVersion1Libraries() throws IOException {
+	createVersion1Library();
+	// Violates the unique index of a later version, so only rebuilding
+	// without migrating first succeeds
+	create.execute("insert into images (absolute_file_name, taken_on, average_color) select absolute_file_name, taken_on, average_color from images where id = 1");
+	try (ImageLibrary imageLibrary = new ImageLibrary(baseDir.getAbsolutePath(), databaseFile, "\\d{4}-\\d{2}-\\d{2}\\.jpg", "yyyy-MM-dd'.jpg'")) {
+	    imageLibrary.create();
+	}
+	final Map<String, ImagesRecord> images = fetchImages();
+	Assert.assertEquals(3, images.size());
+	images.values().forEach(record -> Assert.assertNotNull(record.getFileSize()));
+	Assert.assertEquals(1, create.fetchCount(SCANS));
+    }
+
+    /**
+     * Creates a library with the schema of the first version, containing the
+     * images of {@link #baseDir}, as created before the schema was extended.
+     */
+    private void createVersion1Library() {
+	final Flyway flyway = new Flyway();
+	flyway.setDataSource(dataSource);
+	flyway.setTarget(MigrationVersion.fromVersion("1"));
+	flyway.migrate();
+	final String[] names = {"2015-04-01.jpg", "2015-04-02.jpg", "2015-04-03.jpg"};
+	final int[] colors = {0xFFFE0000, 0xFF00FF01, 0xFF0000FE};
+	for (int i = 0; i < names.length; ++i) {
+	    create.execute("insert into images (absolute_file_name, taken_on, average_color) values (?, ?, ?)",
+		    new File(baseDir, names[i]).getAbsolutePath(), java.sql.Date.valueOf("2015-04-0" + (i + 1)), colors[i]);
+	}
+    }
+
+    private Map<String, ImagesRecord> fetchImages() {
+	return create.selectFrom(IMAGES).fetch().stream()
+		.collect(Collectors.toMap(record -> new File(record.getAbsoluteFileName()).getName(), Function.identity()));
+    }
+
+    private File storeImage(final String name, final Color color) throws IOException {
+	final BufferedImage image = new BufferedImage(30, 20, BufferedImage.TYPE_INT_RGB);
+	final Graphics2D g2 = image.createGraphics();
+	g2.setColor(color);
+	g2.fillRect(0, 0, image.getWidth(), image.getHeight());
+	g2.dispose();
+	final File rv = new File(baseDir, name);
+	new ImageStorage().storeAsJpeg(image, rv, 1.0f);
+	return rv;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.images;
+
+import java.time.LocalDate;
+import java.util.Random;
+
+/**
+ * Creates in memory libraries for tests.
+ *
+ * @author Michael J. Simons, 2015-04-16
+ */
+final class InMemoryLibraries {
+
+    /**
+     * Creates a library of images with random colors, ids starting at 1.
+     *
+     * @param random Source of the colors
+     * @param size Number of images
+     * @return A new library
+     */
+    static InMemoryLibrary random(final Random random, final int size) {
+	final int[] ids = new int[size];
+	final String[] absoluteFilenames = new String[size];
+	final LocalDate[] takenOn = new LocalDate[size];
+	final int[] averageColors = new int[size];
+	final double[] l = new double[size], a = new double[size], b = new double[size], chroma = new double[size];
+	for (int i = 0; i < size; ++i) {
+	    ids[i] = i + 1;
+	    absoluteFilenames[i] = "/library/" + ids[i] + ".jpg";
+	    takenOn[i] = LocalDate.of(2005, 8, 1).plusDays(i);
+	    averageColors[i] = 0xFF000000 | random.nextInt(0x1000000);
+	    final double[] lab = CIE94ColorDistance.toLab(averageColors[i]);
+	    l[i] = lab[0];
+	    a[i] = lab[1];
+	    b[i] = lab[2];
+	    chroma[i] = CIE94ColorDistance.chroma(lab[1], lab[2]);
+	}
+	return new InMemoryLibrary(ids, absoluteFilenames, takenOn, averageColors, l, a, b, chroma);
+    }
+
+    /**
+     * Creates a library of images with random signatures, ids starting at 1.
+     * Neighbouring regions have similar colors, like in photos.
+     *
+     * @param random Source of the colors
+     * @param size Number of images
+     * @param signatureSize Number of regions per row and column
+     * @return A new library
+     */
+    static InMemoryLibrary randomWithSignatures(final Random random, final int size, final int signatureSize) {
+	final InMemoryLibrary averages = random(random, size);
+	final int regions = signatureSize * signatureSize;
+	final int[] signatures = new int[size * regions];
+	final int[] averageColors = new int[size];
+	for (int i = 0; i < size; ++i) {
+	    final RGBAverage average = new RGBAverage();
+	    for (int j = 0; j < regions; ++j) {
+		signatures[i * regions + j] = vary(random, averages.getAverageColor(i));
+		average.accept(signatures[i * regions + j]);
+	    }
+	    averageColors[i] = average.value();
+	}
+	final double[] l = new double[size], a = new double[size], b = new double[size], chroma = new double[size];
+	final String[] absoluteFilenames = new String[size];
+	final LocalDate[] takenOn = new LocalDate[size];
+	final int[] ids = new int[size];
+	for (int i = 0; i < size; ++i) {
+	    ids[i] = averages.getId(i);
+	    absoluteFilenames[i] = averages.getAbsoluteFilename(i);
+	    takenOn[i] = averages.getTakenOn(i);
+	    final double[] lab = CIE94ColorDistance.toLab(averageColors[i]);
+	    l[i] = lab[0];
+	    a[i] = lab[1];
+	    b[i] = lab[2];
+	    chroma[i] = CIE94ColorDistance.chroma(lab[1], lab[2]);
+	}
+	return new InMemoryLibrary(ids, absoluteFilenames, takenOn, averageColors, l, a, b, chroma, signatureSize, signatures);
+    }
+
+    /**
+     * @return {@code rgb} with each channel changed by up to 40
+     */
+    static int vary(final Random random, final int rgb) {
+	int rv = 0xFF000000;
+	for (int shift = 16; shift >= 0; shift -= 8) {
+	    final int channel = Math.max(0, Math.min(255, ((rgb >> shift) & 0xFF) + random.nextInt(81) - 40));
+	    rv |= channel << shift;
+	}
+	return rv;
+    }
+
+    private InMemoryLibraries() {
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.images;
+
+import de.dailyfratze.mosaic.images.db.tables.records.ImagesRecord;
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Michael J. Simons, 2015-04-21
+ */
+public class IngestionPipelineTest {
+
+    @Test
+    public void shouldStoreAllRecordsInBatches() throws IOException {
+	final Set<String> stored = ConcurrentHashMap.newKeySet();
+	final AtomicInteger largestBatch = new AtomicInteger();
+	final long count = new IngestionPipeline(3, 4, 2, 8, 7).run(
+		files -> {
+		    for (int i = 0; i < 1000; ++i) {
+			files.accept(new File("image" + i));
+		    }
+		},
+		IngestionPipelineTest::record,
+		records -> {
+		    largestBatch.accumulateAndGet(records.size(), Math::max);
+		    records.forEach(record -> Assert.assertTrue(stored.add(record.getAbsoluteFileName())));
+		}
+	);
+
+	Assert.assertEquals(1000, count);
+	Assert.assertEquals(1000, stored.size());
+	Assert.assertEquals(7, largestBatch.get());
+    }
+
+    @Test
+    public void walkShouldWaitForASlowWriter() throws IOException {
+	final AtomicInteger walked = new AtomicInteger();
+	final AtomicInteger written = new AtomicInteger();
+	final AtomicInteger maximumAhead = new AtomicInteger();
+	new IngestionPipeline(2, 4, 1, 8, 5).run(
+		files -> {
+		    for (int i = 0; i < 200; ++i) {
+			files.accept(new File("image" + i));
+			maximumAhead.accumulateAndGet(walked.incrementAndGet() - written.get(), Math::max);
+		    }
+		},
+		IngestionPipelineTest::record,
+		records -> {
+		    try {
+			Thread.sleep(2);
+		    } catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		    }
+		    written.addAndGet(records.size());
+		}
+	);
+
+	Assert.assertEquals(200, written.get());
+	// Both queues, a file or record per decoder and a batch
+	Assert.assertTrue(maximumAhead.get() <= 4 + 8 + 2 * 2 + 5 + 1);
+    }
+
+    @Test
+    public void shouldStopAllStagesIfDecodingFails() throws IOException {
+	final AtomicInteger walked = new AtomicInteger();
+	try {
+	    new IngestionPipeline(2, 4, 1, 4, 2).run(
+		    files -> {
+			for (int i = 0; i < 100_000; ++i) {
+			    files.accept(new File("image" + i));
+			    walked.incrementAndGet();
+			}
+		    },
+		    file -> {
+			if ("image10".equals(file.getName())) {
+			    throw new IllegalStateException("corrupt");
+			}
+			return record(file);
+		    },
+		    records -> {
+		    }
+	    );
+	    Assert.fail("Expected an exception");
+	} catch (IllegalStateException e) {
+	    Assert.assertEquals("corrupt", e.getMessage());
+	}
+	Assert.assertTrue(walked.get() < 100_000);
+    }
+
+    @Test(timeout = 10_000)
+    public void shouldStopSourcesWithThreadsOfTheirOwn() throws IOException {
+	try {
+	    new IngestionPipeline(1, 1, 1, 1, 1).run(
+		    files -> IntStream.range(0, 100_000).parallel().forEach(i -> files.accept(new File("image" + i))),
+		    file -> {
+			throw new IllegalStateException("corrupt");
+		    },
+		    records -> {
+		    }
+	    );
+	    Assert.fail("Expected an exception");
+	} catch (IllegalStateException e) {
+	    Assert.assertEquals("corrupt", e.getMessage());
+	}
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldRethrowIOExceptionsOfTheWalk() throws IOException {
+	new IngestionPipeline(1, 1, 1, 1, 1).run(
+		files -> {
+		    throw new IOException("unreadable");
+		},
+		IngestionPipelineTest::record,
+		records -> {
+		}
+	);
+    }
+
+    private static ImagesRecord record(final File file) {
+	final ImagesRecord record = new ImagesRecord();
+	record.setAbsoluteFileName(file.getName());
+	return record;
+    }
+}
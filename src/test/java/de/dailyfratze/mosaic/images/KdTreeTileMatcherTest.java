@@ -0,0 +1,104 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.images;
+
+import de.dailyfratze.mosaic.images.db.tables.records.ImagesRecord;
+import java.io.File;
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+import org.h2.jdbcx.JdbcDataSource;
+import org.jooq.DSLContext;
+import org.jooq.SQLDialect;
+import org.jooq.impl.DSL;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Michael J. Simons, 2015-04-11
+ */
+public class KdTreeTileMatcherTest {
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void shouldMatchLikeTheDatabase() throws Exception {
+	final String databaseFile = new File(temporaryFolder.getRoot(), "library").getAbsolutePath();
+	final Random random = new Random(4711);
+	try (ImageLibrary imageLibrary = new ImageLibrary(temporaryFolder.getRoot().getAbsolutePath(), databaseFile, ".*", "yyyy-MM-dd")) {
+	    imageLibrary.createDatabase();
+
+	    final List<ImagesRecord> records = new ArrayList<>();
+	    for (int i = 0; i < 2000; ++i) {
+		final ImagesRecord record = new ImagesRecord();
+		record.setAbsoluteFileName("/library/" + i + ".jpg");
+		record.setTakenOn(new Date(0));
+		// Some duplicates to check that ties are resolved the same way
+		ImageLibrary.setAverageColor(record, i % 10 == 0 && i > 0 ? records.get(i - 1).getAverageColor() : 0xFF000000 | random.nextInt(0x1000000));
+		records.add(record);
+	    }
+	    imageLibrary.storeImageRecords(records);
+	}
+
+	final JdbcDataSource dataSource = new JdbcDataSource();
+	dataSource.setUrl(String.format("jdbc:h2:file:%s;FILE_LOCK=FS", databaseFile));
+	final DSLContext create = DSL.using(dataSource, SQLDialect.H2);
+	final TileMatcher sqlTileMatcher = new SqlTileMatcher(create);
+	final TileMatcher kdTreeTileMatcher = new KdTreeTileMatcher(InMemoryLibrary.load(create));
+
+	final Set<Integer> excluded = new HashSet<>();
+	for (int i = 0; i < 250; ++i) {
+	    final int color = 0xFF000000 | random.nextInt(0x1000000);
+	    final Optional<Tile> expected = sqlTileMatcher.match(i, 0, color, excluded);
+	    final Optional<Tile> actual = kdTreeTileMatcher.match(i, 0, color, excluded);
+	    Assert.assertTrue(expected.isPresent());
+	    Assert.assertEquals(expected.get().getImageId(), actual.get().getImageId());
+	    Assert.assertEquals(expected.get().getAbsoluteFilename(), actual.get().getAbsoluteFilename());
+	    // Exclude the match so that later queries have to find other candidates
+	    excluded.add(expected.get().getImageId());
+	}
+    }
+
+    @Test
+    public void shouldFindTheSameNearestImagesAsBruteForce() {
+	final Random random = new Random(815);
+	final InMemoryLibrary library = InMemoryLibraries.random(random, 20000);
+	final KdTreeTileMatcher kdTreeTileMatcher = new KdTreeTileMatcher(library);
+	final BruteForceTileMatcher bruteForceTileMatcher = new BruteForceTileMatcher(library);
+
+	final Set<Integer> excluded = new HashSet<>();
+	for (int i = 0; i < 500; ++i) {
+	    final int color = 0xFF000000 | random.nextInt(0x1000000);
+	    final int[] expected = bruteForceTileMatcher.nearest(color, 10, excluded);
+	    Assert.assertArrayEquals(expected, kdTreeTileMatcher.nearest(color, 10, excluded));
+	    excluded.add(library.getId(expected[random.nextInt(expected.length)]));
+	}
+    }
+
+    @Test
+    public void shouldHandleEmptyLibraries() {
+	final TileMatcher tileMatcher = new KdTreeTileMatcher(new InMemoryLibrary(new int[0], new String[0], new LocalDate[0], new int[0], new double[0], new double[0], new double[0], new double[0]));
+	Assert.assertFalse(tileMatcher.match(0, 0, 0xFFFFFFFF, new HashSet<>()).isPresent());
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.images;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Michael J. Simons, 2015-04-17
+ */
+public class LabConverterTest {
+
+    @Test
+    public void cubeRootShouldBeAccurate() {
+	for (double x = 0.008; x < 1.2; x += 1e-6) {
+	    final double expected = Math.cbrt(x);
+	    Assert.assertEquals(expected, LabConverter.cbrt(x), expected * 1e-14);
+	}
+    }
+
+    @Test
+    public void conversionShouldBeAccurate() {
+	final double[] lab = new double[4];
+	// Every 7th color, includes black and white
+	for (int rgb = 0; rgb <= 0xFFFFFF; rgb += 7) {
+	    final double[] expected = toLabWithPow(rgb);
+	    LabConverter.toLab(rgb, lab, 1);
+	    Assert.assertEquals(expected[0], lab[1], 1e-11);
+	    Assert.assertEquals(expected[1], lab[2], 1e-11);
+	    Assert.assertEquals(expected[2], lab[3], 1e-11);
+	}
+    }
+
+    /**
+     * The original conversion, see EasyRGB.
+     */
+    static double[] toLabWithPow(final int rgb) {
+	double r = ((rgb >> 16) & 0xFF) / 255.0;
+	double g = ((rgb >> 8) & 0xFF) / 255.0;
+	double b = (rgb & 0xFF) / 255.0;
+
+	r = (r > 0.04045 ? Math.pow((r + 0.055) / 1.055, 2.4) : r / 12.92f) * 100.0;
+	g = (g > 0.04045 ? Math.pow((g + 0.055) / 1.055, 2.4) : g / 12.92f) * 100.0;
+	b = (b > 0.04045 ? Math.pow((b + 0.055) / 1.055, 2.4) : b / 12.92f) * 100.0;
+
+	double X = (r * 0.4124 + g * 0.3576 + b * 0.1805) / 95.047;
+	double Y = (r * 0.2126 + g * 0.7152 + b * 0.0722) / 100.0;
+	double Z = (r * 0.0193 + g * 0.1192 + b * 0.9505) / 108.883;
+
+	X = X > 0.008856 ? Math.pow(X, 1.0 / 3.0) : (7.787 * X) + (16.0 / 116.0);
+	Y = Y > 0.008856 ? Math.pow(Y, 1.0 / 3.0) : (7.787 * Y) + (16.0 / 116.0);
+	Z = Z > 0.008856 ? Math.pow(Z, 1.0 / 3.0) : (7.787 * Z) + (16.0 / 116.0);
+
+	return new double[]{(116 * Y) - 16, 500 * (X - Y), 200 * (Y - Z)};
+    }
+}
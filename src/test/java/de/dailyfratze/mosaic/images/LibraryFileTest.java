@@ -0,0 +1,68 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.images;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Michael J. Simons, 2015-04-24
+ */
+public class LibraryFileTest {
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void shouldRestoreTheLibrary() throws IOException {
+	final Random random = new Random(42);
+	for (int signatureSize : new int[]{1, 2, 3}) {
+	    for (int size : new int[]{0, 1, 999}) {
+		final InMemoryLibrary expected = signatureSize == 1 ? InMemoryLibraries.random(random, size) : InMemoryLibraries.randomWithSignatures(random, size, signatureSize);
+		final File file = new File(temporaryFolder.getRoot(), "library.mlib");
+		LibraryFile.write(expected, file);
+		final InMemoryLibrary actual = LibraryFile.load(file);
+
+		Assert.assertEquals(size, actual.size());
+		Assert.assertEquals(signatureSize, actual.signatureSize());
+		Assert.assertEquals(expected.fingerprint(), actual.fingerprint());
+		Assert.assertArrayEquals(expected.signatures(), actual.signatures());
+		Assert.assertArrayEquals(expected.lValues(), actual.lValues(), 0.0);
+		Assert.assertArrayEquals(expected.aValues(), actual.aValues(), 0.0);
+		Assert.assertArrayEquals(expected.bValues(), actual.bValues(), 0.0);
+		Assert.assertArrayEquals(expected.chromaValues(), actual.chromaValues(), 0.0);
+		for (int i = 0; i < size; ++i) {
+		    Assert.assertEquals(expected.getId(i), actual.getId(i));
+		    Assert.assertEquals(expected.getAbsoluteFilename(i), actual.getAbsoluteFilename(i));
+		    Assert.assertEquals(expected.getTakenOn(i), actual.getTakenOn(i));
+		}
+	    }
+	}
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectOtherFiles() throws IOException {
+	final File file = temporaryFolder.newFile("library.mv.db");
+	Files.write(file.toPath(), new byte[100]);
+	LibraryFile.load(file);
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.images;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.h2.jdbcx.JdbcDataSource;
+import org.jooq.DSLContext;
+import org.jooq.SQLDialect;
+import org.jooq.impl.DSL;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Michael J. Simons, 2015-04-25
+ */
+public class LibraryGeneratorTest {
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void populatedLibrariesShouldMatchScannedImages() throws IOException {
+	final File baseDir = temporaryFolder.newFolder("images");
+	final LibraryGenerator generator = new LibraryGenerator(42);
+	generator.setImagesPerDirectory(8);
+
+	final InMemoryLibrary populated = populate(generator, baseDir, "populated", 20);
+	generator.writeImages(baseDir, 20);
+	final String databaseFile = new File(temporaryFolder.getRoot(), "scanned").getAbsolutePath();
+	try (ImageLibrary imageLibrary = new ImageLibrary(baseDir.getAbsolutePath(), databaseFile, "\\d{4}-\\d{2}-\\d{2}\\.jpg", "yyyy-MM-dd'.jpg'")) {
+	    imageLibrary.setSignatureSize(2);
+	    imageLibrary.create();
+	}
+	final InMemoryLibrary scanned = load(databaseFile);
+
+	Assert.assertEquals(20, populated.size());
+	Assert.assertEquals(20, scanned.size());
+	final Map<String, Integer> scannedByName = new HashMap<>();
+	for (int i = 0; i < scanned.size(); ++i) {
+	    scannedByName.put(scanned.getAbsoluteFilename(i), i);
+	}
+	for (int i = 0; i < populated.size(); ++i) {
+	    final Integer j = scannedByName.get(populated.getAbsoluteFilename(i));
+	    Assert.assertNotNull(populated.getAbsoluteFilename(i), j);
+	    Assert.assertEquals(populated.getTakenOn(i), scanned.getTakenOn(j));
+	    // Only JPEG and scaling artifacts
+	    Assert.assertTrue(CIE94ColorDistance.compute(populated.getAverageColor(i), scanned.getAverageColor(j)) < 2.3);
+	}
+    }
+
+    @Test
+    public void shouldGenerateDailyImagesPerDirectory() throws IOException {
+	final LibraryGenerator generator = new LibraryGenerator(42);
+	generator.setImagesPerDirectory(100);
+	generator.setFirstDay(LocalDate.of(2015, 1, 1));
+	final InMemoryLibrary library = populate(generator, temporaryFolder.newFolder("images"), "library", 250);
+
+	Assert.assertEquals(250, library.size());
+	Assert.assertEquals(2, library.signatureSize());
+	int directories = 0;
+	for (int i = 0; i < library.size(); ++i) {
+	    Assert.assertEquals(i + 1, library.getId(i));
+	    final String filename = new File(library.getAbsoluteFilename(i)).getName();
+	    Assert.assertEquals(library.getTakenOn(i) + ".jpg", filename);
+	    if (library.getTakenOn(i).equals(LocalDate.of(2015, 1, 1))) {
+		++directories;
+	    } else {
+		Assert.assertTrue(library.getTakenOn(i).isAfter(library.getTakenOn(i - 1)));
+	    }
+	}
+	Assert.assertEquals(3, directories);
+    }
+
+    @Test
+    public void sameSeedShouldGenerateTheSameLibrary() throws IOException {
+	final InMemoryLibrary first = populate(new LibraryGenerator(42), temporaryFolder.newFolder("images"), "first", 50);
+	final InMemoryLibrary second = populate(new LibraryGenerator(42), new File(temporaryFolder.getRoot(), "images"), "second", 50);
+	final InMemoryLibrary other = populate(new LibraryGenerator(43), new File(temporaryFolder.getRoot(), "images"), "other", 50);
+
+	Assert.assertArrayEquals(first.signatures(), second.signatures());
+	Assert.assertFalse(Arrays.equals(first.signatures(), other.signatures()));
+    }
+
+    @Test
+    public void shouldGenerateSourceImagesOfAnySize() {
+	final BufferedImage image = new LibraryGenerator(42).sourceImage(321, 123);
+	Assert.assertEquals(321, image.getWidth());
+	Assert.assertEquals(123, image.getHeight());
+    }
+
+    private InMemoryLibrary populate(final LibraryGenerator generator, final File baseDir, final String name, final int count) throws IOException {
+	final String databaseFile = new File(temporaryFolder.getRoot(), name).getAbsolutePath();
+	try (ImageLibrary imageLibrary = new ImageLibrary(baseDir.getAbsolutePath(), databaseFile, "\\d{4}-\\d{2}-\\d{2}\\.jpg", "yyyy-MM-dd'.jpg'")) {
+	    imageLibrary.setSignatureSize(2);
+	    generator.populate(imageLibrary, count);
+	}
+	return load(databaseFile);
+    }
+
+    private static InMemoryLibrary load(final String databaseFile) {
+	final JdbcDataSource dataSource = new JdbcDataSource();
+	dataSource.setUrl(String.format("jdbc:h2:file:%s;FILE_LOCK=FS", databaseFile));
+	final DSLContext create = DSL.using(dataSource, SQLDialect.H2);
+	return InMemoryLibrary.load(create);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.images;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Michael J. Simons, 2015-04-14
+ */
+public class LookupTableTileMatcherTest {
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void shouldMostlyFindTheNearestImage() throws Exception {
+	final InMemoryLibrary library = InMemoryLibraries.random(new Random(1), 5000);
+	final TileMatcher exact = new KdTreeTileMatcher(library);
+	final TileMatcher lookupTable = LookupTableTileMatcher.loadOrBuild(library, new File(temporaryFolder.getRoot(), "library.lut"), 5, 16);
+
+	final Random random = new Random(2);
+	final Set<Integer> excluded = Collections.emptySet();
+	int hits = 0;
+	for (int i = 0; i < 1000; ++i) {
+	    final int color = 0xFF000000 | random.nextInt(0x1000000);
+	    if (exact.match(0, 0, color, excluded).get().getImageId() == lookupTable.match(0, 0, color, excluded).get().getImageId()) {
+		++hits;
+	    }
+	}
+	Assert.assertTrue("Only " + hits + " of 1000 tiles matched exactly", hits >= 950);
+    }
+
+    @Test
+    public void shouldFallBackToTheIndexIfAllCandidatesAreExcluded() throws Exception {
+	final InMemoryLibrary library = InMemoryLibraries.random(new Random(3), 200);
+	final TileMatcher exact = new KdTreeTileMatcher(library);
+	final TileMatcher lookupTable = LookupTableTileMatcher.loadOrBuild(library, new File(temporaryFolder.getRoot(), "library.lut"), 3, 2);
+
+	final Set<Integer> excluded = new HashSet<>();
+	for (int i = 0; i < 10; ++i) {
+	    final Tile tile = lookupTable.match(0, 0, 0xFF7F7F7F, excluded).get();
+	    // The first two tiles are the candidates of the cell
+	    if (i >= 2) {
+		Assert.assertEquals(exact.match(0, 0, 0xFF7F7F7F, excluded).get().getImageId(), tile.getImageId());
+	    }
+	    excluded.add(tile.getImageId());
+	}
+    }
+
+    @Test
+    public void shouldRebuildOutdatedTables() throws Exception {
+	final File file = new File(temporaryFolder.getRoot(), "library.lut");
+	final InMemoryLibrary oldLibrary = InMemoryLibraries.random(new Random(4), 100);
+	LookupTableTileMatcher.loadOrBuild(oldLibrary, file, 4, 4);
+	final long oldSize = file.length();
+	LookupTableTileMatcher.loadOrBuild(oldLibrary, file, 3, 4);
+	Assert.assertTrue(file.length() < oldSize);
+
+	// Table from a library with other colors must not be used
+	final InMemoryLibrary newLibrary = InMemoryLibraries.random(new Random(5), 100);
+	final TileMatcher exact = new KdTreeTileMatcher(newLibrary);
+	final TileMatcher lookupTable = LookupTableTileMatcher.loadOrBuild(newLibrary, file, 3, 4);
+	final int center = 0xFF101010;
+	Assert.assertEquals(exact.match(0, 0, center, Collections.emptySet()).get().getImageId(), lookupTable.match(0, 0, center, Collections.emptySet()).get().getImageId());
+	Assert.assertNotEquals(oldLibrary.fingerprint(), newLibrary.fingerprint());
+    }
+}
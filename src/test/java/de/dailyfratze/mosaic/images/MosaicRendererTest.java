@@ -0,0 +1,179 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.images;
+
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Michael J. Simons, 2015-04-26
+ */
+public class MosaicRendererTest {
+
+    private static final int COLUMNS = 12;
+
+    private static final int ROWS = 8;
+
+    private final Map<Integer, Integer> decoded = new ConcurrentHashMap<>();
+
+    private final Function<Tile, BufferedImage> decoder = tile -> {
+	decoded.merge(tile.getImageId(), 1, Integer::sum);
+	return solid(new Color(tile.getImageId() * 20, 255 - tile.getImageId() * 20, 128), 30, 20);
+    };
+
+    @Test
+    public void shouldDecodeEachImageOncePerRender() {
+	final MosaicRenderer renderer = new MosaicRenderer(solid(Color.BLACK, 24, 16), COLUMNS, ROWS, 15, 10, decoder);
+	renderer.setTileCache(new TileCache(1 << 20));
+	final List<Tile> tiles = tiles();
+	for (int i = 0; i < tiles.size(); i += 10) {
+	    renderer.onTiles(tiles.subList(i, Math.min(i + 10, tiles.size())));
+	}
+
+	Assert.assertEquals(COLUMNS * ROWS, renderer.getRenderedTiles());
+	Assert.assertEquals(12, decoded.size());
+	decoded.values().forEach(count -> Assert.assertEquals(1, count.intValue()));
+	Assert.assertEquals(12, renderer.getTileCache().getMisses());
+	Assert.assertEquals((COLUMNS * ROWS - 12) / (double) (COLUMNS * ROWS), renderer.getTileCache().getHitRate(), 1e-9);
+    }
+
+    @Test
+    public void shouldDecodeEachImageOncePerBatchWithoutCache() {
+	final MosaicRenderer renderer = new MosaicRenderer(solid(Color.BLACK, 24, 16), COLUMNS, ROWS, 15, 10, decoder);
+	final List<Tile> tiles = tiles();
+	renderer.onTiles(tiles.subList(0, 48));
+	renderer.onTiles(tiles.subList(48, tiles.size()));
+
+	Assert.assertEquals(12, decoded.size());
+	decoded.values().forEach(count -> Assert.assertEquals(2, count.intValue()));
+    }
+
+    @Test
+    public void shouldBlendSourceImageOverTiles() {
+	final MosaicRenderer renderer = new MosaicRenderer(solid(Color.WHITE, 24, 16), COLUMNS, ROWS, 15, 10, tile -> solid(Color.BLACK, 30, 20));
+	renderer.onTiles(tiles());
+	final BufferedImage target = renderer.getTarget();
+
+	Assert.assertEquals(COLUMNS * 15, target.getWidth());
+	Assert.assertEquals(ROWS * 10, target.getHeight());
+	final Color color = new Color(target.getRGB(37, 25));
+	Assert.assertEquals(255 * (1 - MosaicRenderer.TILE_ALPHA), color.getRed(), 1.0);
+	Assert.assertEquals(color.getRed(), color.getGreen());
+	Assert.assertEquals(color.getRed(), color.getBlue());
+    }
+
+    @Test
+    public void parallelRenderingShouldBeIdenticalToSerialRendering() {
+	final Random random = new Random(23);
+	final BufferedImage sourceImage = new BufferedImage(97, 61, BufferedImage.TYPE_3BYTE_BGR);
+	for (int y = 0; y < sourceImage.getHeight(); ++y) {
+	    for (int x = 0; x < sourceImage.getWidth(); ++x) {
+		sourceImage.setRGB(x, y, random.nextInt());
+	    }
+	}
+	// Large tiles covering several bands like in adaptive mosaics
+	final List<Tile> tiles = new ArrayList<>();
+	tiles.add(new Tile(0, 0, 4, 4, 1, "/library/1.jpg", null));
+	tiles.add(new Tile(4, 0, 2, 2, 2, "/library/2.jpg", null));
+	for (int j = 0; j < ROWS; ++j) {
+	    for (int i = 0; i < COLUMNS; ++i) {
+		if (j >= 4 || i >= 6 || (j >= 2 && i >= 4)) {
+		    tiles.add(new Tile(i, j, 3 + random.nextInt(20), "/library/" + i + ".jpg", null));
+		}
+	    }
+	}
+	final Function<Tile, BufferedImage> noise = tile -> {
+	    final Random pixels = new Random(tile.getImageId());
+	    final BufferedImage rv = new BufferedImage(31, 23, BufferedImage.TYPE_INT_RGB);
+	    for (int y = 0; y < rv.getHeight(); ++y) {
+		for (int x = 0; x < rv.getWidth(); ++x) {
+		    rv.setRGB(x, y, pixels.nextInt());
+		}
+	    }
+	    return rv;
+	};
+
+	final int[] expected = renderSerially(sourceImage, tiles, noise);
+	Assert.assertArrayEquals(expected, render(sourceImage, tiles, noise, 1));
+	Assert.assertArrayEquals(expected, render(sourceImage, tiles, noise, 3));
+	Assert.assertArrayEquals(expected, render(sourceImage, tiles, noise, 8));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldNotAllowParallelismLessThanOne() {
+	new MosaicRenderer(solid(Color.BLACK, 24, 16), COLUMNS, ROWS, 15, 10, decoder).setParallelism(0);
+    }
+
+    private static int[] render(final BufferedImage sourceImage, final List<Tile> tiles, final Function<Tile, BufferedImage> decoder, final int parallelism) {
+	try (MosaicRenderer renderer = new MosaicRenderer(sourceImage, COLUMNS, ROWS, 17, 13, decoder)) {
+	    renderer.setParallelism(parallelism);
+	    renderer.setTileCache(new TileCache(1 << 20));
+	    for (int i = 0; i < tiles.size(); i += 25) {
+		renderer.onTiles(tiles.subList(i, Math.min(i + 25, tiles.size())));
+	    }
+	    renderer.onComplete();
+	    final BufferedImage target = renderer.getTarget();
+	    return target.getRGB(0, 0, target.getWidth(), target.getHeight(), null, 0, target.getWidth());
+	}
+    }
+
+    /**
+     * Renders the mosaic without bands, with a single graphics for the whole
+     * target: The scaled source image first, then all scaled tiles over it.
+     */
+    private static int[] renderSerially(final BufferedImage sourceImage, final List<Tile> tiles, final Function<Tile, BufferedImage> decoder) {
+	final BufferedImage target = new BufferedImage(COLUMNS * 17, ROWS * 13, BufferedImage.TYPE_INT_RGB);
+	final Graphics2D g2 = MosaicRenderer.createGraphics(target);
+	g2.drawImage(sourceImage, 0, 0, target.getWidth(), target.getHeight(), null);
+	g2.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, MosaicRenderer.TILE_ALPHA));
+	tiles.forEach(tile -> g2.drawImage(MosaicRenderer.scale(decoder.apply(tile), tile.getWidth() * 17, tile.getHeight() * 13), tile.getX() * 17, tile.getY() * 13, null));
+	g2.dispose();
+	return target.getRGB(0, 0, target.getWidth(), target.getHeight(), null, 0, target.getWidth());
+    }
+
+    /**
+     * @return The tiles of a mosaic using 12 images, each one 8 times
+     */
+    private static List<Tile> tiles() {
+	final List<Tile> rv = new ArrayList<>();
+	for (int j = 0; j < ROWS; ++j) {
+	    for (int i = 0; i < COLUMNS; ++i) {
+		final int imageId = (i + j * 5) % 12;
+		rv.add(new Tile(i, j, imageId, "/library/" + imageId + ".jpg", null));
+	    }
+	}
+	return rv;
+    }
+
+    private static BufferedImage solid(final Color color, final int width, final int height) {
+	final BufferedImage rv = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+	final Graphics2D g2 = rv.createGraphics();
+	g2.setColor(color);
+	g2.fillRect(0, 0, width, height);
+	g2.dispose();
+	return rv;
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.images;
+
+import de.dailyfratze.mosaic.images.db.tables.records.ImagesRecord;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.sql.Date;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Michael J. Simons, 2015-04-12
+ */
+public class MosaicTest {
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private String databaseFile;
+
+    private String sourceImageFile;
+
+    @Before
+    public void createLibraryAndSourceImage() throws Exception {
+	final Random random = new Random(23);
+
+	this.databaseFile = new File(temporaryFolder.getRoot(), "library").getAbsolutePath();
+	try (ImageLibrary imageLibrary = new ImageLibrary(temporaryFolder.getRoot().getAbsolutePath(), databaseFile, ".*", "yyyy-MM-dd")) {
+	    imageLibrary.createDatabase();
+	    final List<ImagesRecord> records = new ArrayList<>();
+	    for (int i = 0; i < 300; ++i) {
+		final ImagesRecord record = new ImagesRecord();
+		record.setAbsoluteFileName("/library/" + i + ".jpg");
+		record.setTakenOn(new Date(0));
+		ImageLibrary.setAverageColor(record, 0xFF000000 | random.nextInt(0x1000000));
+		records.add(record);
+	    }
+	    imageLibrary.storeImageRecords(records);
+	}
+
+	// Large patches of similar colors, so that exclusion matters
+	final BufferedImage sourceImage = new BufferedImage(610, 455, BufferedImage.TYPE_INT_RGB);
+	final Graphics2D g2 = sourceImage.createGraphics();
+	for (int y = 0; y < sourceImage.getHeight(); y += 100) {
+	    for (int x = 0; x < sourceImage.getWidth(); x += 100) {
+		g2.setColor(new Color(random.nextInt(0x1000000)));
+		g2.fillRect(x, y, 100, 100);
+	    }
+	}
+	g2.dispose();
+	this.sourceImageFile = temporaryFolder.newFile("source.jpg").getAbsolutePath();
+	new ImageStorage().storeAsJpeg(sourceImage, new File(sourceImageFile), 0.95f);
+    }
+
+    @Test
+    public void parallelMatchingShouldBeIdenticalToSequentialMatching() {
+	final List<String> expected = createMosaic(Mosaic.Matching.SQL, 1);
+	Assert.assertEquals(16 * 16, expected.size());
+	// The lookup table is only an approximation
+	for (Mosaic.Matching matching : new Mosaic.Matching[]{Mosaic.Matching.SQL, Mosaic.Matching.INDEX, Mosaic.Matching.BATCHED_SQL, Mosaic.Matching.BRUTE_FORCE, Mosaic.Matching.SIGNATURE}) {
+	    Assert.assertEquals(expected, createMosaic(matching, 1));
+	    Assert.assertEquals(expected, createMosaic(matching, 2));
+	    Assert.assertEquals(expected, createMosaic(matching, 7));
+	}
+    }
+
+    @Test
+    public void streamedTilesShouldBeIdenticalToCreatedTiles() {
+	final List<String> expected = createMosaic(Mosaic.Matching.INDEX, 1);
+
+	try (Mosaic mosaic = new Mosaic(databaseFile, sourceImageFile, Mosaic.Matching.INDEX)) {
+	    mosaic.setExclusionRadius(3);
+	    mosaic.setParallelism(3);
+	    final List<String> actual = new ArrayList<>();
+	    mosaic.stream(tiles -> tiles.forEach(tile -> actual.add(tile.getX() + "/" + tile.getY() + ": " + tile.getImageId())), 7, 2).await();
+	    Assert.assertEquals(expected, actual);
+	}
+    }
+
+    @Test
+    public void exportedLibrariesShouldYieldTheSameMosaic() throws IOException {
+	final List<String> expected = createMosaic(Mosaic.Matching.INDEX, 1);
+
+	final File libraryFile = new File(temporaryFolder.getRoot(), "library.mlib");
+	try (ImageLibrary imageLibrary = new ImageLibrary(temporaryFolder.getRoot().getAbsolutePath(), databaseFile, ".*", "yyyy-MM-dd")) {
+	    imageLibrary.export(libraryFile);
+	}
+	try (Mosaic mosaic = new Mosaic(libraryFile.getAbsolutePath(), sourceImageFile, Mosaic.Matching.INDEX)) {
+	    mosaic.setExclusionRadius(3);
+	    mosaic.setLibraryFile(libraryFile);
+	    Assert.assertEquals(expected, mosaic.create(null).stream()
+		    .map(tile -> tile.getX() + "/" + tile.getY() + ": " + tile.getImageId())
+		    .collect(Collectors.toList()));
+	}
+	// The library file isn't opened as a database
+	Assert.assertFalse(new File(libraryFile.getAbsolutePath() + ".mv.db").exists());
+    }
+
+    @Test
+    public void sqlMatchingShouldNotUseLibraryFiles() throws IOException {
+	final File libraryFile = new File(temporaryFolder.getRoot(), "library.mlib");
+	for (Mosaic.Matching matching : new Mosaic.Matching[]{Mosaic.Matching.SQL, Mosaic.Matching.BATCHED_SQL}) {
+	    try (Mosaic mosaic = new Mosaic(libraryFile.getAbsolutePath(), sourceImageFile, matching)) {
+		mosaic.setLibraryFile(libraryFile);
+		Assert.fail(matching + " must not accept a library file");
+	    } catch (IllegalArgumentException e) {
+	    }
+	}
+	Assert.assertFalse(new File(libraryFile.getAbsolutePath() + ".mv.db").exists());
+    }
+
+    @Test
+    public void adaptiveTilesShouldCoverTheGridExactlyOnce() {
+	try (Mosaic mosaic = new Mosaic(databaseFile, sourceImageFile, Mosaic.Matching.INDEX)) {
+	    mosaic.setExclusionRadius(3);
+	    mosaic.setAdaptiveLevels(2);
+	    final List<Tile> tiles = mosaic.create(null);
+
+	    final int[] covered = new int[16 * 16];
+	    for (Tile tile : tiles) {
+		Assert.assertEquals(tile.getWidth(), tile.getHeight());
+		for (int j = tile.getY(); j < tile.getY() + tile.getHeight(); ++j) {
+		    for (int i = tile.getX(); i < tile.getX() + tile.getWidth(); ++i) {
+			++covered[j * 16 + i];
+		    }
+		}
+	    }
+	    for (int count : covered) {
+		Assert.assertEquals(1, count);
+	    }
+	    // The patches of the source image are uniform enough for larger tiles
+	    Assert.assertTrue(tiles.size() < 16 * 16);
+	    Assert.assertTrue(tiles.stream().anyMatch(tile -> tile.getWidth() > 1));
+	}
+    }
+
+    private List<String> createMosaic(final Mosaic.Matching matching, final int parallelism) {
+	try (Mosaic mosaic = new Mosaic(databaseFile, sourceImageFile, matching)) {
+	    mosaic.setExclusionRadius(3);
+	    mosaic.setParallelism(parallelism);
+	    // Few candidates, so that some tiles have to be queried again
+	    mosaic.setCandidatesPerTile(8);
+	    final List<String> rv = mosaic.create(null).stream()
+		    .map(tile -> tile.getX() + "/" + tile.getY() + ": " + tile.getImageId())
+		    .collect(Collectors.toList());
+	    // A second mosaic reuses the matcher and its prepared queries
+	    Assert.assertEquals(rv, mosaic.create(null).stream()
+		    .map(tile -> tile.getX() + "/" + tile.getY() + ": " + tile.getImageId())
+		    .collect(Collectors.toList()));
+	    return rv;
+	}
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.images;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Michael J. Simons, 2015-04-22
+ */
+public class ParallelFileWalkerTest {
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void shouldFindAllMatchingFiles() throws IOException {
+	final Path baseDir = temporaryFolder.newFolder("images").toPath();
+	final Set<File> expected = new HashSet<>();
+	for (int year = 2013; year <= 2015; ++year) {
+	    for (int month = 1; month <= 12; ++month) {
+		final Path directory = Files.createDirectories(baseDir.resolve(String.format("%d/%02d", year, month)));
+		for (int day = 1; day <= 3; ++day) {
+		    expected.add(Files.createFile(directory.resolve(String.format("%d-%02d-%02d.jpg", year, month, day))).toFile());
+		}
+		Files.createFile(directory.resolve("notes.txt"));
+	    }
+	}
+
+	final Set<File> found = ConcurrentHashMap.newKeySet();
+	final ParallelFileWalker walker = new ParallelFileWalker(4, Pattern.compile(".*\\.jpg"));
+	walker.walk(baseDir, file -> Assert.assertTrue(found.add(file)));
+
+	Assert.assertEquals(expected, found);
+	Assert.assertEquals(1 + 3 + 3 * 12, walker.getDirectories());
+	Assert.assertEquals(3 * 12 * 4, walker.getVisitedFiles());
+	Assert.assertEquals(expected.size(), walker.getMatchingFiles());
+    }
+
+    @Test(expected = NoSuchFileException.class)
+    public void shouldRethrowIOExceptions() throws IOException {
+	new ParallelFileWalker(2, Pattern.compile(".*")).walk(temporaryFolder.getRoot().toPath().resolve("missing"), file -> {
+	});
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.images;
+
+import de.dailyfratze.mosaic.images.db.tables.records.ImagesRecord;
+import java.io.File;
+import java.sql.Date;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.h2.jdbcx.JdbcDataSource;
+import org.jooq.SQLDialect;
+import org.jooq.impl.DSL;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Michael J. Simons, 2015-04-18
+ */
+public class SignatureTileMatcherTest {
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void shouldMatchLikeAnExhaustiveSearch() {
+	final Random random = new Random(815);
+	for (int signatureSize = 2; signatureSize <= 3; ++signatureSize) {
+	    final InMemoryLibrary library = InMemoryLibraries.randomWithSignatures(random, 5000, signatureSize);
+	    final SignatureTileMatcher signatureTileMatcher = new SignatureTileMatcher(library);
+	    Assert.assertEquals(signatureSize, signatureTileMatcher.signatureSize());
+
+	    final Set<Integer> excluded = new HashSet<>();
+	    final int[] signature = new int[signatureSize * signatureSize];
+	    for (int i = 0; i < 300; ++i) {
+		final int color = 0xFF000000 | random.nextInt(0x1000000);
+		for (int j = 0; j < signature.length; ++j) {
+		    signature[j] = InMemoryLibraries.vary(random, color);
+		}
+		final int expected = nearest(library, signature, excluded);
+		Assert.assertEquals(expected, signatureTileMatcher.nearest(signature, excluded));
+		excluded.add(library.getId(expected));
+	    }
+	}
+    }
+
+    @Test
+    public void shouldLoadSignaturesFromTheLibrary() {
+	final String databaseFile = new File(temporaryFolder.getRoot(), "library").getAbsolutePath();
+	final List<ImagesRecord> records = new ArrayList<>();
+	try (ImageLibrary imageLibrary = new ImageLibrary(temporaryFolder.getRoot().getAbsolutePath(), databaseFile, ".*", "yyyy-MM-dd")) {
+	    imageLibrary.createDatabase();
+
+	    for (int i = 0; i < 3; ++i) {
+		final ImagesRecord record = new ImagesRecord();
+		record.setAbsoluteFileName("/library/" + i + ".jpg");
+		record.setTakenOn(new Date(0));
+		ImageLibrary.setAverageColor(record, 0xFF102030 * (i + 1));
+		records.add(record);
+	    }
+	    // The last image has been stored before signatures were enabled
+	    ImageLibrary.setSignature(records.get(0), new int[]{0xFF000000, 0xFF0000FF, 0xFF00FF00, 0xFFFF0000});
+	    ImageLibrary.setSignature(records.get(1), new int[]{0xFFFFFFFF, 0xFF0000FF, 0xFF00FF00, 0xFFFF0000});
+	    imageLibrary.storeImageRecords(records);
+	}
+
+	final JdbcDataSource dataSource = new JdbcDataSource();
+	dataSource.setUrl(String.format("jdbc:h2:file:%s;FILE_LOCK=FS", databaseFile));
+	final InMemoryLibrary library = InMemoryLibrary.load(DSL.using(dataSource, SQLDialect.H2));
+
+	Assert.assertEquals(2, library.signatureSize());
+	final int averageColor = records.get(2).getAverageColor();
+	Assert.assertArrayEquals(new int[]{
+	    0xFF000000, 0xFF0000FF, 0xFF00FF00, 0xFFFF0000,
+	    0xFFFFFFFF, 0xFF0000FF, 0xFF00FF00, 0xFFFF0000,
+	    averageColor, averageColor, averageColor, averageColor
+	}, library.signatures());
+
+	final TileMatcher tileMatcher = new SignatureTileMatcher(library);
+	Assert.assertEquals(2, tileMatcher.matchSignature(0, 0, new int[]{0xFFFFFFFF, 0xFF0000FF, 0xFF00FF00, 0xFFFF0000}, new HashSet<>()).get().getImageId());
+	Assert.assertEquals(3, tileMatcher.match(0, 0, averageColor, new HashSet<>()).get().getImageId());
+	Assert.assertFalse(tileMatcher.match(0, 0, averageColor, new HashSet<>(Arrays.asList(1, 2, 3))).isPresent());
+    }
+
+    /**
+     * Computes the distance to every image, in order of their ids.
+     */
+    private static int nearest(final InMemoryLibrary library, final int[] signature, final Set<Integer> excluded) {
+	int best = -1;
+	double bestDistance = Double.POSITIVE_INFINITY;
+	for (int i = 0; i < library.size(); ++i) {
+	    if (excluded.contains(library.getId(i))) {
+		continue;
+	    }
+	    double distance = 0.0;
+	    for (int j = 0; j < signature.length; ++j) {
+		final double[] lab1 = CIE94ColorDistance.toLab(library.signatures()[i * signature.length + j]);
+		final double[] lab2 = CIE94ColorDistance.toLab(signature[j]);
+		distance += CIE94ColorDistance.compute(
+			lab1[0], lab1[1], lab1[2], CIE94ColorDistance.chroma(lab1[1], lab1[2]),
+			lab2[0], lab2[1], lab2[2], CIE94ColorDistance.chroma(lab2[1], lab2[2])
+		);
+	    }
+	    if (distance < bestDistance) {
+		best = i;
+		bestDistance = distance;
+	    }
+	}
+	return best;
+    }
+}
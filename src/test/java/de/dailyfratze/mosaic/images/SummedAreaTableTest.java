@@ -0,0 +1,62 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.images;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Michael J. Simons, 2015-04-13
+ */
+public class SummedAreaTableTest {
+
+    @Test
+    public void averagesShouldBeIdenticalToRGBAverage() throws Exception {
+	try (AutoCloseableImageReader imageReader = new AutoCloseableImageReader(SummedAreaTableTest.class.getResourceAsStream("/de/dailyfratze/mosaic/images/IPTC-PhotometadataRef01.jpg"))) {
+	    final BufferedImage image = imageReader.read();
+	    final SummedAreaTable summedAreaTable = new SummedAreaTable(image);
+
+	    Assert.assertEquals(average(image, 0, 0, image.getWidth(), image.getHeight()), summedAreaTable.averageColor(0, 0, image.getWidth(), image.getHeight()));
+
+	    final Random random = new Random(42);
+	    for (int i = 0; i < 500; ++i) {
+		final int x = random.nextInt(image.getWidth());
+		final int y = random.nextInt(image.getHeight());
+		final int w = 1 + random.nextInt(image.getWidth() - x);
+		final int h = 1 + random.nextInt(image.getHeight() - y);
+		Assert.assertEquals(average(image, x, y, w, h), summedAreaTable.averageColor(x, y, w, h));
+	    }
+	}
+    }
+
+    @Test
+    public void regionsShouldBeDividedLikeLibrarySignatures() throws Exception {
+	try (AutoCloseableImageReader imageReader = new AutoCloseableImageReader(SummedAreaTableTest.class.getResourceAsStream("/de/dailyfratze/mosaic/images/IPTC-PhotometadataRef01.jpg"))) {
+	    final BufferedImage image = imageReader.read();
+	    final SummedAreaTable summedAreaTable = new SummedAreaTable(image);
+	    for (int size = 1; size <= 3; ++size) {
+		Assert.assertArrayEquals(ImageLibrary.computeSignature(image, size), summedAreaTable.averageColors(0, 0, image.getWidth(), image.getHeight(), size));
+	    }
+	}
+    }
+
+    int average(final BufferedImage image, final int x, final int y, final int w, final int h) {
+	return Arrays.stream(image.getRGB(x, y, w, h, null, 0, w)).collect(RGBAverage::new, RGBAverage::accept, RGBAverage::combine).value();
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.images;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Optional;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Michael J. Simons, 2015-04-23
+ */
+public class ThumbnailStoreTest {
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void shouldStoreScaledImages() throws IOException {
+	final File file = new File(temporaryFolder.getRoot(), "thumbnails");
+	try (ThumbnailStore store = ThumbnailStore.open(file, 15, 11)) {
+	    store.write(3, image(Color.RED));
+	    store.write(1, image(Color.GREEN));
+	    store.write(3, image(Color.BLUE));
+	    assertThumbnail(Color.BLUE, store.read(3));
+	    Assert.assertFalse(store.read(2).isPresent());
+	    Assert.assertFalse(store.read(4).isPresent());
+	}
+
+	try (ThumbnailStore store = ThumbnailStore.openReadOnly(file)) {
+	    Assert.assertEquals(15, store.getWidth());
+	    Assert.assertEquals(11, store.getHeight());
+	    assertThumbnail(Color.GREEN, store.read(1));
+	    Assert.assertFalse(store.read(2).isPresent());
+	    assertThumbnail(Color.BLUE, store.read(3));
+	    Assert.assertFalse(store.read(4).isPresent());
+	}
+    }
+
+    @Test
+    public void removedThumbnailsShouldBeAbsent() throws IOException {
+	final File file = new File(temporaryFolder.getRoot(), "thumbnails");
+	try (ThumbnailStore store = ThumbnailStore.open(file, 15, 11)) {
+	    store.write(1, image(Color.RED));
+	    store.write(2, image(Color.GREEN));
+	    store.remove(1);
+	    // Never stored
+	    store.remove(5);
+	    Assert.assertFalse(store.read(1).isPresent());
+	    assertThumbnail(Color.GREEN, store.read(2));
+	}
+
+	try (ThumbnailStore store = ThumbnailStore.openReadOnly(file)) {
+	    Assert.assertFalse(store.read(1).isPresent());
+	    assertThumbnail(Color.GREEN, store.read(2));
+	    Assert.assertFalse(store.read(5).isPresent());
+	}
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldNotMixTileSizes() throws IOException {
+	final File file = new File(temporaryFolder.getRoot(), "thumbnails");
+	ThumbnailStore.open(file, 15, 11).close();
+	ThumbnailStore.open(file, 15, 12).close();
+    }
+
+    private static BufferedImage image(final Color color) {
+	final BufferedImage image = new BufferedImage(40, 30, BufferedImage.TYPE_INT_RGB);
+	final Graphics2D g2 = image.createGraphics();
+	g2.setColor(color);
+	g2.fillRect(0, 0, image.getWidth(), image.getHeight());
+	g2.dispose();
+	return image;
+    }
+
+    private static void assertThumbnail(final Color expected, final Optional<BufferedImage> thumbnail) {
+	Assert.assertTrue(thumbnail.isPresent());
+	Assert.assertEquals(15, thumbnail.get().getWidth());
+	Assert.assertEquals(11, thumbnail.get().getHeight());
+	for (int y = 0; y < 11; ++y) {
+	    for (int x = 0; x < 15; ++x) {
+		Assert.assertEquals(expected.getRGB(), thumbnail.get().getRGB(x, y));
+	    }
+	}
+    }
+}
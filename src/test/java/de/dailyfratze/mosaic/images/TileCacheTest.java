@@ -0,0 +1,123 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.images;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Michael J. Simons, 2015-04-26
+ */
+public class TileCacheTest {
+
+    private final AtomicInteger decoded = new AtomicInteger();
+
+    private final Supplier<BufferedImage> decoder = () -> {
+	decoded.incrementAndGet();
+	return new BufferedImage(40, 30, BufferedImage.TYPE_INT_ARGB);
+    };
+
+    @Test
+    public void shouldScaleAndCacheTiles() {
+	final TileCache tileCache = new TileCache(1 << 20);
+	final BufferedImage tile = tileCache.get(1, 20, 10, decoder);
+	Assert.assertEquals(20, tile.getWidth());
+	Assert.assertEquals(10, tile.getHeight());
+	Assert.assertEquals(BufferedImage.TYPE_INT_RGB, tile.getType());
+	Assert.assertSame(tile, tileCache.get(1, 20, 10, decoder));
+	Assert.assertNotSame(tile, tileCache.get(1, 40, 20, decoder));
+
+	Assert.assertEquals(2, decoded.get());
+	Assert.assertEquals(1, tileCache.getHits());
+	Assert.assertEquals(2, tileCache.getMisses());
+	Assert.assertEquals(1 / 3.0, tileCache.getHitRate(), 1e-9);
+	Assert.assertEquals(20 * 10 * 4 + 40 * 20 * 4, tileCache.getBytes());
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedTiles() {
+	// Room for three tiles
+	final TileCache tileCache = new TileCache(3 * 10 * 10 * 4);
+	tileCache.get(1, 10, 10, decoder);
+	tileCache.get(2, 10, 10, decoder);
+	tileCache.get(3, 10, 10, decoder);
+	tileCache.get(1, 10, 10, decoder);
+	tileCache.get(4, 10, 10, decoder);
+	Assert.assertEquals(4, decoded.get());
+	Assert.assertEquals(3, tileCache.size());
+	Assert.assertEquals(1, tileCache.getEvictions());
+
+	// 2 has been evicted, 1 has been used more recently
+	tileCache.get(1, 10, 10, decoder);
+	Assert.assertEquals(4, decoded.get());
+	tileCache.get(2, 10, 10, decoder);
+	Assert.assertEquals(5, decoded.get());
+	Assert.assertTrue(tileCache.getBytes() <= tileCache.getMaximumBytes());
+    }
+
+    @Test
+    public void shouldNotCacheTilesLargerThanTheCache() {
+	final TileCache tileCache = new TileCache(10 * 10 * 4);
+	tileCache.get(1, 11, 10, decoder);
+	tileCache.get(1, 11, 10, decoder);
+	Assert.assertEquals(2, decoded.get());
+	Assert.assertEquals(0, tileCache.size());
+	Assert.assertEquals(0, tileCache.getBytes());
+    }
+
+    @Test
+    public void concurrentRequestsShouldDecodeOnce() throws Exception {
+	final TileCache tileCache = new TileCache(1 << 20);
+	final CountDownLatch decoding = new CountDownLatch(1);
+	final CountDownLatch release = new CountDownLatch(1);
+	final ExecutorService executorService = Executors.newFixedThreadPool(2);
+	try {
+	    final Future<BufferedImage> first = executorService.submit(() -> tileCache.get(1, 10, 10, () -> {
+		decoding.countDown();
+		try {
+		    release.await();
+		} catch (InterruptedException e) {
+		    throw new RuntimeException(e);
+		}
+		return decoder.get();
+	    }));
+	    decoding.await();
+	    final Future<BufferedImage> second = executorService.submit(() -> tileCache.get(1, 10, 10, decoder));
+	    // Wait until the second request waits for the first one
+	    while (tileCache.getHits() == 0) {
+		Thread.sleep(1);
+	    }
+	    release.countDown();
+	    Assert.assertSame(first.get(), second.get());
+	    Assert.assertEquals(1, decoded.get());
+	    Assert.assertEquals(1, tileCache.getMisses());
+	} finally {
+	    executorService.shutdownNow();
+	}
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldNotAllowNegativeSizes() {
+	new TileCache(-1);
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.images;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Michael J. Simons, 2015-04-19
+ */
+public class TileStreamTest {
+
+    @Test
+    public void shouldPassAllTilesInOrderAndInBatches() {
+	final List<List<Tile>> batches = new ArrayList<>();
+	final AtomicInteger completed = new AtomicInteger();
+	final TileStream tileStream = new TileStream(new TileSink() {
+	    @Override
+	    public void onTiles(final List<Tile> tiles) {
+		batches.add(tiles);
+	    }
+
+	    @Override
+	    public void onComplete() {
+		completed.incrementAndGet();
+	    }
+	}, 10, 2);
+	tileStream.start(tiles -> {
+	    for (int i = 0; i < 95; ++i) {
+		tiles.accept(tile(i));
+	    }
+	});
+	tileStream.await();
+
+	Assert.assertTrue(tileStream.isDone());
+	Assert.assertEquals(1, completed.get());
+	Assert.assertEquals(10, batches.size());
+	int i = 0;
+	for (List<Tile> batch : batches) {
+	    Assert.assertEquals(i < 90 ? 10 : 5, batch.size());
+	    for (Tile tile : batch) {
+		Assert.assertEquals(i++, tile.getX());
+	    }
+	}
+    }
+
+    @Test
+    public void matchingShouldWaitForASlowSink() {
+	final AtomicInteger matched = new AtomicInteger();
+	final AtomicInteger maximumAhead = new AtomicInteger();
+	final AtomicInteger delivered = new AtomicInteger();
+	final TileStream tileStream = new TileStream(tiles -> {
+	    maximumAhead.accumulateAndGet(matched.get() - delivered.get(), Math::max);
+	    delivered.addAndGet(tiles.size());
+	    try {
+		Thread.sleep(1);
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+	    }
+	}, 4, 3);
+	tileStream.start(tiles -> {
+	    for (int i = 0; i < 400; ++i) {
+		matched.incrementAndGet();
+		tiles.accept(tile(i));
+	    }
+	});
+	tileStream.await();
+
+	Assert.assertEquals(400, delivered.get());
+	// The batch being delivered, the buffered ones and the one being filled
+	Assert.assertTrue(maximumAhead.get() <= (1 + 3 + 1) * 4);
+    }
+
+    @Test
+    public void cancellingShouldStopMatching() throws InterruptedException {
+	final AtomicReference<TileStream> tileStream = new AtomicReference<>();
+	final AtomicInteger delivered = new AtomicInteger();
+	final AtomicInteger completed = new AtomicInteger();
+	final CountDownLatch matchingStopped = new CountDownLatch(1);
+	tileStream.set(new TileStream(new TileSink() {
+	    @Override
+	    public void onTiles(final List<Tile> tiles) {
+		delivered.incrementAndGet();
+		tileStream.get().cancel();
+	    }
+
+	    @Override
+	    public void onComplete() {
+		completed.incrementAndGet();
+	    }
+	}, 8, 2));
+	tileStream.get().start(tiles -> {
+	    try {
+		for (int i = 0;; ++i) {
+		    tiles.accept(tile(i));
+		}
+	    } catch (CancellationException e) {
+		matchingStopped.countDown();
+		throw e;
+	    }
+	});
+	tileStream.get().await();
+
+	Assert.assertTrue(matchingStopped.await(10, TimeUnit.SECONDS));
+	Assert.assertTrue(tileStream.get().isCancelled());
+	Assert.assertEquals(1, delivered.get());
+	Assert.assertEquals(0, completed.get());
+    }
+
+    @Test
+    public void errorsShouldBePassedToTheSink() {
+	final List<Tile> delivered = new ArrayList<>();
+	final AtomicReference<Throwable> error = new AtomicReference<>();
+	final IllegalStateException failure = new IllegalStateException("Database gone");
+	final TileStream tileStream = new TileStream(new TileSink() {
+	    @Override
+	    public void onTiles(final List<Tile> tiles) {
+		delivered.addAll(tiles);
+	    }
+
+	    @Override
+	    public void onError(final Throwable cause) {
+		error.set(cause);
+	    }
+	}, 5, 2);
+	tileStream.start(tiles -> {
+	    for (int i = 0; i < 12; ++i) {
+		tiles.accept(tile(i));
+	    }
+	    throw failure;
+	});
+	try {
+	    tileStream.await();
+	    Assert.fail();
+	} catch (RuntimeException e) {
+	    Assert.assertSame(failure, e.getCause());
+	}
+	Assert.assertSame(failure, error.get());
+	Assert.assertEquals(10, delivered.size());
+    }
+
+    @Test
+    public void awaitShouldWaitForMatchingAfterTheSinkFailed() throws InterruptedException {
+	final CountDownLatch sinkFailed = new CountDownLatch(1);
+	final AtomicInteger matchingStopped = new AtomicInteger();
+	final TileStream tileStream = new TileStream(new TileSink() {
+	    @Override
+	    public void onTiles(final List<Tile> tiles) {
+		throw new IllegalStateException("Disk full");
+	    }
+
+	    @Override
+	    public void onError(final Throwable cause) {
+		sinkFailed.countDown();
+	    }
+	}, 1, 1);
+	tileStream.start(tiles -> {
+	    try {
+		tiles.accept(tile(0));
+		// A match still running long after the sink failed
+		Assert.assertTrue(sinkFailed.await(10, TimeUnit.SECONDS));
+		Thread.sleep(200);
+		tiles.accept(tile(1));
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+	    } finally {
+		matchingStopped.incrementAndGet();
+	    }
+	});
+	try {
+	    tileStream.await();
+	    Assert.fail();
+	} catch (RuntimeException e) {
+	    Assert.assertEquals("Disk full", e.getCause().getMessage());
+	}
+	Assert.assertEquals(1, matchingStopped.get());
+	Assert.assertTrue(tileStream.isDone());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldNotAllowEmptyBatches() {
+	new TileStream(tiles -> {
+	}, 0, 1);
+    }
+
+    private static Tile tile(final int x) {
+	return new Tile(x, 0, x, "/library/" + x + ".jpg", LocalDate.of(2015, 4, 19));
+    }
+}
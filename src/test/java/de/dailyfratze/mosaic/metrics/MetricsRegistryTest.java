@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015 michael-simons.eu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dailyfratze.mosaic.metrics;
+
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Michael J. Simons, 2015-04-25
+ */
+public class MetricsRegistryTest {
+
+    @Test
+    public void bucketsShouldBeAccurateWithinAnEighth() {
+	for (long value : new long[]{0, 1, 7, 8, 15, 16, 17, 1000, 123_456_789, Long.MAX_VALUE / 3, Long.MAX_VALUE}) {
+	    final long upperBound = Histogram.upperBound(Histogram.bucket(value));
+	    Assert.assertTrue(upperBound >= value);
+	    Assert.assertTrue(upperBound - value <= value / 8);
+	}
+    }
+
+    @Test
+    public void histogramsShouldReportPercentiles() {
+	final MetricsRegistry registry = new MetricsRegistry();
+	final Histogram histogram = registry.timer("test.time");
+	for (int i = 1; i <= 10_000; ++i) {
+	    histogram.record(i);
+	}
+
+	Assert.assertEquals(10_000, histogram.getCount());
+	Assert.assertEquals(1, histogram.getMin());
+	Assert.assertEquals(10_000, histogram.getMax());
+	Assert.assertEquals(5000.5, histogram.getMean(), 1e-9);
+	Assert.assertEquals(5000, histogram.getPercentile(50), 5000 / 8);
+	Assert.assertEquals(9900, histogram.getPercentile(99), 9900 / 8);
+	Assert.assertEquals(10_000, histogram.getPercentile(100));
+	Assert.assertSame(histogram, registry.timer("test.time"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void namesShouldBeUniqueAcrossUnits() {
+	final MetricsRegistry registry = new MetricsRegistry();
+	registry.timer("test");
+	registry.histogram("test");
+    }
+
+    @Test
+    public void resetShouldKeepMetrics() {
+	final MetricsRegistry registry = new MetricsRegistry();
+	final Counter counter = registry.counter("test.count");
+	final Histogram histogram = registry.histogram("test.values");
+	counter.add(3);
+	histogram.record(42);
+	registry.reset();
+
+	Assert.assertSame(counter, registry.counter("test.count"));
+	Assert.assertEquals(0, counter.getCount());
+	Assert.assertEquals(0, histogram.getCount());
+	Assert.assertEquals(0, histogram.getPercentile(50));
+	counter.increment();
+	Assert.assertEquals(1, counter.getCount());
+    }
+
+    @Test
+    public void shouldDumpAllMetricsAsJson() {
+	final MetricsRegistry registry = new MetricsRegistry();
+	registry.counter("library.files.decoded").add(2);
+	registry.timer("mosaic.match.time").record(1500);
+
+	final String json = registry.toJson();
+	Assert.assertTrue(json.startsWith("{\n  \"counters\": {\n    \"library.files.decoded\": {\"count\": 2, \"rate\": "));
+	Assert.assertTrue(json.contains("\"mosaic.match.time\": {\"unit\": \"ns\", \"count\": 1, \"max\": 1500, \"mean\": 1500.000, \"min\": 1500,"));
+	Assert.assertEquals("{\n  \"counters\": {},\n  \"histograms\": {}\n}\n", new MetricsRegistry().toJson());
+    }
+
+    @Test
+    public void defaultRegistryShouldBeAvailableViaJmx() throws Exception {
+	MetricsRegistry.getDefault().counter("test.jmx").add(5);
+	final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+	final ObjectName name = new ObjectName(MetricsRegistry.OBJECT_NAME);
+
+	Assert.assertEquals(5L, server.getAttribute(name, "test.jmx.count"));
+	final String json = (String) server.invoke(name, "toJson", new Object[0], new String[0]);
+	Assert.assertTrue(json.contains("\"test.jmx\": {\"count\": 5"));
+    }
+}